@@ -0,0 +1,67 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Building the response for a static file from www/lab/html (not sending it):
+//   small  - index.html (2 KB), gzipped since the client accepts it
+//   medium - images/image1.jpg (53 KB)
+//   large  - images/image2.jpg (101 KB), with zeroCopyThreshold lowered below its
+//            size so it takes the streamed (sendfile) path that real large files take
+// With cache=off every call reads (and compresses) the file again.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileResponseBenchmark {
+    private static final MethodHandle OK_FILE_RESPONSE = Server.method("RequestParser", "OKFileResponse",
+            "FileIndex$Entry", HashMap.class);
+    private static final MethodHandle LOOKUP = Server.method("FileIndex", "lookup", String.class);
+
+    @Param({ "small", "medium", "large" })
+    public String size;
+
+    @Param({ "on", "off" })
+    public String cache;
+
+    private Object file; // FileIndex.Entry
+    private HashMap<String, String> requestVars;
+
+    @Setup
+    public void setup() throws Throwable {
+        Map<String, String> config = new HashMap<>();
+        config.put("cacheSize", cache.equals("on") ? String.valueOf(16 * 1024 * 1024) : "0");
+        config.put("zeroCopyThreshold", String.valueOf(64 * 1024));
+        Server.configure(config);
+
+        String file = size.equals("small") ? "index.html"
+                : size.equals("medium") ? "images/image1.jpg" : "images/image2.jpg";
+        this.file = LOOKUP.invoke(Server.staticField("RequestParser", "INDEX"), "/" + file);
+
+        requestVars = new HashMap<>();
+        requestVars.put("Request-Type", "GET");
+        requestVars.put("Requested-Index", file);
+        requestVars.put("Accept-Encoding", "gzip, deflate, br");
+    }
+
+    @Benchmark
+    public Object buildResponse() throws Throwable {
+        return (Object) OK_FILE_RESPONSE.invokeExact(file, (Object) requestVars);
+    }
+}
@@ -0,0 +1,71 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Building response heads: the status line + content-type + content-length block
+// every response starts with, and the per-response connection headers.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderBenchmark {
+    private static final MethodHandle BASIC_HEADER_BYTES = Server.method("RequestParser", "basicHeaderBytes",
+            "RequestParser$ResponseType", "RequestParser$ContentType", long.class);
+    private static final MethodHandle BASIC_HEADER_FORMAT = Server.method("RequestParser", "basicHeaderFormat",
+            "RequestParser$ResponseType", "RequestParser$ContentType", long.class);
+    private static final MethodHandle NEW_MESSAGE = Server.constructor("HttpMessage");
+    private static final MethodHandle ADD_CONNECTION_HEADERS = Server.method("RequestHandler",
+            "addConnectionHeaders", "HttpMessage", boolean.class, int.class);
+    private static final MethodHandle TO_BUFFERS = Server.method("HttpMessage", "toBuffers");
+    private static final MethodHandle SET_HEADERS = Server.method("HttpMessage", "setHeaders", byte[].class);
+
+    private Object ok;
+    private Object text;
+    private byte[] cachedHead;
+    private long length = 2259; // index.html
+    private int requestsServed = 7;
+
+    @Setup
+    public void setup() throws Throwable {
+        Server.configure(Collections.emptyMap());
+        ok = Server.enumConstant("RequestParser$ResponseType", "OK");
+        text = Server.enumConstant("RequestParser$ContentType", "Text");
+        cachedHead = (byte[]) BASIC_HEADER_BYTES.invoke(ok, text, length);
+    }
+
+    @Benchmark
+    public Object headerBytes() throws Throwable {
+        return (Object) BASIC_HEADER_BYTES.invokeExact(ok, text, length);
+    }
+
+    // The String flavour, still used by the less common responses.
+    @Benchmark
+    public Object headerString() throws Throwable {
+        return (Object) BASIC_HEADER_FORMAT.invokeExact(ok, text, length);
+    }
+
+    // A cached head plus keep-alive lines, turned into the buffers that get written -
+    // what a cache hit costs on top of the lookup.
+    @Benchmark
+    public Object keepAliveResponseHead() throws Throwable {
+        Object message = (Object) NEW_MESSAGE.invokeExact();
+        SET_HEADERS.invokeExact(message, (Object) cachedHead);
+        ADD_CONNECTION_HEADERS.invokeExact(message, true, requestsServed);
+        return (Object) TO_BUFFERS.invokeExact(message);
+    }
+}
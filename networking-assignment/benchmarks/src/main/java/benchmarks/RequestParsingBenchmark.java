@@ -0,0 +1,93 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Parsing one request head with RequestHeadParser, as both servers do for every request.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParsingBenchmark {
+    private static final MethodHandle PARSE = Server.method("RequestHeadParser", "parse",
+            byte[].class, int.class, int.class);
+    private static final MethodHandle RESET = Server.method("RequestHeadParser", "reset");
+    private static final MethodHandle REQUEST_VARS = Server.method("RequestHeadParser", "requestVars");
+
+    // What curl sends.
+    private static final String CURL = "GET /index.html HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "User-Agent: curl/8.5.0\r\n"
+            + "Accept: */*\r\n"
+            + "\r\n";
+
+    // What a desktop browser sends for a page, cookies and all.
+    private static final String BROWSER = "GET /images/image1.jpg HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "Connection: keep-alive\r\n"
+            + "sec-ch-ua: \"Chromium\";v=\"124\", \"Google Chrome\";v=\"124\", \"Not-A.Brand\";v=\"99\"\r\n"
+            + "sec-ch-ua-mobile: ?0\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) "
+            + "Chrome/124.0.0.0 Safari/537.36\r\n"
+            + "sec-ch-ua-platform: \"Linux\"\r\n"
+            + "Accept: image/avif,image/webp,image/apng,image/svg+xml,image/*,*/*;q=0.8\r\n"
+            + "Sec-Fetch-Site: same-origin\r\n"
+            + "Sec-Fetch-Mode: no-cors\r\n"
+            + "Sec-Fetch-Dest: image\r\n"
+            + "Referer: http://localhost:8080/index.html\r\n"
+            + "Accept-Encoding: gzip, deflate, br, zstd\r\n"
+            + "Accept-Language: en-US,en;q=0.9,he;q=0.8\r\n"
+            + "Cookie: session=5f2b8c1e9a7d4e3f; theme=dark; _ga=GA1.1.123456789.1700000000\r\n"
+            + "If-None-Match: \"d548-18a3b1c2d3e\"\r\n"
+            + "If-Modified-Since: Wed, 28 Aug 2024 10:00:00 GMT\r\n"
+            + "\r\n";
+
+    // A form post to params_info.html - only the head is parsed here.
+    private static final String POST = "POST /params_info.html HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:125.0) Gecko/20100101 Firefox/125.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+            + "Content-Type: application/x-www-form-urlencoded\r\n"
+            + "Content-Length: 27\r\n"
+            + "Origin: http://localhost:8080\r\n"
+            + "Connection: keep-alive\r\n"
+            + "\r\n";
+
+    @Param({ "curl", "browser", "post" })
+    public String request;
+
+    private byte[] data;
+    private Object parser;
+
+    @Setup
+    public void setup() throws Throwable {
+        String head = request.equals("curl") ? CURL : request.equals("browser") ? BROWSER : POST;
+        data = head.getBytes(StandardCharsets.ISO_8859_1);
+        parser = Server.constructor("RequestHeadParser", int.class).invoke(16 * 1024);
+    }
+
+    @Benchmark
+    public Object parseHead() throws Throwable {
+        RESET.invokeExact(parser);
+        Object result = (Object) PARSE.invokeExact(parser, (Object) data, 0, data.length);
+        if (!"DONE".equals(result.toString())) {
+            throw new IllegalStateException("Parse failed: " + result);
+        }
+        return (Object) REQUEST_VARS.invokeExact(parser);
+    }
+}
@@ -0,0 +1,52 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// RequestParser.sanitizePath - resolving a request target against the web root
+// and rejecting anything that escapes it - next to FileIndex.lookup, which is what
+// requests go through now and only falls back to sanitizePath for paths it hasn't seen.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SanitizePathBenchmark {
+    private static final MethodHandle SANITIZE_PATH = Server.method("RequestParser", "sanitizePath", String.class);
+    private static final MethodHandle LOOKUP = Server.method("FileIndex", "lookup", String.class);
+
+    @Param({ "/", "/index.html", "/images/image1.jpg", "/images/../images/./image2.jpg" })
+    public String target;
+
+    private Object index;
+
+    @Setup
+    public void setup() throws Throwable {
+        Server.configure(Collections.emptyMap());
+        index = Server.staticField("RequestParser", "INDEX");
+    }
+
+    @Benchmark
+    public Object sanitize() throws Throwable {
+        return (Object) SANITIZE_PATH.invokeExact((Object) target);
+    }
+
+    @Benchmark
+    public Object lookup() throws Throwable {
+        return (Object) LOOKUP.invokeExact(index, (Object) target);
+    }
+}
@@ -0,0 +1,120 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+
+// Access to the server classes for the benchmarks.
+//
+// The server lives in the default package, which a named package can't import
+// (and JMH won't generate code for benchmarks that sit in it themselves). So we
+// go through method handles: each one is looked up once into a static final,
+// which the JIT treats as a constant, so calling it costs the same as a direct
+// call. Handles are erased - server types become Object, primitives stay - so
+// benchmarks call them with invokeExact and plain Object casts.
+final class Server {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private Server() {
+    }
+
+    static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Server class missing from the classpath: " + name, e);
+        }
+    }
+
+    // A static or instance method, by name and parameter types (server types by class name).
+    static MethodHandle method(String className, String name, Object... parameterTypes) {
+        try {
+            Method method = type(className).getDeclaredMethod(name, types(parameterTypes));
+            MethodHandle handle = lookupIn(className).unreflect(method);
+            return handle.asType(handle.type().erase());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No such server method: " + className + "." + name, e);
+        }
+    }
+
+    static MethodHandle constructor(String className, Object... parameterTypes) {
+        try {
+            Constructor<?> constructor = type(className).getDeclaredConstructor(types(parameterTypes));
+            MethodHandle handle = lookupIn(className).unreflectConstructor(constructor);
+            return handle.asType(handle.type().erase());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No such server constructor: " + className, e);
+        }
+    }
+
+    static Object staticField(String className, String name) throws Throwable {
+        Class<?> type = type(className).getDeclaredField(name).getType();
+        return lookupIn(className).findStaticGetter(type(className), name, type).invoke();
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    static Object enumConstant(String className, String name) {
+        return Enum.valueOf((Class) type(className), name);
+    }
+
+    // Loads a config like the server's own, with the given keys overridden, and hands
+    // it to every class that keeps a copy. Returns the ConfigValues instance.
+    static Object configure(Map<String, String> overrides) throws Throwable {
+        StringBuilder config = new StringBuilder();
+        config.append("port=0\n")
+                .append("root=").append(webRoot()).append('\n')
+                .append("defaultPage=index.html\n")
+                .append("maxThreads=1\n");
+        for (Map.Entry<String, String> entry : overrides.entrySet()) {
+            config.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        Path file = Files.createTempFile("benchmark-config", ".ini");
+        try {
+            Files.writeString(file, config);
+            Object values = constructor("ConfigValues", String.class).invoke(file.toString());
+            method("Log", "setLevel", String.class).invoke("off");
+            method("RequestParser", "setConfigValues", "ConfigValues").invoke(values);
+            method("RequestHandler", "setConfig", "ConfigValues").invoke(values);
+            lookupIn("WebServer").findStaticSetter(type("WebServer"), "VALUES", type("ConfigValues"))
+                    .invoke(values);
+            return values;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // www/lab/html, wherever the benchmarks were started from. -Dwebserver.root overrides it.
+    static Path webRoot() throws IOException {
+        String configured = System.getProperty("webserver.root");
+        if (configured != null) {
+            return Paths.get(configured).toAbsolutePath();
+        }
+        for (String candidate : new String[] { "www/lab/html", "../www/lab/html" }) {
+            Path path = Paths.get(candidate);
+            if (Files.isDirectory(path)) {
+                return path.toAbsolutePath().normalize();
+            }
+        }
+        throw new IOException("Can't find www/lab/html - run from networking-assignment or set -Dwebserver.root");
+    }
+
+    private static MethodHandles.Lookup lookupIn(String className) throws IllegalAccessException {
+        // Classpath classes share the unnamed module, which is open to us.
+        return MethodHandles.privateLookupIn(type(className), LOOKUP);
+    }
+
+    private static Class<?>[] types(Object[] parameterTypes) {
+        Class<?>[] types = new Class<?>[parameterTypes.length];
+        for (int i = 0; i < parameterTypes.length; i++) {
+            Object parameterType = parameterTypes[i];
+            types[i] = parameterType instanceof String ? type((String) parameterType) : (Class<?>) parameterType;
+        }
+        return types;
+    }
+}
@@ -0,0 +1,146 @@
+package loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+// A bare-bones blocking HTTP/1.1 client connection - just enough to send our
+// prebuilt requests and read a response off the wire, without a client library
+// adding its own pooling or buffering between us and the server.
+final class HttpConnection {
+    private static final int TIMEOUT_MILLIS = 30_000;
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final byte[] line = new byte[8192];
+    private final byte[] skip = new byte[64 * 1024];
+    private boolean open = true;
+
+    HttpConnection(InetSocketAddress address) throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(TIMEOUT_MILLIS);
+        socket.connect(address, TIMEOUT_MILLIS);
+        in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+        out = socket.getOutputStream();
+    }
+
+    // Sends request and reads the whole response. Returns the status code.
+    // Afterwards isOpen() says whether the connection can be used again.
+    int exchange(byte[] request, boolean head) throws IOException {
+        out.write(request);
+        out.flush();
+
+        String statusLine = readLine();
+        if (statusLine.length() < 12 || !statusLine.startsWith("HTTP/")) {
+            throw new IOException("Bad status line: " + statusLine);
+        }
+        int status = Integer.parseInt(statusLine.substring(9, 12));
+        boolean http10 = statusLine.startsWith("HTTP/1.0");
+
+        long contentLength = -1;
+        boolean chunked = false;
+        boolean close = http10;
+        String header;
+        while (!(header = readLine()).isEmpty()) {
+            int colon = header.indexOf(':');
+            if (colon == -1) {
+                continue;
+            }
+            String name = header.substring(0, colon).trim();
+            String value = header.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("content-length")) {
+                contentLength = Long.parseLong(value);
+            } else if (name.equalsIgnoreCase("transfer-encoding")) {
+                chunked = value.equalsIgnoreCase("chunked");
+            } else if (name.equalsIgnoreCase("connection")) {
+                close = value.equalsIgnoreCase("close") || (http10 && !value.equalsIgnoreCase("keep-alive"));
+            }
+        }
+
+        if (!head && status != 204 && status != 304) {
+            if (chunked) {
+                readChunked();
+            } else if (contentLength >= 0) {
+                skipFully(contentLength);
+            } else {
+                // No framing - the body runs until the server hangs up.
+                while (in.read(skip) != -1) {
+                    // Discard.
+                }
+                close = true;
+            }
+        }
+        if (close) {
+            close();
+        }
+        return status;
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    void close() {
+        open = false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+    }
+
+    private void readChunked() throws IOException {
+        while (true) {
+            String sizeLine = readLine();
+            int extension = sizeLine.indexOf(';');
+            long size = Long.parseLong((extension == -1 ? sizeLine : sizeLine.substring(0, extension)).trim(), 16);
+            if (size == 0) {
+                while (!readLine().isEmpty()) {
+                    // Trailers.
+                }
+                return;
+            }
+            skipFully(size);
+            readLine(); // CRLF after the chunk.
+        }
+    }
+
+    private void skipFully(long count) throws IOException {
+        while (count > 0) {
+            int read = in.read(skip, 0, (int) Math.min(skip.length, count));
+            if (read == -1) {
+                throw new EOFException("Connection closed in the middle of a body.");
+            }
+            count -= read;
+        }
+    }
+
+    // One header line, without its CRLF. Headers are ASCII.
+    private String readLine() throws IOException {
+        int length = 0;
+        while (true) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Connection closed in the middle of a response.");
+            }
+            if (b == '\n') {
+                break;
+            }
+            if (length == line.length) {
+                throw new IOException("Response header line too long.");
+            }
+            line[length++] = (byte) b;
+        }
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return new String(line, 0, length, StandardCharsets.ISO_8859_1);
+    }
+}
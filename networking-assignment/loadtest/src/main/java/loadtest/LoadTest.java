@@ -0,0 +1,432 @@
+package loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// End-to-end load generator. Either points at a server that's already running
+// (--target=host:port), or starts a fresh server for each serverMode in
+// --server-modes and runs the same load against each, printing one table.
+//
+// Closed loop: each connection sends its next request as soon as the last one
+// is answered - measures how fast the server can go.
+// Open loop: requests are due at a fixed rate whether or not the server keeps
+// up, and latency is measured from when a request was due, not when it was
+// actually sent. A server that stalls can't hide the stall by slowing the
+// client down (coordinated omission).
+public class LoadTest {
+
+    // One kind of request in the mix, with its bytes built up front.
+    static final class RequestKind {
+        final String name;
+        final int weight;
+        final boolean head;
+        byte[] withKeepAlive;
+        byte[] withClose;
+
+        RequestKind(String name, int weight) {
+            this.name = name;
+            this.weight = weight;
+            this.head = name.equals("head");
+        }
+    }
+
+    // Latencies and outcomes seen by one worker - merged once the run is over.
+    static final class Recorder {
+        long[] latencies = new long[1 << 16];
+        int count;
+        long failedRequests; // 4xx/5xx answers.
+        long ioErrors; // Refused, reset, timed out...
+
+        void record(long nanos) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+        }
+    }
+
+    private final Map<String, String> options;
+    private final List<RequestKind> mix = new ArrayList<>();
+    private int totalWeight;
+
+    LoadTest(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("loop", "closed");
+        options.put("connections", "64");
+        options.put("rate", "2000");
+        options.put("duration", "10");
+        options.put("warmup", "3");
+        options.put("keepalive", "on");
+        options.put("mix", "get:80,head:10,post:10");
+        options.put("path", "/index.html");
+        options.put("post-body", "name=load+test&value=42&comment=hello+world");
+        options.put("server-modes", "threaded,nio,virtual");
+        options.put("config", "config.ini");
+        options.put("root", "www/lab/html");
+        List<String> serverSettings = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.equals("-help") || arg.equals("--help") || arg.equals("-h")) {
+                usage();
+                return;
+            }
+            if (!arg.startsWith("--") || arg.indexOf('=') == -1) {
+                System.err.println("Don't understand '" + arg + "'.");
+                usage();
+                System.exit(2);
+            }
+            String key = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (key.equals("set")) {
+                serverSettings.add(value);
+            } else if (!options.containsKey(key) && !key.equals("target")) {
+                System.err.println("Unknown option --" + key + ".");
+                usage();
+                System.exit(2);
+            } else {
+                options.put(key, value);
+            }
+        }
+
+        LoadTest test = new LoadTest(options);
+        test.run(serverSettings);
+    }
+
+    private static void usage() {
+        System.out.println(String.join("\n",
+                "java -jar loadtest.jar [--option=value ...]",
+                "",
+                "  --target=host:port     load an already running server, instead of starting our own",
+                "  --server-modes=LIST    serverModes to start and compare (default threaded,nio,virtual)",
+                "  --config=FILE          config.ini the started servers are based on (default ./config.ini)",
+                "  --root=DIR             web root for the started servers (default www/lab/html)",
+                "  --set=key=value        override a config.ini key for the started servers, repeatable",
+                "  --loop=closed|open     closed: back-to-back requests, open: fixed arrival rate",
+                "  --connections=N        connections (and client threads) - default 64",
+                "  --rate=N               open loop only: requests per second across all connections",
+                "  --duration=SECONDS     measured time per run (default 10)",
+                "  --warmup=SECONDS       unmeasured time before it (default 3)",
+                "  --keepalive=on|off     or on,off to run both (default on)",
+                "  --mix=SPEC             weights per method, e.g. get:80,head:10,post:10",
+                "  --path=PATH            target of GET and HEAD requests (default /index.html)",
+                "  --post-body=BODY       urlencoded form POSTed to /params_info.html"));
+    }
+
+    void run(List<String> serverSettings) throws Exception {
+        parseMix(options.get("mix"));
+        String[] keepAliveSettings = options.get("keepalive").split(",");
+
+        List<String[]> rows = new ArrayList<>();
+        if (options.containsKey("target")) {
+            String[] hostPort = options.get("target").split(":");
+            InetSocketAddress address = new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1]));
+            for (String keepAlive : keepAliveSettings) {
+                rows.add(measure("external", address, keepAlive.trim().equals("on")));
+            }
+        } else {
+            for (String mode : options.get("server-modes").split(",")) {
+                try (LaunchedServer server = LaunchedServer.start(mode.trim(), Paths.get(options.get("config")),
+                        Paths.get(options.get("root")), serverSettings)) {
+                    for (String keepAlive : keepAliveSettings) {
+                        rows.add(measure(mode.trim(), server.address(), keepAlive.trim().equals("on")));
+                    }
+                }
+            }
+        }
+
+        System.out.println();
+        System.out.println(options.get("loop") + " loop, " + options.get("connections") + " connections"
+                + (options.get("loop").equals("open") ? ", " + options.get("rate") + " req/s offered" : "")
+                + ", mix " + options.get("mix") + ", " + options.get("duration") + "s measured");
+        String format = "%-10s %-10s %10s %8s %8s %11s %9s %9s %9s %9s%n";
+        System.out.printf(format, "mode", "keepalive", "requests", "failed", "errors", "req/s",
+                "p50 ms", "p99 ms", "p999 ms", "max ms");
+        for (String[] row : rows) {
+            System.out.printf(format, (Object[]) row);
+        }
+    }
+
+    private void parseMix(String spec) {
+        for (String part : spec.split(",")) {
+            String[] nameWeight = part.trim().split(":");
+            String name = nameWeight[0].trim().toLowerCase();
+            if (!name.equals("get") && !name.equals("head") && !name.equals("post")) {
+                throw new IllegalArgumentException("Mix can only contain get, head and post: " + name);
+            }
+            RequestKind kind = new RequestKind(name, Integer.parseInt(nameWeight[1].trim()));
+            if (kind.weight > 0) {
+                mix.add(kind);
+                totalWeight += kind.weight;
+            }
+        }
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("Mix is empty.");
+        }
+    }
+
+    private void buildRequests(InetSocketAddress address) {
+        String host = "Host: " + address.getHostString() + ":" + address.getPort() + "\r\n";
+        byte[] form = options.get("post-body").getBytes(StandardCharsets.UTF_8);
+        for (RequestKind kind : mix) {
+            String head;
+            byte[] body = new byte[0];
+            if (kind.name.equals("post")) {
+                body = form;
+                head = "POST /params_info.html HTTP/1.1\r\n" + host
+                        + "Content-Type: application/x-www-form-urlencoded\r\n"
+                        + "Content-Length: " + body.length + "\r\n";
+            } else {
+                head = kind.name.toUpperCase() + " " + options.get("path") + " HTTP/1.1\r\n" + host
+                        + "Accept-Encoding: gzip\r\n";
+            }
+            head += "User-Agent: loadtest\r\n";
+            kind.withKeepAlive = concat((head + "\r\n").getBytes(StandardCharsets.ISO_8859_1), body);
+            kind.withClose = concat((head + "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1),
+                    body);
+        }
+    }
+
+    private RequestKind pick() {
+        int roll = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (RequestKind kind : mix) {
+            roll -= kind.weight;
+            if (roll < 0) {
+                return kind;
+            }
+        }
+        return mix.get(mix.size() - 1);
+    }
+
+    // One run against one server - returns its row of the table.
+    private String[] measure(String mode, InetSocketAddress address, boolean keepAlive) throws InterruptedException {
+        buildRequests(address);
+        int connections = Integer.parseInt(options.get("connections"));
+        boolean open = options.get("loop").equals("open");
+        double intervalNanos = open ? 1e9 / Double.parseDouble(options.get("rate")) : 0;
+        long start = System.nanoTime();
+        long measureFrom = start + (long) (Double.parseDouble(options.get("warmup")) * 1e9);
+        long end = measureFrom + (long) (Double.parseDouble(options.get("duration")) * 1e9);
+        AtomicLong tickets = new AtomicLong(); // Open loop: the next request to be due.
+
+        System.err.println("Running " + mode + ", keep-alive " + (keepAlive ? "on" : "off") + "...");
+        Recorder[] recorders = new Recorder[connections];
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            Recorder recorder = recorders[i] = new Recorder();
+            threads[i] = new Thread(() -> work(address, keepAlive, open, intervalNanos, start, measureFrom, end,
+                    tickets, recorder), "load-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long measuredNanos = Math.max(1, Math.min(System.nanoTime(), end) - measureFrom);
+
+        int total = 0;
+        long failed = 0;
+        long errors = 0;
+        for (Recorder recorder : recorders) {
+            total += recorder.count;
+            failed += recorder.failedRequests;
+            errors += recorder.ioErrors;
+        }
+        long[] latencies = new long[total];
+        int pos = 0;
+        for (Recorder recorder : recorders) {
+            System.arraycopy(recorder.latencies, 0, latencies, pos, recorder.count);
+            pos += recorder.count;
+        }
+        Arrays.sort(latencies);
+
+        return new String[] { mode, keepAlive ? "on" : "off", String.valueOf(total), String.valueOf(failed),
+                String.valueOf(errors), String.format("%.1f", total / (measuredNanos / 1e9)),
+                millis(percentile(latencies, 0.50)), millis(percentile(latencies, 0.99)),
+                millis(percentile(latencies, 0.999)), millis(total == 0 ? 0 : latencies[total - 1]) };
+    }
+
+    private void work(InetSocketAddress address, boolean keepAlive, boolean open, double intervalNanos,
+            long start, long measureFrom, long end, AtomicLong tickets, Recorder recorder) {
+        HttpConnection connection = null;
+        while (true) {
+            long due;
+            if (open) {
+                due = start + (long) (tickets.getAndIncrement() * intervalNanos);
+                if (due >= end) {
+                    break;
+                }
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            } else {
+                due = System.nanoTime();
+                if (due >= end) {
+                    break;
+                }
+            }
+
+            RequestKind kind = pick();
+            try {
+                if (connection == null || !connection.isOpen()) {
+                    connection = new HttpConnection(address);
+                }
+                int status = connection.exchange(keepAlive ? kind.withKeepAlive : kind.withClose, kind.head);
+                if (!keepAlive) {
+                    connection.close();
+                }
+                long latency = System.nanoTime() - due;
+                if (due >= measureFrom) {
+                    recorder.record(latency);
+                    if (status >= 400) {
+                        recorder.failedRequests++;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                if (due >= measureFrom) {
+                    recorder.ioErrors++;
+                }
+                if (connection != null) {
+                    connection.close();
+                }
+                connection = null;
+            }
+        }
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] all = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, all, first.length, second.length);
+        return all;
+    }
+
+    // A WebServer in its own JVM and working directory, with a config.ini of its own.
+    static final class LaunchedServer implements AutoCloseable {
+        private final Process process;
+        private final Path directory;
+        private final int port;
+
+        private LaunchedServer(Process process, Path directory, int port) {
+            this.process = process;
+            this.directory = directory;
+            this.port = port;
+        }
+
+        static LaunchedServer start(String mode, Path baseConfig, Path root, List<String> settings)
+                throws IOException, InterruptedException {
+            int port;
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+
+            // The base config, minus the keys we set, plus ours (later lines win in ConfigValues anyway).
+            StringBuilder config = new StringBuilder();
+            if (Files.exists(baseConfig)) {
+                for (String line : Files.readAllLines(baseConfig)) {
+                    String trimmed = line.trim();
+                    if (!trimmed.startsWith("port=") && !trimmed.startsWith("root=")
+                            && !trimmed.startsWith("serverMode=")) {
+                        config.append(line).append('\n');
+                    }
+                }
+            } else {
+                config.append("defaultPage=index.html\nmaxThreads=10\n");
+            }
+            config.append("port=").append(port).append('\n');
+            config.append("root=").append(root.toAbsolutePath().normalize()).append('/').append('\n');
+            config.append("serverMode=").append(mode).append('\n');
+            for (String setting : settings) {
+                config.append(setting).append('\n');
+            }
+
+            Path directory = Files.createTempDirectory("loadtest-" + mode);
+            Files.writeString(directory.resolve("config.ini"), config);
+            Path javaBinary = Paths.get(System.getProperty("java.home"), "bin", "java");
+            // Our own classpath has the server in it, but it may be relative to where we were started.
+            StringBuilder classpath = new StringBuilder();
+            for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+                classpath.append(classpath.length() == 0 ? "" : File.pathSeparator)
+                        .append(Paths.get(entry).toAbsolutePath());
+            }
+            Process process = new ProcessBuilder(javaBinary.toString(), "-cp", classpath.toString(), "WebServer")
+                    .directory(directory.toFile())
+                    .redirectErrorStream(true)
+                    .redirectOutput(directory.resolve("server.log").toFile())
+                    .start();
+
+            LaunchedServer server = new LaunchedServer(process, directory, port);
+            server.awaitReady();
+            System.err.println("Started " + mode + " server on port " + port + " (log in "
+                    + directory.resolve("server.log") + ")");
+            return server;
+        }
+
+        InetSocketAddress address() {
+            return new InetSocketAddress("127.0.0.1", port);
+        }
+
+        // Waits until the server answers a request, so startup isn't counted as load.
+        private void awaitReady() throws IOException, InterruptedException {
+            long deadline = System.nanoTime() + 20_000_000_000L;
+            while (System.nanoTime() < deadline) {
+                if (!process.isAlive()) {
+                    throw new IOException("Server exited during startup, see " + directory.resolve("server.log"));
+                }
+                try (Socket socket = new Socket()) {
+                    socket.connect(address(), 1000);
+                    OutputStream out = socket.getOutputStream();
+                    out.write("HEAD / HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                    InputStream in = socket.getInputStream();
+                    if (in.read() != -1) {
+                        return;
+                    }
+                } catch (IOException e) {
+                    // Not listening yet.
+                }
+                Thread.sleep(100);
+            }
+            throw new IOException("Server didn't start within 20 seconds.");
+        }
+
+        @Override
+        public void close() throws InterruptedException {
+            process.destroy();
+            process.waitFor();
+        }
+    }
+}
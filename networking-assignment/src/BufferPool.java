@@ -0,0 +1,254 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Fixed-size direct buffers for socket I/O. Borrow one with take(), give it back
+// with give() once nothing points into it anymore, and the next request reuses it -
+// so serving requests doesn't leave buffers behind for the garbage collector, and
+// a channel write from one skips the copy the JDK makes of a heap buffer first.
+//
+// Idle buffers are split into shards, picked by the calling thread, so threads
+// rarely wait on each other. A thread whose shard is empty borrows from the others
+// before allocating - buffers often come back on a different thread than the one
+// that took them. Past bufferPoolSize idle bytes (config.ini), buffers that come
+// back are left to the garbage collector.
+//
+// With bufferLeakDetection on, each borrowed buffer is tracked through a weak
+// reference, and one that's collected without having been given back is logged
+// with where it was taken. It also catches a buffer given back twice.
+public final class BufferPool {
+    static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final Shard[] SHARDS = newShards();
+    private static final AtomicInteger IDLE = new AtomicInteger(); // Across all shards.
+    private static final LongAdder IN_USE = new LongAdder();
+    private static final LongAdder ALLOCATED = new LongAdder();
+    private static final LongAdder LEAKS = new LongAdder();
+    private static volatile int maxIdlePerShard = shardLimit(16 * 1024 * 1024);
+    private static volatile boolean detectLeaks;
+    // Each thread gets a shard of its own the first time it asks, handed out in turn.
+    private static final AtomicInteger NEXT_SHARD = new AtomicInteger();
+    private static final ThreadLocal<Integer> HOME_SHARD =
+            ThreadLocal.withInitial(() -> NEXT_SHARD.getAndIncrement() & (SHARDS.length - 1));
+
+    // Leak detection only. Leases are found by the buffer's identity hash, chained
+    // on a collision - a ByteBuffer's own hashCode follows its contents.
+    private static final HashMap<Integer, Lease> LEASES = new HashMap<>();
+    private static final ReferenceQueue<ByteBuffer> COLLECTED = new ReferenceQueue<>();
+
+    private static final class Shard {
+        private final ArrayDeque<ByteBuffer> idle = new ArrayDeque<>();
+
+        synchronized ByteBuffer poll() {
+            ByteBuffer buffer = idle.pollLast(); // Most recently used - likeliest to still be in cache.
+            if (buffer != null) {
+                IDLE.decrementAndGet();
+            }
+            return buffer;
+        }
+
+        synchronized boolean offer(ByteBuffer buffer, int max) {
+            if (idle.size() >= max) {
+                return false;
+            }
+            idle.addLast(buffer);
+            IDLE.incrementAndGet();
+            return true;
+        }
+
+        synchronized boolean holds(ByteBuffer buffer) {
+            for (ByteBuffer idleBuffer : idle) {
+                if (idleBuffer == buffer) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized void trim(int max) {
+            while (idle.size() > max) {
+                idle.pollFirst();
+                IDLE.decrementAndGet();
+            }
+        }
+    }
+
+    // A borrowed buffer, while leak detection is on.
+    private static final class Lease extends WeakReference<ByteBuffer> {
+        final int hash;
+        final Throwable takenAt;
+        Lease next;
+
+        Lease(ByteBuffer buffer, int hash) {
+            super(buffer, COLLECTED);
+            this.hash = hash;
+            this.takenAt = new Throwable();
+        }
+    }
+
+    private BufferPool() {
+    }
+
+    // Twice as many shards as cores (a power of two), so threads seldom share one.
+    private static Shard[] newShards() {
+        int wanted = Runtime.getRuntime().availableProcessors() * 2;
+        Shard[] shards = new Shard[Integer.highestOneBit(wanted - 1) << 1];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+        }
+        return shards;
+    }
+
+    private static int shardLimit(long poolSize) {
+        return (int) Math.min(Integer.MAX_VALUE, poolSize / BUFFER_SIZE / SHARDS.length);
+    }
+
+    // Picks up bufferPoolSize and bufferLeakDetection - at startup, and again on a reload.
+    static void configure(ConfigValues values) {
+        int max = shardLimit(values.getBufferPoolSize());
+        maxIdlePerShard = max;
+        for (Shard shard : SHARDS) {
+            shard.trim(max);
+        }
+        // Buffers already out when this is turned on aren't tracked - only the ones taken after.
+        boolean detect = values.getBufferLeakDetection();
+        if (detectLeaks && !detect) {
+            synchronized (LEASES) {
+                for (Lease lease : LEASES.values()) {
+                    for (; lease != null; lease = lease.next) {
+                        lease.clear(); // Nobody's checking these anymore.
+                    }
+                }
+                LEASES.clear();
+            }
+        }
+        detectLeaks = detect;
+    }
+
+    // An empty buffer of BUFFER_SIZE bytes, ready to be filled.
+    static ByteBuffer take() {
+        int home = shardIndex();
+        ByteBuffer buffer = null;
+        for (int i = 0; i < SHARDS.length && buffer == null; i++) {
+            buffer = SHARDS[(home + i) & (SHARDS.length - 1)].poll();
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            ALLOCATED.increment();
+        }
+        IN_USE.increment();
+        if (detectLeaks) {
+            track(buffer);
+        }
+        return buffer;
+    }
+
+    // Hands a buffer from take() back. Null is ignored, so it's fine to call on a
+    // buffer that was never taken.
+    static void give(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (detectLeaks && !untrack(buffer)) {
+            return;
+        }
+        IN_USE.decrement();
+        buffer.clear();
+        // Only the home shard - a full one means the pool has all it's meant to keep.
+        SHARDS[shardIndex()].offer(buffer, maxIdlePerShard);
+    }
+
+    private static int shardIndex() {
+        return HOME_SHARD.get();
+    }
+
+    private static void track(ByteBuffer buffer) {
+        int hash = System.identityHashCode(buffer);
+        synchronized (LEASES) {
+            reportLeaks();
+            Lease lease = new Lease(buffer, hash);
+            lease.next = LEASES.put(hash, lease);
+        }
+    }
+
+    // Returns false if the buffer shouldn't go back in the pool: it's there already.
+    private static boolean untrack(ByteBuffer buffer) {
+        int hash = System.identityHashCode(buffer);
+        synchronized (LEASES) {
+            reportLeaks();
+            if (remove(hash, buffer) != null) {
+                return true;
+            }
+        }
+        for (Shard shard : SHARDS) {
+            if (shard.holds(buffer)) {
+                Log.warn("Pooled buffer given back twice:{}", stack(new Throwable()));
+                return false;
+            }
+        }
+        return true; // Taken before leak detection was turned on.
+    }
+
+    // Unlinks the lease for buffer (or a collected one, when buffer is null). Caller holds LEASES.
+    private static Lease remove(int hash, ByteBuffer buffer) {
+        Lease previous = null;
+        for (Lease lease = LEASES.get(hash); lease != null; previous = lease, lease = lease.next) {
+            if (buffer == null ? lease.refersTo(null) : lease.refersTo(buffer)) {
+                if (previous != null) {
+                    previous.next = lease.next;
+                } else if (lease.next != null) {
+                    LEASES.put(hash, lease.next);
+                } else {
+                    LEASES.remove(hash);
+                }
+                lease.clear(); // Given back properly - it mustn't turn up as a leak later.
+                return lease;
+            }
+        }
+        return null;
+    }
+
+    // Leases the garbage collector found unreachable - their buffers were never given
+    // back. The memory itself is freed with the buffer. Caller holds LEASES.
+    private static void reportLeaks() {
+        Lease lease;
+        while ((lease = (Lease) COLLECTED.poll()) != null) {
+            if (remove(lease.hash, null) == null) {
+                continue; // Already unlinked along with another collected lease on the same hash.
+            }
+            IN_USE.decrement();
+            LEAKS.increment();
+            Log.warn("Pooled buffer was never given back. It was taken at:{}", stack(lease.takenAt));
+        }
+    }
+
+    private static String stack(Throwable where) {
+        StringBuilder text = new StringBuilder();
+        for (StackTraceElement frame : where.getStackTrace()) {
+            if (text.length() > 0 || !frame.getClassName().startsWith("BufferPool")) { // Skip our own frames.
+                text.append("\n\tat ").append(frame);
+            }
+        }
+        return text.toString();
+    }
+
+    static long idleBytes() {
+        return (long) IDLE.get() * BUFFER_SIZE;
+    }
+
+    static long inUse() {
+        return IN_USE.sum();
+    }
+
+    static long allocated() {
+        return ALLOCATED.sum();
+    }
+
+    static long leaks() {
+        return LEAKS.sum();
+    }
+}
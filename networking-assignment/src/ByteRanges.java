@@ -0,0 +1,107 @@
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+// Parses "Range: bytes=..." headers and builds the 206 / 416 responses for them.
+// Ranges are streamed as positioned regions of the file, so asking for the last
+// megabyte of a huge file never reads the rest of it.
+public class ByteRanges {
+    // More ranges than this in one request is someone trying to make us do silly amounts
+    // of work - we just send the whole file instead.
+    static final int MAX_RANGES = 16;
+
+    // Returns the satisfiable ranges as inclusive {first, last} byte pairs, an empty list
+    // if none are satisfiable (416), or null if the header should be ignored (200).
+    static ArrayList<long[]> parse(String header, long size) {
+        if (!header.startsWith("bytes=")) {
+            return null; // Unknown unit.
+        }
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        ArrayList<long[]> ranges = new ArrayList<>();
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+            try {
+                String firstString = spec.substring(0, dash).trim();
+                String lastString = spec.substring(dash + 1).trim();
+                long first;
+                long last;
+                if (firstString.isEmpty()) {
+                    // "-500" means the last 500 bytes.
+                    long suffix = Long.parseLong(lastString);
+                    if (suffix == 0 || size == 0) {
+                        continue;
+                    }
+                    first = Math.max(0, size - suffix);
+                    last = size - 1;
+                } else {
+                    first = Long.parseLong(firstString);
+                    last = lastString.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastString);
+                    if (first < 0 || last < first) {
+                        return null;
+                    }
+                    if (first >= size) {
+                        continue; // Starts past the end - unsatisfiable, but maybe others aren't.
+                    }
+                    last = Math.min(last, size - 1);
+                }
+                ranges.add(new long[] { first, last });
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return ranges;
+    }
+
+    // Builds the 206 (or 416, for an empty list) response. 'validators' are the
+    // etag/last-modified header lines, which a 206 carries just like a 200.
+    static HttpMessage response(RequestParser.ContentType contentType, Path path, long size,
+            ArrayList<long[]> ranges, String validators) {
+        HttpMessage message = new HttpMessage();
+        if (ranges.isEmpty()) {
+            message.setHeaders(RequestParser.basicHeaderFormat(RequestParser.ResponseType.RangeNotSatisfiable, null, 0)
+                    + "content-range: bytes */" + size + RequestParser.CRLF);
+            return message;
+        }
+
+        message.setContentFile(path);
+        if (ranges.size() == 1) {
+            long[] range = ranges.get(0);
+            long length = range[1] - range[0] + 1;
+            message.setHeaders(RequestParser.basicHeaderFormat(RequestParser.ResponseType.PartialContent, contentType,
+                    length) + contentRange(range, size) + validators);
+            message.addFileRegion(range[0], length);
+            return message;
+        }
+
+        // Several ranges - multipart/byteranges, each part with its own little header.
+        String boundary = "BYTERANGES" + Long.toHexString(System.nanoTime());
+        long length = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            long[] range = ranges.get(i);
+            byte[] partHeader = ((i == 0 ? "" : RequestParser.CRLF) + "--" + boundary + RequestParser.CRLF
+                    + "content-type: " + contentType + RequestParser.CRLF
+                    + contentRange(range, size) + RequestParser.CRLF).getBytes();
+            message.addContentBytes(partHeader);
+            message.addFileRegion(range[0], range[1] - range[0] + 1);
+            length += partHeader.length + range[1] - range[0] + 1;
+        }
+        byte[] end = (RequestParser.CRLF + "--" + boundary + "--" + RequestParser.CRLF).getBytes();
+        message.addContentBytes(end);
+        length += end.length;
+
+        message.setHeaders(RequestParser.basicHeaderFormat(RequestParser.ResponseType.PartialContent, null, length)
+                + "content-type: multipart/byteranges; boundary=" + boundary + RequestParser.CRLF + validators);
+        return message;
+    }
+
+    private static String contentRange(long[] range, long size) {
+        return "content-range: bytes " + range[0] + "-" + range[1] + "/" + size + RequestParser.CRLF;
+    }
+}
@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Transfer-Encoding: chunked framing on top of another stream. Whatever is written
+// is collected into chunks of a fixed size, and each chunk - size line, data and
+// the CRLF after it - goes out in one write. close() sends the last (empty) chunk
+// but leaves the stream underneath open, since the connection may be reused.
+public class ChunkedOutputStream extends OutputStream {
+    private static final byte[] LAST_CHUNK = HeaderBytes.ascii("0\r\n\r\n");
+    private static final byte[] HEX = HeaderBytes.ascii("0123456789abcdef");
+    private static final int SIZE_LINE = 8 + 2; // Up to 8 hex digits, then CRLF.
+
+    private final OutputStream out;
+    // [room for the size line][chunk data][CRLF][room for the last chunk] - the size
+    // line is filled in right-aligned once we know how much data there is.
+    private final byte[] buffer;
+    private final int chunkSize;
+    private int count;
+    private byte[] preamble;
+    private boolean closed;
+
+    ChunkedOutputStream(OutputStream out, int chunkSize) {
+        this(out, chunkSize, null);
+    }
+
+    // preamble (the response head) is sent with the first chunk rather than on its
+    // own, so a small response is still a single write.
+    ChunkedOutputStream(OutputStream out, int chunkSize, byte[] preamble) {
+        this.out = out;
+        this.chunkSize = chunkSize;
+        this.buffer = new byte[SIZE_LINE + chunkSize + 2 + LAST_CHUNK.length];
+        this.preamble = preamble;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == chunkSize) {
+            writeChunk();
+        }
+        buffer[SIZE_LINE + count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Chunked stream already closed.");
+        }
+        while (length > 0) {
+            if (count == chunkSize) {
+                writeChunk();
+            }
+            int piece = Math.min(length, chunkSize - count);
+            System.arraycopy(data, offset, buffer, SIZE_LINE + count, piece);
+            count += piece;
+            offset += piece;
+            length -= piece;
+        }
+    }
+
+    // Sends what we have as a (short) chunk right away.
+    @Override
+    public void flush() throws IOException {
+        writeChunk();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writeChunk(true);
+        out.flush();
+    }
+
+    private void writeChunk() throws IOException {
+        writeChunk(false);
+    }
+
+    // Writes the buffered data as one chunk (if there is any), with the head in front
+    // of it if that hasn't gone out yet, and the last chunk after it if last is set.
+    private void writeChunk(boolean last) throws IOException {
+        int start = SIZE_LINE;
+        int end = SIZE_LINE;
+        if (count > 0) {
+            start -= 2;
+            buffer[start] = '\r';
+            buffer[start + 1] = '\n';
+            for (int size = count; size != 0; size >>>= 4) {
+                buffer[--start] = HEX[size & 0xf];
+            }
+            end += count;
+            buffer[end++] = '\r';
+            buffer[end++] = '\n';
+        }
+        if (last) {
+            System.arraycopy(LAST_CHUNK, 0, buffer, end, LAST_CHUNK.length);
+            end += LAST_CHUNK.length;
+        }
+        if (preamble != null) {
+            // Nothing sent yet - the head goes in the same write. Only happens once.
+            byte[] first = new byte[preamble.length + end - start];
+            System.arraycopy(preamble, 0, first, 0, preamble.length);
+            System.arraycopy(buffer, start, first, preamble.length, end - start);
+            preamble = null;
+            out.write(first);
+        } else if (end > start) {
+            out.write(buffer, start, end - start);
+        }
+        count = 0;
+    }
+}
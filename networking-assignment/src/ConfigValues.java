@@ -10,6 +10,66 @@ public class ConfigValues {
     private Path ROOT_PATH;
     private String DEFAULT_PAGE;
     private int MAX_THREADS;
+    // The worker pool grows and shrinks with the load between these two - see WorkerPool.
+    private int MIN_THREADS = 2;
+    // Keep-alive settings. Optional in config.ini, so they get sane defaults.
+    private int KEEP_ALIVE_TIMEOUT = 5000; // Milliseconds an idle connection is kept open.
+    private int MAX_KEEP_ALIVE_REQUESTS = 100; // Requests served on one connection before we close it.
+    // "threaded" (fixed thread pool), "virtual" (virtual thread per connection, Java 21+ -
+    // threaded on older JVMs) or "nio" (selector event loop).
+    private String SERVER_MODE = "threaded";
+    private int MAX_CONNECTIONS = 10000; // Connections open at once - past this new ones get a 503.
+    private long CACHE_SIZE = 16 * 1024 * 1024; // Bytes of file responses kept in memory, 0 disables.
+    private long ZERO_COPY_THRESHOLD = 1024 * 1024; // Files this big or bigger are streamed, not buffered.
+    private int COMPRESSION_MIN_SIZE = 1024; // Smaller files aren't worth gzipping.
+    private int CACHE_MAX_AGE = 60; // Seconds clients may reuse a file before revalidating.
+    private int MAX_HEADER_SIZE = 16 * 1024; // Biggest request line + headers we accept.
+    // debug, info, warn, error or off. Nothing on the request path logs above debug,
+    // so the default costs nothing per request.
+    private String LOG_LEVEL = "info";
+    private String METRICS_PATH = "/_metrics"; // Admin endpoint for counters and histograms, empty disables.
+    private long MAX_BODY_SIZE = 10 * 1024 * 1024; // Bigger request bodies get a 413.
+    private long BODY_SPILL_THRESHOLD = 64 * 1024; // Request bodies past this go to a temp file.
+    private int MAX_PIPELINE_DEPTH = 16; // Pipelined requests per connection we'll have unanswered at once.
+    // Overload shedding: how much work may wait for a worker thread, and for how long,
+    // before it's turned away with a 503 telling the client to come back in RETRY_AFTER seconds.
+    private int MAX_QUEUE_SIZE = 256;
+    private int MAX_QUEUE_TIME = 2000; // Milliseconds, 0 for no limit.
+    private int RETRY_AFTER = 1;
+    // Deadlines, in milliseconds (0 for none): from the first byte of a request head to
+    // its end, from the end of the head to the end of the body, and for writing one
+    // response. Idle time between requests is KEEP_ALIVE_TIMEOUT.
+    private int HEADER_TIMEOUT = 10000;
+    private int BODY_TIMEOUT = 30000;
+    private int WRITE_TIMEOUT = 60000;
+    // Paths the file index keeps: files under the root, and separately other paths
+    // asked for (including 404s). 0 turns the index off - every request stats the disk.
+    private int FILE_INDEX_SIZE = 100000;
+    // Threads accepting connections - in nio mode each is also the event loop for the
+    // connections it gets. 0 means one per core.
+    private int IO_THREADS = 0;
+    // Give each of those threads its own listening socket on the port (SO_REUSEPORT) and
+    // let the kernel spread connections between them. Off, or where the OS can't, one
+    // thread accepts and hands connections out in turn.
+    private boolean REUSE_PORT = true;
+    // HTTP/2 without TLS (h2c), for clients that open with the HTTP/2 preface or ask
+    // to upgrade to it - and how many requests one such connection may have going at once.
+    private boolean HTTP2 = true;
+    private int HTTP2_MAX_STREAMS = 100;
+    // In nio mode each HTTP/2 connection is served by a platform thread of its own, not
+    // the event loop - this caps how many there may be at once. Past it, upgrades are
+    // answered over HTTP/1.1 and prior-knowledge connections are turned away. They
+    // count against maxConnections as well.
+    private int HTTP2_MAX_CONNECTIONS = 256;
+    // Limits on a form POSTed to params_info.html: how many fields, and how big one
+    // (non-file) field may be once decoded. File parts only count against maxBodySize.
+    private int MAX_FORM_FIELDS = 1000;
+    private int MAX_FORM_FIELD_SIZE = 64 * 1024;
+    // Socket I/O borrows its buffers from BufferPool: how many bytes of them it keeps
+    // around between uses, and whether to track each borrowed buffer so one that's
+    // never given back gets reported (slow - for debugging).
+    private long BUFFER_POOL_SIZE = 16 * 1024 * 1024;
+    private boolean BUFFER_LEAK_DETECTION = false;
 
     public ConfigValues(String configPath) throws IllegalArgumentException {
         if (!readConfig(configPath)) {
@@ -47,6 +107,68 @@ public class ConfigValues {
                     DEFAULT_PAGE = line.trim().substring(12);
                 } else if (line.trim().startsWith("maxThreads=")) {
                     MAX_THREADS = Integer.parseInt(line.trim().substring(11));
+                } else if (line.trim().startsWith("minThreads=")) {
+                    MIN_THREADS = Integer.parseInt(line.trim().substring(11));
+                } else if (line.trim().startsWith("keepAliveTimeout=")) {
+                    KEEP_ALIVE_TIMEOUT = Integer.parseInt(line.trim().substring(17));
+                } else if (line.trim().startsWith("maxKeepAliveRequests=")) {
+                    MAX_KEEP_ALIVE_REQUESTS = Integer.parseInt(line.trim().substring(21));
+                } else if (line.trim().startsWith("serverMode=")) {
+                    SERVER_MODE = line.trim().substring(11).toLowerCase();
+                } else if (line.trim().startsWith("maxConnections=")) {
+                    MAX_CONNECTIONS = Integer.parseInt(line.trim().substring(15));
+                } else if (line.trim().startsWith("cacheSize=")) {
+                    CACHE_SIZE = Long.parseLong(line.trim().substring(10));
+                } else if (line.trim().startsWith("zeroCopyThreshold=")) {
+                    ZERO_COPY_THRESHOLD = Long.parseLong(line.trim().substring(18));
+                } else if (line.trim().startsWith("compressionMinSize=")) {
+                    COMPRESSION_MIN_SIZE = Integer.parseInt(line.trim().substring(19));
+                } else if (line.trim().startsWith("cacheMaxAge=")) {
+                    CACHE_MAX_AGE = Integer.parseInt(line.trim().substring(12));
+                } else if (line.trim().startsWith("maxHeaderSize=")) {
+                    MAX_HEADER_SIZE = Integer.parseInt(line.trim().substring(14));
+                } else if (line.trim().startsWith("logLevel=")) {
+                    LOG_LEVEL = line.trim().substring(9);
+                } else if (line.trim().startsWith("metricsPath=")) {
+                    METRICS_PATH = line.trim().substring(12);
+                } else if (line.trim().startsWith("maxBodySize=")) {
+                    MAX_BODY_SIZE = Long.parseLong(line.trim().substring(12));
+                } else if (line.trim().startsWith("bodySpillThreshold=")) {
+                    BODY_SPILL_THRESHOLD = Long.parseLong(line.trim().substring(19));
+                } else if (line.trim().startsWith("maxPipelineDepth=")) {
+                    MAX_PIPELINE_DEPTH = Math.max(1, Integer.parseInt(line.trim().substring(17)));
+                } else if (line.trim().startsWith("maxQueueSize=")) {
+                    MAX_QUEUE_SIZE = Math.max(1, Integer.parseInt(line.trim().substring(13)));
+                } else if (line.trim().startsWith("maxQueueTime=")) {
+                    MAX_QUEUE_TIME = Integer.parseInt(line.trim().substring(13));
+                } else if (line.trim().startsWith("retryAfter=")) {
+                    RETRY_AFTER = Integer.parseInt(line.trim().substring(11));
+                } else if (line.trim().startsWith("headerTimeout=")) {
+                    HEADER_TIMEOUT = Integer.parseInt(line.trim().substring(14));
+                } else if (line.trim().startsWith("bodyTimeout=")) {
+                    BODY_TIMEOUT = Integer.parseInt(line.trim().substring(12));
+                } else if (line.trim().startsWith("writeTimeout=")) {
+                    WRITE_TIMEOUT = Integer.parseInt(line.trim().substring(13));
+                } else if (line.trim().startsWith("fileIndexSize=")) {
+                    FILE_INDEX_SIZE = Integer.parseInt(line.trim().substring(14));
+                } else if (line.trim().startsWith("ioThreads=")) {
+                    IO_THREADS = Integer.parseInt(line.trim().substring(10));
+                } else if (line.trim().startsWith("reusePort=")) {
+                    REUSE_PORT = Boolean.parseBoolean(line.trim().substring(10));
+                } else if (line.trim().startsWith("http2=")) {
+                    HTTP2 = Boolean.parseBoolean(line.trim().substring(6));
+                } else if (line.trim().startsWith("http2MaxStreams=")) {
+                    HTTP2_MAX_STREAMS = Math.max(1, Integer.parseInt(line.trim().substring(16)));
+                } else if (line.trim().startsWith("http2MaxConnections=")) {
+                    HTTP2_MAX_CONNECTIONS = Math.max(0, Integer.parseInt(line.trim().substring(20)));
+                } else if (line.trim().startsWith("maxFormFields=")) {
+                    MAX_FORM_FIELDS = Math.max(1, Integer.parseInt(line.trim().substring(14)));
+                } else if (line.trim().startsWith("maxFormFieldSize=")) {
+                    MAX_FORM_FIELD_SIZE = Math.max(64, Integer.parseInt(line.trim().substring(17)));
+                } else if (line.trim().startsWith("bufferPoolSize=")) {
+                    BUFFER_POOL_SIZE = Math.max(0, Long.parseLong(line.trim().substring(15)));
+                } else if (line.trim().startsWith("bufferLeakDetection=")) {
+                    BUFFER_LEAK_DETECTION = Boolean.parseBoolean(line.trim().substring(20));
                 }
             }
             return true;
@@ -64,6 +186,130 @@ public class ConfigValues {
         return MAX_THREADS;
     }
 
+    public int getMinThreads() {
+        return Math.max(1, Math.min(MIN_THREADS, MAX_THREADS));
+    }
+
+    public int getKeepAliveTimeout() {
+        return KEEP_ALIVE_TIMEOUT;
+    }
+
+    public int getMaxKeepAliveRequests() {
+        return MAX_KEEP_ALIVE_REQUESTS;
+    }
+
+    public String getServerMode() {
+        return SERVER_MODE;
+    }
+
+    public int getMaxConnections() {
+        return MAX_CONNECTIONS;
+    }
+
+    public long getCacheSize() {
+        return CACHE_SIZE;
+    }
+
+    public long getZeroCopyThreshold() {
+        return ZERO_COPY_THRESHOLD;
+    }
+
+    public int getCompressionMinSize() {
+        return COMPRESSION_MIN_SIZE;
+    }
+
+    public int getCacheMaxAge() {
+        return CACHE_MAX_AGE;
+    }
+
+    public int getMaxHeaderSize() {
+        return MAX_HEADER_SIZE;
+    }
+
+    public String getLogLevel() {
+        return LOG_LEVEL;
+    }
+
+    public String getMetricsPath() {
+        return METRICS_PATH;
+    }
+
+    public long getMaxBodySize() {
+        return MAX_BODY_SIZE;
+    }
+
+    public long getBodySpillThreshold() {
+        return BODY_SPILL_THRESHOLD;
+    }
+
+    public int getMaxPipelineDepth() {
+        return MAX_PIPELINE_DEPTH;
+    }
+
+    public int getMaxQueueSize() {
+        return MAX_QUEUE_SIZE;
+    }
+
+    public int getMaxQueueTime() {
+        return MAX_QUEUE_TIME;
+    }
+
+    public int getRetryAfter() {
+        return RETRY_AFTER;
+    }
+
+    public int getHeaderTimeout() {
+        return HEADER_TIMEOUT;
+    }
+
+    public int getBodyTimeout() {
+        return BODY_TIMEOUT;
+    }
+
+    public int getWriteTimeout() {
+        return WRITE_TIMEOUT;
+    }
+
+    public int getFileIndexSize() {
+        return FILE_INDEX_SIZE;
+    }
+
+    public int getIoThreads() {
+        return IO_THREADS > 0 ? IO_THREADS : Runtime.getRuntime().availableProcessors();
+    }
+
+    public boolean getReusePort() {
+        return REUSE_PORT;
+    }
+
+    public boolean getHttp2() {
+        return HTTP2;
+    }
+
+    public int getHttp2MaxStreams() {
+        return HTTP2_MAX_STREAMS;
+    }
+
+    public int getHttp2MaxConnections() {
+        return HTTP2_MAX_CONNECTIONS;
+    }
+
+    public int getMaxFormFields() {
+        return MAX_FORM_FIELDS;
+    }
+
+    public int getMaxFormFieldSize() {
+        return MAX_FORM_FIELD_SIZE;
+    }
+
+    public long getBufferPoolSize() {
+        return BUFFER_POOL_SIZE;
+    }
+
+    public boolean getBufferLeakDetection() {
+        return BUFFER_LEAK_DETECTION;
+    }
+
     public String getRootPathString() {
         // No idea why you'd use this, but putting it here.
         return ROOT_PATH_STRING;
@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+
+// Watches config.ini and has WebServer reload it whenever it's saved, so settings
+// can be tuned on a running server instead of restarting it. The watch is on the
+// directory, since editors often save by writing a new file and renaming it over
+// the old one.
+public class ConfigWatcher {
+    // Saving can take more than one write - wait for it to settle before reading.
+    private static final int SETTLE = 200; // Milliseconds.
+
+    private final Path file;
+    private final WatchService watcher;
+    private byte[] applied; // What the file held when we last read it.
+
+    private ConfigWatcher(Path file, WatchService watcher) throws IOException {
+        this.file = file;
+        this.watcher = watcher;
+        this.applied = Files.readAllBytes(file);
+    }
+
+    static void start(String path) {
+        Path file = Paths.get(path).toAbsolutePath();
+        ConfigWatcher configWatcher;
+        try {
+            WatchService watcher = file.getFileSystem().newWatchService();
+            file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            configWatcher = new ConfigWatcher(file, watcher);
+        } catch (IOException e) {
+            Log.warn("Can't watch config.ini for changes, edits will need a restart: {}", e);
+            return;
+        }
+        Thread thread = new Thread(configWatcher::watch, "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Runs on its own thread for as long as the server does.
+    private void watch() {
+        while (true) {
+            try {
+                WatchKey key = watcher.take();
+                boolean ours = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    ours |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                            || file.getFileName().equals(event.context());
+                }
+                key.reset();
+                if (!ours) {
+                    continue; // Something else in the same directory.
+                }
+                Thread.sleep(SETTLE);
+                // The rest of the save made events of its own - they're covered by this reload.
+                WatchKey more;
+                while ((more = watcher.poll()) != null) {
+                    more.pollEvents();
+                    more.reset();
+                }
+                reload();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+        }
+    }
+
+    private void reload() {
+        byte[] contents;
+        try {
+            contents = Files.readAllBytes(file);
+        } catch (IOException e) {
+            return; // Moved away mid-save - the file that replaces it brings its own event.
+        }
+        if (Arrays.equals(contents, applied)) {
+            return; // Touched, or saved without changes.
+        }
+        applied = contents;
+        WebServer.reloadConfig(file.toString());
+    }
+}
@@ -0,0 +1,76 @@
+// The deadline a connection is currently working against, kept on the shared
+// TimerWheel. Each phase has its own limit from config.ini: IDLE (waiting for the
+// next request, keepAliveTimeout), HEADER (first byte of a head to its end),
+// BODY (end of the head to the end of the body) and WRITE (one response going
+// out). Moving to a new phase swaps the deadline; staying in the same phase
+// keeps the one that's already running, so trickling bytes in doesn't buy a
+// client more time. If it passes, onExpiry runs (on the wheel's thread) and
+// the connection is expected to close.
+public final class ConnectionDeadline {
+    enum Phase { NONE, IDLE, HEADER, BODY, WRITE }
+
+    private final Runnable onExpiry;
+    private Phase phase = Phase.NONE;
+    private TimerWheel.Timeout timeout;
+    private int generation; // Bumped on every phase change, so a stale timeout knows it's stale.
+    private boolean expired;
+
+    ConnectionDeadline(Runnable onExpiry) {
+        this.onExpiry = onExpiry;
+    }
+
+    // Synchronized because the wheel's thread checks the phase when it fires.
+    synchronized void enter(Phase next) {
+        if (next == phase || expired) {
+            return;
+        }
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+        phase = next;
+        int current = ++generation;
+        long limit = limit(next);
+        if (limit > 0) {
+            timeout = TimerWheel.SHARED.schedule(limit, () -> fire(next, current));
+        }
+    }
+
+    // Nothing to wait for - the server is the one doing the work (or the connection is gone).
+    void clear() {
+        enter(Phase.NONE);
+    }
+
+    synchronized boolean hasExpired() {
+        return expired;
+    }
+
+    private void fire(Phase due, int dueGeneration) {
+        synchronized (this) {
+            if (dueGeneration != generation || expired) {
+                return; // Moved on just as it went off.
+            }
+            expired = true;
+            timeout = null;
+        }
+        Metrics.TIMED_OUT.increment();
+        Log.debug("{} deadline passed, closing the connection.", due);
+        onExpiry.run();
+    }
+
+    private static long limit(Phase phase) {
+        ConfigValues config = WebServer.VALUES;
+        switch (phase) {
+            case IDLE:
+                return config.getKeepAliveTimeout();
+            case HEADER:
+                return config.getHeaderTimeout();
+            case BODY:
+                return config.getBodyTimeout();
+            case WRITE:
+                return config.getWriteTimeout();
+            default:
+                return 0;
+        }
+    }
+}
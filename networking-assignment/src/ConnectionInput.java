@@ -0,0 +1,214 @@
+import java.io.EOFException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+// A connection's input side: one reusable buffer in front of the socket stream.
+// Request heads are parsed in place inside the buffer, and whatever follows a
+// head (its body, or the next request) stays buffered for the reads after it.
+// Before any read that may block, beforeBlocking is flushed - responses held back
+// to be batched must be out before we sit waiting for the client. headStarted runs
+// once per head, as soon as its first bytes are here (for the header deadline).
+public class ConnectionInput extends InputStream {
+    private static final int INITIAL_SIZE = 8192;
+
+    // A line (chunk size or trailer) longer than the caller allows - the body's
+    // framing can't be trusted past it, so the connection gets a 431 and is closed.
+    static class LineTooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        LineTooLongException(String message) {
+            super(message);
+        }
+    }
+
+    private final InputStream in;
+    private final Flushable beforeBlocking;
+    private final Runnable headStarted;
+    private byte[] buffer = new byte[INITIAL_SIZE];
+    private int start = 0; // First unread byte.
+    private int end = 0; // One past the last buffered byte.
+
+    public ConnectionInput(InputStream in, Flushable beforeBlocking, Runnable headStarted) {
+        this.in = in;
+        this.beforeBlocking = beforeBlocking;
+        this.headStarted = headStarted;
+    }
+
+    // True if bytes past the last request are already here - the client pipelined.
+    public boolean hasBuffered() {
+        return start < end;
+    }
+
+    // Reads until parser has a complete head (or gives up on it). Returns null if
+    // the connection was closed cleanly before the next request started.
+    public RequestHeadParser.Result readHead(RequestHeadParser parser) throws IOException {
+        parser.reset();
+        boolean started = false;
+        while (true) {
+            if (!started && start < end) {
+                started = true;
+                headStarted.run();
+            }
+            RequestHeadParser.Result result = parser.parse(buffer, start, end);
+            if (result == RequestHeadParser.Result.DONE) {
+                start += parser.headLength();
+                return result;
+            }
+            if (result != RequestHeadParser.Result.NEED_MORE) {
+                return result;
+            }
+
+            if (end == buffer.length) {
+                if (start > 0) {
+                    // Slide the partial head to the front, the parser doesn't mind.
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    end -= start;
+                    start = 0;
+                } else {
+                    // The parser gives up past its limit, so this can't grow forever.
+                    byte[] bigger = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, bigger, 0, end);
+                    buffer = bigger;
+                }
+            }
+            beforeBlocking.flush();
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read == -1) {
+                if (onlyWhitespace()) {
+                    return null;
+                }
+                throw new IOException("Connection closed in the middle of a request.");
+            }
+            end += read;
+            Metrics.BYTES_IN.add(read);
+        }
+    }
+
+    private boolean onlyWhitespace() {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] != '\r' && buffer[i] != '\n') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Parses the next head if all of it is buffered already - never reads or waits.
+    // Nothing is consumed: skipHead() takes it, or readHead() parses it again later.
+    public boolean peekHead(RequestHeadParser parser) {
+        parser.reset();
+        return start < end && parser.parse(buffer, start, end) == RequestHeadParser.Result.DONE;
+    }
+
+    // Moves past the head peekHead() just found.
+    public void skipHead(RequestHeadParser parser) {
+        start += parser.headLength();
+    }
+
+    // The bytes of the head parsed last - only valid right after readHead().
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public int position() {
+        return start;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (start == end && !fill()) {
+            return -1;
+        }
+        return buffer[start++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (start == end) {
+            if (len >= buffer.length) {
+                // Big read with nothing buffered - skip the copy through our buffer.
+                beforeBlocking.flush();
+                int read = in.read(b, off, len);
+                if (read > 0) {
+                    Metrics.BYTES_IN.add(read);
+                }
+                return read;
+            }
+            if (!fill()) {
+                return -1;
+            }
+        }
+        int count = Math.min(len, end - start);
+        System.arraycopy(buffer, start, b, off, count);
+        start += count;
+        return count;
+    }
+
+    // Moves the next count bytes (a body, or a chunk of one) into sink straight out
+    // of our buffer, so reading a body needs no array of its own.
+    public void transferTo(RequestBody.Sink sink, long count) throws IOException {
+        while (count > 0) {
+            if (start == end && !fill()) {
+                throw new EOFException("Connection closed in the middle of a request body.");
+            }
+            int piece = (int) Math.min(count, end - start);
+            sink.write(buffer, start, piece);
+            start += piece;
+            count -= piece;
+        }
+    }
+
+    // Reads a CRLF-terminated line (a chunk size, a trailer), without the line ending.
+    // Returns null if the stream ended first. Usually the whole line is buffered
+    // already and becomes a String in one go. Throws LineTooLongException once the
+    // line runs past maxLength bytes without ending.
+    public String readLine(int maxLength) throws IOException {
+        StringBuilder line = null; // Only for a line split across reads.
+        int length = 0;
+        while (true) {
+            if (start == end && !fill()) {
+                return null;
+            }
+            int newline = start;
+            while (newline < end && buffer[newline] != '\n') {
+                newline++;
+            }
+            length += newline - start;
+            if (length > maxLength + 1) { // + 1 for the CR.
+                throw new LineTooLongException("Line over " + maxLength + " bytes in a chunked body.");
+            }
+            String piece = new String(buffer, start, newline - start, StandardCharsets.US_ASCII);
+            if (newline == end) {
+                start = end;
+                line = line == null ? new StringBuilder(piece) : line.append(piece);
+                continue;
+            }
+            start = newline + 1;
+            String result = line == null ? piece : line.append(piece).toString();
+            return result.endsWith("\r") ? result.substring(0, result.length() - 1) : result;
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (end - start) + in.available();
+    }
+
+    private boolean fill() throws IOException {
+        start = 0;
+        end = 0;
+        beforeBlocking.flush();
+        int read = in.read(buffer, 0, buffer.length);
+        if (read == -1) {
+            return false;
+        }
+        end = read;
+        Metrics.BYTES_IN.add(read);
+        return true;
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+// A connection's output side in the threaded server: writes collect in a direct
+// buffer borrowed from BufferPool and go out through the socket's channel when it
+// fills up or is flushed. The buffer is only held while there's something in it -
+// flush() gives it back, so a keep-alive connection waiting on its client holds
+// none. A write bigger than the buffer, with nothing collected ahead of it, goes
+// straight to the channel.
+public class ConnectionOutput extends OutputStream {
+    private final WritableByteChannel channel;
+    private ByteBuffer buffer; // Null while there's nothing to send.
+
+    public ConnectionOutput(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (buffer == null) {
+            buffer = BufferPool.take();
+        } else if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (buffer == null && length >= BufferPool.BUFFER_SIZE) {
+            writeFully(ByteBuffer.wrap(data, offset, length));
+            return;
+        }
+        while (length > 0) {
+            if (buffer == null) {
+                buffer = BufferPool.take();
+            } else if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int piece = Math.min(length, buffer.remaining());
+            buffer.put(data, offset, piece);
+            offset += piece;
+            length -= piece;
+        }
+    }
+
+    // Sends what's collected and gives the buffer back.
+    @Override
+    public void flush() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        drain();
+        release();
+    }
+
+    // Gives the buffer back without sending what's in it - for when the connection
+    // is done, or broken. Writing afterwards borrows a new one.
+    public void release() {
+        BufferPool.give(buffer);
+        buffer = null;
+    }
+
+    // Writes out the buffer, leaving it empty for more.
+    private void drain() throws IOException {
+        buffer.flip();
+        try {
+            writeFully(buffer);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private void writeFully(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data); // Blocking channel, so it takes at least some every time.
+        }
+    }
+}
@@ -0,0 +1,108 @@
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Keeps finished responses (header + body bytes) for static files in memory,
+// so hot files are served without reading the disk. Bounded by a byte budget,
+// least recently used entries go first. An entry is thrown away as soon as the
+// file's last-modified time or size no longer matches what we cached.
+public class ContentCache {
+
+    // One cached response, plus what the file looked like when we read it.
+    static class Entry {
+        final byte[] headers;
+        final byte[] content;
+        final long lastModified;
+        final long size;
+
+        Entry(byte[] headers, byte[] content, long lastModified, long size) {
+            this.headers = headers;
+            this.content = content;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+
+        long weight() {
+            return headers.length + content.length;
+        }
+    }
+
+    private volatile long maxBytes; // Can change when config.ini is reloaded.
+    private long usedBytes = 0;
+    // accessOrder = true turns the LinkedHashMap into an LRU list.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    public ContentCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    // Keys are the resolved file path plus the status line, since the same file
+    // can be sent as a 200 or as an error page, plus the content encoding (or null).
+    static String keyFor(RequestParser.ResponseType response, Path path, String encoding) {
+        return response.name() + " " + encoding + " " + path;
+    }
+
+    // Returns the cached entry if it still matches the file on disk, else null.
+    public synchronized Entry get(String key, BasicFileAttributes attributes) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.lastModified != attributes.lastModifiedTime().toMillis() || entry.size != attributes.size()) {
+            // File changed under us - drop the stale copy.
+            entries.remove(key);
+            usedBytes -= entry.weight();
+            return null;
+        }
+        return entry;
+    }
+
+    public void put(String key, Entry entry) {
+        // A single huge file would just push everything else out, so don't bother.
+        if (!isEnabled() || entry.weight() > maxBytes / 4) {
+            return;
+        }
+        synchronized (this) {
+            Entry old = entries.put(key, entry);
+            if (old != null) {
+                usedBytes -= old.weight();
+            }
+            usedBytes += entry.weight();
+            evict();
+        }
+    }
+
+    // A new budget - if it's smaller, the least recently used entries go until we fit.
+    public synchronized void resize(long newMaxBytes) {
+        maxBytes = newMaxBytes;
+        evict();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (usedBytes > maxBytes && eldest.hasNext()) {
+            Entry evicted = eldest.next().getValue();
+            eldest.remove();
+            usedBytes -= evicted.weight();
+        }
+    }
+
+    public synchronized long usedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
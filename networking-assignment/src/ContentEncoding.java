@@ -0,0 +1,68 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Picks and applies a Content-Encoding (gzip or deflate) for a response.
+// Compressed bodies end up in the ContentCache, so each version of a file is
+// compressed once, not once per request.
+public class ContentEncoding {
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    // Picks the encoding to use from the client's Accept-Encoding header, or null
+    // for none. The one with the higher q-value wins, gzip on a tie. "q=0" means
+    // "never send me this", and "*" only covers codings the header doesn't name.
+    static String choose(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        // -1 until named. A coding named twice gets the better of its q-values.
+        double gzip = -1;
+        double deflate = -1;
+        double any = -1;
+        for (String token : acceptEncoding.split(",")) {
+            String[] parts = token.trim().split(";");
+            String name = parts[0].trim().toLowerCase(Locale.ROOT);
+            double q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (name.equals(GZIP) || name.equals("x-gzip")) {
+                gzip = Math.max(gzip, q);
+            } else if (name.equals(DEFLATE)) {
+                deflate = Math.max(deflate, q);
+            } else if (name.equals("*")) {
+                any = Math.max(any, q);
+            }
+        }
+        if (gzip == -1) {
+            gzip = any;
+        }
+        if (deflate == -1) {
+            deflate = any;
+        }
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    static byte[] compress(byte[] data, String encoding) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length / 2 + 64);
+        // "deflate" in HTTP means the zlib format, which is DeflaterOutputStream's default.
+        try (DeflaterOutputStream out = encoding.equals(GZIP)
+                ? new GZIPOutputStream(buffer) : new DeflaterOutputStream(buffer)) {
+            out.write(data);
+        }
+        return buffer.toByteArray();
+    }
+}
@@ -0,0 +1,320 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+// What's in the web root, kept in memory so serving a file doesn't start with
+// path juggling and a couple of stat calls. The root is walked once at startup
+// and a WatchService keeps it current after that. Request paths map straight to
+// the file and what its response head needs - including "there's no such file",
+// so a path that keeps getting 404s doesn't keep hitting the disk either.
+//
+// Two maps: files has every file under the root by its plain path ("/images/a.jpg")
+// and is patched one file at a time as the watcher reports changes. learned has
+// whatever else requests asked for - other spellings of a path ("/", "/a/../b.html"),
+// and paths that don't exist - and is simply dropped whenever anything changes.
+public class FileIndex {
+
+    // One file, as it was when we last looked.
+    static final class Entry {
+        final String key; // The plain request path for it.
+        final Path path;
+        final BasicFileAttributes attributes;
+        final RequestParser.ContentType contentType;
+        final String etag; // For the file as-is, without a content-encoding.
+        final String lastModifiedDate; // As an HTTP date, the way If-Range sends it.
+        // Heads for the file as-is, built the first time they're needed.
+        private volatile byte[] okHead;
+        private volatile byte[] notModifiedHead;
+
+        Entry(String key, Path path, BasicFileAttributes attributes) {
+            this.key = key;
+            this.path = path;
+            this.attributes = attributes;
+            this.contentType = contentTypeOf(key);
+            this.etag = RequestParser.etagFor(attributes, null);
+            this.lastModifiedDate = RequestParser.HTTP_DATE.format(attributes.lastModifiedTime().toInstant());
+        }
+
+        private Entry() { // MISSING
+            this.key = null;
+            this.path = null;
+            this.attributes = null;
+            this.contentType = null;
+            this.etag = null;
+            this.lastModifiedDate = null;
+        }
+
+        // "200 OK" with type, length, validators (and vary, if it could have been compressed).
+        byte[] okHead() {
+            byte[] head = okHead;
+            if (head == null) {
+                head = HeaderBytes.ascii(RequestParser.encodingHeaders(
+                        RequestParser.basicHeaderFormat(RequestParser.ResponseType.OK, contentType, attributes.size())
+                                + validators(),
+                        null, negotiable()));
+                okHead = head;
+            }
+            return head;
+        }
+
+        byte[] notModifiedHead() {
+            byte[] head = notModifiedHead;
+            if (head == null) {
+                head = HeaderBytes.ascii(RequestParser.encodingHeaders(
+                        RequestParser.basicHeaderFormat(RequestParser.ResponseType.NotModified, null, 0)
+                                + validators(),
+                        null, negotiable()));
+                notModifiedHead = head;
+            }
+            return head;
+        }
+
+        // Worth offering compressed - see RequestParser.fileResponse.
+        boolean negotiable() {
+            return contentType.compressible && attributes.size() >= RequestParser.CONFIG.getCompressionMinSize();
+        }
+
+        private String validators() {
+            return RequestParser.validatorHeaders(etag, attributes.lastModifiedTime().toMillis());
+        }
+    }
+
+    // Cached answer for a path that isn't a file we can serve.
+    private static final Entry MISSING = new Entry();
+
+    private final Path root;
+    private final int limit;
+    private final ConcurrentHashMap<String, Entry> files = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Entry> learned = new ConcurrentHashMap<>();
+    // Bumped (under the lock) on every change, so a lookup that raced with one
+    // doesn't put what it saw before the change into learned afterwards.
+    private long version;
+    private volatile boolean enabled;
+    private WatchService watcher;
+
+    // limit caps each map; 0 turns the index off and every lookup goes to the disk.
+    FileIndex(Path root, int limit) {
+        this.root = root;
+        this.limit = limit;
+        if (limit <= 0) {
+            return;
+        }
+        try {
+            watcher = root.getFileSystem().newWatchService();
+            add(root);
+        } catch (IOException e) {
+            Log.warn("Can't watch the web root for changes, serving files without the index: {}", e);
+            close();
+            return;
+        }
+        enabled = true;
+        Thread thread = new Thread(this::watch, "file-index");
+        thread.setDaemon(true);
+        thread.start();
+        Log.info("Indexed {} files in the web root.", files.size());
+    }
+
+    // The file a request path names, or null if it doesn't name one (missing, or a
+    // directory). Paths that escape the root throw SecurityException, as in sanitizePath.
+    Entry lookup(String requestPath) {
+        Entry entry = files.get(requestPath);
+        if (entry == null) {
+            entry = learned.get(requestPath);
+            if (entry == null) {
+                entry = learn(requestPath);
+            }
+        }
+        return entry == MISSING ? null : entry;
+    }
+
+    // "file.html.gz" next to the file, if there is one at least as new as it.
+    // Lets us serve gzip without compressing anything ourselves.
+    Entry precompressed(Entry entry) {
+        Entry sibling = lookup(entry.key + ".gz");
+        if (sibling != null
+                && sibling.attributes.lastModifiedTime().compareTo(entry.attributes.lastModifiedTime()) >= 0) {
+            return sibling;
+        }
+        return null;
+    }
+
+    // The settings the heads are built from changed (cacheMaxAge, compressionMinSize) -
+    // start every entry over, so its heads are built again with the new ones.
+    void refreshHeads() {
+        files.replaceAll((key, entry) -> new Entry(entry.key, entry.path, entry.attributes));
+        changed();
+    }
+
+    void close() {
+        enabled = false;
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                // Nothing useful to do about it.
+            }
+        }
+    }
+
+    // Not in either map - ask the disk, and remember the answer.
+    private Entry learn(String requestPath) {
+        long seen;
+        synchronized (this) {
+            seen = version;
+        }
+        Path path = root.resolve(RequestParser.sanitizePath(requestPath));
+        Entry entry;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            entry = attributes.isDirectory() ? MISSING : new Entry(keyOf(path), path, attributes);
+        } catch (IOException e) {
+            entry = MISSING; // Not there, or not something we can read - either way a 404.
+        }
+        if (enabled) {
+            synchronized (this) {
+                if (version == seen) {
+                    if (learned.size() >= limit) {
+                        learned.clear(); // Someone's trying lots of paths - start over rather than grow.
+                    }
+                    learned.put(requestPath, entry);
+                }
+            }
+        }
+        return entry;
+    }
+
+    private synchronized void changed() {
+        version++;
+        learned.clear();
+    }
+
+    private String keyOf(Path path) {
+        String relative = root.relativize(path).toString();
+        if (path.getFileSystem().getSeparator().equals("\\")) {
+            relative = relative.replace('\\', '/');
+        }
+        return "/" + relative;
+    }
+
+    // Indexes everything under start and watches every directory in it.
+    private void add(Path start) throws IOException {
+        Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes)
+                            throws IOException {
+                        dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                        // Past the limit files are still served, they're just looked up as they're asked for.
+                        if (files.size() < limit) {
+                            String key = keyOf(file);
+                            files.put(key, new Entry(key, file, attributes));
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                        if (e instanceof FileSystemLoopException || e instanceof NoSuchFileException) {
+                            return FileVisitResult.CONTINUE; // Symlink loop, or gone while we walked.
+                        }
+                        throw e;
+                    }
+                });
+    }
+
+    // Runs on its own thread for as long as the server does.
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            try {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Too much changed at once for the watcher to tell us what - start over.
+                        files.clear();
+                        add(root);
+                    } else {
+                        update(dir.resolve((Path) event.context()),
+                                event.kind() == StandardWatchEventKinds.ENTRY_CREATE);
+                    }
+                }
+                if (!key.reset()) {
+                    remove(keyOf(dir)); // The directory itself is gone.
+                }
+            } catch (IOException e) {
+                // Most likely out of inotify watches. We can't trust what we have any more.
+                Log.warn("Lost track of changes in the web root, serving files without the index: {}", e);
+                close();
+            }
+            changed();
+            if (!enabled) {
+                files.clear();
+                return;
+            }
+        }
+    }
+
+    // Something happened to path - look at it again.
+    private void update(Path path, boolean created) throws IOException {
+        String key = keyOf(path);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            remove(key); // Deleted or moved away.
+            return;
+        }
+        if (attributes.isDirectory()) {
+            if (created) {
+                add(path); // Could have been moved in with files already in it.
+            }
+        } else if (files.size() < limit || files.containsKey(key)) {
+            files.put(key, new Entry(key, path, attributes));
+        }
+    }
+
+    private void remove(String key) {
+        if (files.remove(key) == null) {
+            // Not a file - maybe a directory, so take everything that was under it too.
+            String prefix = key + "/";
+            files.keySet().removeIf(path -> path.startsWith(prefix));
+        }
+    }
+
+    static RequestParser.ContentType contentTypeOf(String path) {
+        if (path.endsWith(".ico")) {
+            return RequestParser.ContentType.Icon;
+        }
+        if (path.endsWith(".bmp") || path.endsWith(".gif") || path.endsWith(".png") || path.endsWith(".jpg")) {
+            return RequestParser.ContentType.Image;
+        }
+        if (path.endsWith(".html")) {
+            return RequestParser.ContentType.Text;
+        }
+        return RequestParser.ContentType.Stream;
+    }
+}
@@ -0,0 +1,390 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// Reads a form POST (application/x-www-form-urlencoded or multipart/form-data) off a
+// RequestBody a buffer at a time, so the body never has to be in memory as a whole.
+// Names and values are percent-decoded into one reusable byte buffer and only made
+// into Strings once they're complete. File parts of a multipart body go into a
+// RequestBody.Sink of their own - to disk past bodySpillThreshold, same as a request
+// body. maxFormFields and maxFormFieldSize (config.ini) cap how many fields a form
+// may have and how big each non-file field may get.
+public class FormParser {
+    private static final int READ_SIZE = 8192;
+    private static final int MAX_PART_HEAD = 8192; // A part's headers - its name and type, really.
+
+    // The form broke a limit (413), or isn't valid (400).
+    static class FormException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final boolean tooLarge;
+
+        FormException(String message, boolean tooLarge) {
+            super(message);
+            this.tooLarge = tooLarge;
+        }
+    }
+
+    // One field. For file parts, file has the contents and value is empty.
+    static final class Field {
+        final String name;
+        final String value;
+        final String filename; // Null unless it's a file.
+        final String contentType;
+        final RequestBody file;
+
+        Field(String name, String value, String filename, String contentType, RequestBody file) {
+            this.name = name;
+            this.value = value;
+            this.filename = filename;
+            this.contentType = contentType;
+            this.file = file;
+        }
+    }
+
+    // Everything a form sent, in order. Closing it deletes any files spilled to disk.
+    static final class Form implements Closeable {
+        final List<Field> fields = new ArrayList<>();
+
+        @Override
+        public void close() {
+            for (Field field : fields) {
+                if (field.file != null) {
+                    field.file.close();
+                }
+            }
+        }
+    }
+
+    private final ConfigValues config;
+    private final int maxFields;
+    private final int maxFieldSize;
+    private final Form form = new Form();
+    private InputStream in;
+    private byte[] buffer = new byte[READ_SIZE];
+    private int start; // First unread byte.
+    private int end; // One past the last byte read.
+    // The name or value being decoded.
+    private byte[] field = new byte[64];
+    private int fieldLength;
+
+    private FormParser(ConfigValues config) {
+        this.config = config;
+        this.maxFields = config.getMaxFormFields();
+        this.maxFieldSize = config.getMaxFormFieldSize();
+    }
+
+    // Parses body according to contentType. Anything that isn't multipart is read as
+    // urlencoded, which is what browsers and curl -d send. The caller closes the Form.
+    static Form parse(RequestBody body, String contentType, ConfigValues config) throws IOException {
+        FormParser parser = new FormParser(config);
+        if (body == null) {
+            return parser.form;
+        }
+        try (InputStream in = body.openStream()) {
+            parser.in = in;
+            String boundary = contentType == null ? null : boundaryOf(contentType);
+            if (boundary != null) {
+                parser.multipart(boundary);
+            } else {
+                parser.urlencoded();
+            }
+            return parser.form;
+        } catch (IOException | RuntimeException e) {
+            parser.form.close();
+            throw e;
+        }
+    }
+
+    // The boundary parameter of a multipart/form-data type, or null if it isn't one.
+    private static String boundaryOf(String contentType) {
+        String[] params = contentType.split(";");
+        if (!params[0].trim().equalsIgnoreCase("multipart/form-data")) {
+            return null;
+        }
+        for (int i = 1; i < params.length; i++) {
+            String param = params[i].trim();
+            if (param.toLowerCase(Locale.ROOT).startsWith("boundary=")) {
+                return unquote(param.substring(9));
+            }
+        }
+        return null;
+    }
+
+    // name=value&name=value, percent-encoded, "+" for space.
+    private void urlencoded() throws IOException {
+        String name = null;
+        int escape = -1; // Digits of a %XX seen so far, -1 when not in one.
+        byte high = 0;
+        while (fill()) {
+            for (; start < end; start++) {
+                byte b = buffer[start];
+                if (escape >= 0) {
+                    int digit = Character.digit(b, 16);
+                    if (digit < 0) {
+                        // Not an escape after all - keep what we skipped as it was.
+                        append((byte) '%');
+                        if (escape == 1) {
+                            append(high);
+                        }
+                        escape = -1;
+                    } else if (escape == 0) {
+                        high = b;
+                        escape = 1;
+                        continue;
+                    } else {
+                        append((byte) (Character.digit(high, 16) << 4 | digit));
+                        escape = -1;
+                        continue;
+                    }
+                }
+                if (b == '&') {
+                    endPair(name);
+                    name = null;
+                } else if (b == '=' && name == null) {
+                    name = take();
+                } else if (b == '%') {
+                    escape = 0;
+                } else if (b == '+') {
+                    append((byte) ' ');
+                } else if (b != '\r' && b != '\n') { // Line breaks can't be in a urlencoded form - drop them.
+                    append(b);
+                }
+            }
+        }
+        if (escape >= 0) {
+            append((byte) '%');
+            if (escape == 1) {
+                append(high);
+            }
+        }
+        endPair(name);
+    }
+
+    // One name=value is done (name is null if there was no "=").
+    private void endPair(String name) throws FormException {
+        if (name == null) {
+            if (fieldLength == 0) {
+                return; // "a=1&&b=2" - nothing between the two.
+            }
+            name = take();
+        }
+        addField(new Field(name, take(), null, null, null));
+    }
+
+    private void multipart(String boundary) throws IOException {
+        if (boundary.isEmpty() || boundary.length() > 70) {
+            throw new FormException("Bad multipart boundary", false);
+        }
+        // A part ends at CRLF "--" boundary. The first one has no CRLF in front,
+        // so one is made up ahead of the body.
+        byte[] delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        end = 2;
+        skipTo(delimiter, null); // The preamble, if any.
+        while (true) {
+            if (!ensure(2)) {
+                throw new FormException("Multipart body ends after a boundary", false);
+            }
+            if (buffer[start] == '-' && buffer[start + 1] == '-') {
+                return; // The last boundary - whatever follows is ignored.
+            }
+            String head = readPartHead();
+            String disposition = headerValue(head, "content-disposition");
+            String name = disposition == null ? null : parameter(disposition, "name");
+            if (name == null) {
+                throw new FormException("Multipart part without a form-data name", false);
+            }
+            String filename = parameter(disposition, "filename");
+            String contentType = headerValue(head, "content-type");
+            if (form.fields.size() >= maxFields) {
+                throw new FormException("More than " + maxFields + " form fields", true);
+            }
+            if (filename != null) {
+                RequestBody.Sink sink = new RequestBody.Sink(config.getMaxBodySize(), config.getBodySpillThreshold(),
+                        -1);
+                try {
+                    skipTo(delimiter, sink);
+                } catch (IOException e) {
+                    sink.abort();
+                    throw e;
+                }
+                addField(new Field(name, "", filename, contentType == null ? "text/plain" : contentType,
+                        sink.finish()));
+            } else {
+                skipTo(delimiter, null, true);
+                addField(new Field(name, take(), null, contentType, null));
+            }
+        }
+    }
+
+    private void skipTo(byte[] delimiter, RequestBody.Sink sink) throws IOException {
+        skipTo(delimiter, sink, false);
+    }
+
+    // Moves past the next delimiter. What comes before it goes to sink, or into the
+    // field buffer if keep is set, or nowhere.
+    private void skipTo(byte[] delimiter, RequestBody.Sink sink, boolean keep) throws IOException {
+        while (true) {
+            int at = indexOf(buffer, start, end, delimiter);
+            // Bytes that can't be the start of a delimiter split across reads are safe to hand on.
+            int safe = at >= 0 ? at : Math.max(start, end - delimiter.length + 1);
+            if (sink != null) {
+                sink.write(buffer, start, safe - start);
+            } else if (keep) {
+                for (int i = start; i < safe; i++) {
+                    append(buffer[i]);
+                }
+            }
+            start = safe;
+            if (at >= 0) {
+                start += delimiter.length;
+                return;
+            }
+            if (!fill()) {
+                throw new FormException("Multipart body ends inside a part", false);
+            }
+        }
+    }
+
+    // The headers of a part, after the boundary line (which may end with some
+    // whitespace). Returns them as text, one per line.
+    private String readPartHead() throws IOException {
+        int lineEnd;
+        while ((lineEnd = indexOf(buffer, start, end, CRLF)) < 0) {
+            if (end - start > MAX_PART_HEAD || !fill()) {
+                throw new FormException("Bad multipart boundary line", false);
+            }
+        }
+        for (int i = start; i < lineEnd; i++) {
+            if (buffer[i] != ' ' && buffer[i] != '\t') {
+                throw new FormException("Bad multipart boundary line", false);
+            }
+        }
+        start = lineEnd + 2;
+        int headEnd;
+        if (ensure(2) && buffer[start] == '\r' && buffer[start + 1] == '\n') {
+            headEnd = start; // No headers at all.
+        } else {
+            while ((headEnd = indexOf(buffer, start, end, HEAD_END)) < 0) {
+                if (end - start > MAX_PART_HEAD || !fill()) {
+                    throw new FormException("Multipart part headers too long or cut short", false);
+                }
+            }
+            headEnd += 2;
+        }
+        // Headers are ASCII, except maybe filenames - those are sent as UTF-8.
+        String head = new String(buffer, start, headEnd - start, StandardCharsets.UTF_8);
+        start = headEnd + 2;
+        return head;
+    }
+
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] HEAD_END = { '\r', '\n', '\r', '\n' };
+
+    private static String headerValue(String head, String name) {
+        for (String line : head.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name)) {
+                return line.substring(colon + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    // name="value" (or name=value) out of a header like content-disposition.
+    private static String parameter(String header, String name) {
+        for (String param : header.split(";")) {
+            int equals = param.indexOf('=');
+            if (equals > 0 && param.substring(0, equals).trim().equalsIgnoreCase(name)) {
+                return unquote(param.substring(equals + 1).trim());
+            }
+        }
+        return null;
+    }
+
+    private static String unquote(String value) {
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            return value.substring(1, value.length() - 1).replace("\\\"", "\"").replace("\\\\", "\\");
+        }
+        return value;
+    }
+
+    private void addField(Field added) throws FormException {
+        if (form.fields.size() >= maxFields) {
+            if (added.file != null) {
+                added.file.close();
+            }
+            throw new FormException("More than " + maxFields + " form fields", true);
+        }
+        form.fields.add(added);
+    }
+
+    private void append(byte b) throws FormException {
+        if (fieldLength == field.length) {
+            if (fieldLength >= maxFieldSize) {
+                throw new FormException("Form field over " + maxFieldSize + " bytes", true);
+            }
+            field = Arrays.copyOf(field, Math.min(field.length * 2, maxFieldSize));
+        }
+        field[fieldLength++] = b;
+    }
+
+    // The decoded name or value, and the buffer is ready for the next one.
+    private String take() {
+        String text = new String(field, 0, fieldLength, StandardCharsets.UTF_8);
+        fieldLength = 0;
+        return text;
+    }
+
+    // Reads more of the body in behind what's unread. False at the end of the body.
+    private boolean fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        if (end == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2); // Only while looking for the end of a part head.
+        }
+        int read = in.read(buffer, end, buffer.length - end);
+        if (read <= 0) {
+            return false;
+        }
+        end += read;
+        return true;
+    }
+
+    // At least count unread bytes, if the body has them.
+    private boolean ensure(int count) throws IOException {
+        while (end - start < count) {
+            if (!fill()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] data, int from, int to, byte[] pattern) {
+        byte first = pattern[0];
+        outer:
+        for (int i = from; i <= to - pattern.length; i++) {
+            if (data[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
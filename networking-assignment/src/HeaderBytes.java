@@ -0,0 +1,84 @@
+import java.nio.charset.StandardCharsets;
+
+// Byte-level building blocks for response heads. Status lines and content-type
+// lines are precomputed once per ResponseType / ContentType (see RequestParser),
+// so building a head is a few array copies plus writing the length digits.
+public class HeaderBytes {
+    static final byte[] CRLF = ascii(RequestParser.CRLF);
+    static final byte[] CONTENT_LENGTH = ascii("content-length: ");
+    static final byte[] CONNECTION_CLOSE = ascii("connection: close" + RequestParser.CRLF);
+    static final byte[] TRANSFER_ENCODING_CHUNKED = ascii("transfer-encoding: chunked" + RequestParser.CRLF);
+
+    static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // Copies source into dest at pos, returns the position after it.
+    static int put(byte[] dest, int pos, byte[] source) {
+        System.arraycopy(source, 0, dest, pos, source.length);
+        return pos + source.length;
+    }
+
+    // Number of digits value takes in decimal (value >= 0).
+    static int decimalLength(long value) {
+        int length = 1;
+        while (value >= 10) {
+            value /= 10;
+            length++;
+        }
+        return length;
+    }
+
+    // Writes value's decimal digits straight into dest - no String in between.
+    // Returns the position after the last digit.
+    static int putDecimal(byte[] dest, int pos, long value) {
+        int end = pos + decimalLength(value);
+        for (int i = end - 1; i >= pos; i--) {
+            dest[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return end;
+    }
+
+    // One "name: value\r\n" line where the value is a number, e.g. content-length.
+    static byte[] numberLine(byte[] prefix, long value) {
+        byte[] line = new byte[prefix.length + decimalLength(value) + CRLF.length];
+        int pos = put(line, 0, prefix);
+        pos = putDecimal(line, pos, value);
+        put(line, pos, CRLF);
+        return line;
+    }
+
+    // A copy of head without the line starting with prefix (e.g. CONTENT_LENGTH).
+    // Heads are often shared, so they're never edited in place.
+    static byte[] withoutLine(byte[] head, byte[] prefix) {
+        int lineStart = 0;
+        while (lineStart < head.length) {
+            int lineEnd = lineStart;
+            while (lineEnd < head.length && head[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            lineEnd = Math.min(lineEnd + 1, head.length);
+            if (startsWith(head, lineStart, prefix)) {
+                byte[] result = new byte[head.length - (lineEnd - lineStart)];
+                System.arraycopy(head, 0, result, 0, lineStart);
+                System.arraycopy(head, lineEnd, result, lineStart, head.length - lineEnd);
+                return result;
+            }
+            lineStart = lineEnd;
+        }
+        return head;
+    }
+
+    private static boolean startsWith(byte[] bytes, int offset, byte[] prefix) {
+        if (bytes.length - offset < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
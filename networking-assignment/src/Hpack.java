@@ -0,0 +1,446 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+// HPACK (RFC 7541), the header compression HTTP/2 uses. Both sides keep the
+// same table of recently sent header fields, so a field that's been sent once
+// can be sent again as a one-byte index. Each direction of a connection has its
+// own table: the Decoder reads the client's header blocks, the Encoder writes ours.
+// Neither is thread-safe - blocks have to be decoded/encoded in the order they're
+// sent on the wire (see Http2Connection).
+public class Hpack {
+    // The table size both sides start with (SETTINGS_HEADER_TABLE_SIZE). We never
+    // ask the client for more, and never use more for our own table either.
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    // Anything wrong with a header block - the connection can't go on after this,
+    // since the two sides no longer agree on what's in the table.
+    static class DecodingException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        DecodingException(String message) {
+            super(message);
+        }
+    }
+
+    // Fields with an index of their own, 1 to 61 (Appendix A).
+    private static final String[][] STATIC_TABLE = {
+            { ":authority", "" },
+            { ":method", "GET" },
+            { ":method", "POST" },
+            { ":path", "/" },
+            { ":path", "/index.html" },
+            { ":scheme", "http" },
+            { ":scheme", "https" },
+            { ":status", "200" },
+            { ":status", "204" },
+            { ":status", "206" },
+            { ":status", "304" },
+            { ":status", "400" },
+            { ":status", "404" },
+            { ":status", "500" },
+            { "accept-charset", "" },
+            { "accept-encoding", "gzip, deflate" },
+            { "accept-language", "" },
+            { "accept-ranges", "" },
+            { "accept", "" },
+            { "access-control-allow-origin", "" },
+            { "age", "" },
+            { "allow", "" },
+            { "authorization", "" },
+            { "cache-control", "" },
+            { "content-disposition", "" },
+            { "content-encoding", "" },
+            { "content-language", "" },
+            { "content-length", "" },
+            { "content-location", "" },
+            { "content-range", "" },
+            { "content-type", "" },
+            { "cookie", "" },
+            { "date", "" },
+            { "etag", "" },
+            { "expect", "" },
+            { "expires", "" },
+            { "from", "" },
+            { "host", "" },
+            { "if-match", "" },
+            { "if-modified-since", "" },
+            { "if-none-match", "" },
+            { "if-range", "" },
+            { "if-unmodified-since", "" },
+            { "last-modified", "" },
+            { "link", "" },
+            { "location", "" },
+            { "max-forwards", "" },
+            { "proxy-authenticate", "" },
+            { "proxy-authorization", "" },
+            { "range", "" },
+            { "referer", "" },
+            { "refresh", "" },
+            { "retry-after", "" },
+            { "server", "" },
+            { "set-cookie", "" },
+            { "strict-transport-security", "" },
+            { "transfer-encoding", "" },
+            { "user-agent", "" },
+            { "vary", "" },
+            { "via", "" },
+            { "www-authenticate", "" }
+    };
+    private static final HashMap<String, Integer> STATIC_FIELDS = new HashMap<>(); // "name\0value" -> index
+    private static final HashMap<String, Integer> STATIC_NAMES = new HashMap<>(); // name -> first index
+
+    // The Huffman code for each octet, and its length in bits (Appendix B).
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb,
+            0xfffffec, 0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2,
+            0x3ffffffe, 0xffffff3, 0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8,
+            0xffffff9, 0xffffffa, 0xffffffb, 0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18, 0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b,
+            0x1c, 0x1d, 0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc, 0x1ffa, 0x21, 0x5d,
+            0x5e, 0x5f, 0x60, 0x61, 0x62, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x6b,
+            0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc,
+            0x3ffc, 0x22, 0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26, 0x27, 0x6, 0x74, 0x75,
+            0x28, 0x29, 0x2a, 0x7, 0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78, 0x79, 0x7a, 0x7b,
+            0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8,
+            0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc,
+            0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf, 0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0,
+            0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5,
+            0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb,
+            0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde, 0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0,
+            0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec, 0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2,
+            0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4,
+            0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1, 0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1,
+            0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec, 0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde,
+            0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0,
+            0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2, 0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9,
+            0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed, 0x1fffe6,
+            0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef,
+            0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4, 0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed,
+            0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed,
+            0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28,
+            30, 28, 28, 28, 28, 28, 28, 28, 28, 28, 6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8,
+            6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10, 13, 6, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6, 15, 5, 6, 5,
+            6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13,
+            28, 20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24,
+            23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24, 22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22,
+            24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23, 26,
+            26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27,
+            24, 21, 21, 26, 26, 28, 27, 27, 27, 20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24,
+            24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+    private static final int EOS = 256; // 30 bits of ones - padding is a prefix of it.
+    // The code tree, flattened: node * 2 + bit is the child to go to. A child >= 0 is
+    // another node, a child < 0 is a leaf for octet -child - 1. 0 (the root) is never a child.
+    private static final int[] HUFFMAN_TREE;
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+        }
+        int[] tree = new int[2 * 512];
+        int nodes = 1;
+        for (int symbol = 0; symbol <= EOS; symbol++) {
+            int code = symbol == EOS ? 0x3fffffff : HUFFMAN_CODES[symbol];
+            int length = symbol == EOS ? 30 : HUFFMAN_LENGTHS[symbol];
+            int node = 0;
+            for (int bit = length - 1; bit > 0; bit--) {
+                int slot = node * 2 + ((code >>> bit) & 1);
+                if (tree[slot] == 0) {
+                    tree[slot] = nodes++;
+                }
+                node = tree[slot];
+            }
+            tree[node * 2 + (code & 1)] = -symbol - 1;
+        }
+        HUFFMAN_TREE = tree;
+    }
+
+    private static int entrySize(String name, String value) {
+        return name.length() + value.length() + 32; // Octets, plus the overhead the spec counts.
+    }
+
+    // The dynamic part of the table: newest entry first, at index 62. Entries are
+    // evicted from the oldest end once the total size goes past maxSize.
+    private static final class Table {
+        private String[][] entries = new String[16][];
+        private int newest; // Slot of the newest entry.
+        private int count;
+        private int size;
+        int maxSize = DEFAULT_TABLE_SIZE;
+
+        String[] get(int index) { // 0 is the newest.
+            return entries[(newest + index) & (entries.length - 1)];
+        }
+
+        int count() {
+            return count;
+        }
+
+        void add(String name, String value) {
+            int needed = entrySize(name, value);
+            if (needed > maxSize) {
+                // Bigger than the whole table - adding it just empties the table.
+                count = 0;
+                size = 0;
+                return;
+            }
+            evictTo(maxSize - needed);
+            if (count == entries.length) {
+                String[][] bigger = new String[entries.length * 2][];
+                for (int i = 0; i < count; i++) {
+                    bigger[i] = get(i);
+                }
+                entries = bigger;
+                newest = 0;
+            }
+            newest = (newest - 1) & (entries.length - 1);
+            entries[newest] = new String[] { name, value };
+            count++;
+            size += needed;
+        }
+
+        void resize(int max) {
+            maxSize = max;
+            evictTo(max);
+        }
+
+        private void evictTo(int limit) {
+            while (size > limit) {
+                String[] oldest = get(count - 1);
+                entries[(newest + count - 1) & (entries.length - 1)] = null;
+                count--;
+                size -= entrySize(oldest[0], oldest[1]);
+            }
+        }
+    }
+
+    // Gets one decoded field at a time, in the order they were in the block.
+    interface FieldSink {
+        void field(String name, String value) throws IOException;
+    }
+
+    // Reads the header blocks the client sends.
+    static final class Decoder {
+        private final Table table = new Table();
+        private byte[] block;
+        private int pos;
+        private int end;
+
+        // Decodes one complete header block (HEADERS plus any CONTINUATIONs).
+        // Strings come back as ISO-8859-1, one char per octet, same as HTTP/1.1 heads.
+        void decode(byte[] data, int offset, int length, FieldSink sink) throws IOException {
+            block = data;
+            pos = offset;
+            end = offset + length;
+            boolean fieldsStarted = false;
+            while (pos < end) {
+                int b = block[pos] & 0xff;
+                if ((b & 0x80) != 0) { // Indexed field.
+                    String[] field = field(readInteger(7));
+                    sink.field(field[0], field[1]);
+                    fieldsStarted = true;
+                } else if ((b & 0xc0) == 0x40) { // Literal, added to the table.
+                    String[] field = literal(6);
+                    table.add(field[0], field[1]);
+                    sink.field(field[0], field[1]);
+                    fieldsStarted = true;
+                } else if ((b & 0xe0) == 0x20) { // Table size update - only allowed before the fields.
+                    int max = readInteger(5);
+                    if (fieldsStarted || max > DEFAULT_TABLE_SIZE) {
+                        throw new DecodingException("Bad dynamic table size update: " + max);
+                    }
+                    table.resize(max);
+                } else { // Literal, not added (0000xxxx) or never to be added (0001xxxx).
+                    String[] field = literal(4);
+                    sink.field(field[0], field[1]);
+                    fieldsStarted = true;
+                }
+            }
+            block = null;
+        }
+
+        private String[] literal(int prefix) throws IOException {
+            int index = readInteger(prefix);
+            String name = index == 0 ? readString() : field(index)[0];
+            return new String[] { name, readString() };
+        }
+
+        private String[] field(int index) throws IOException {
+            if (index >= 1 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+            int dynamic = index - STATIC_TABLE.length - 1;
+            if (index == 0 || dynamic >= table.count()) {
+                throw new DecodingException("No header table entry " + index);
+            }
+            return table.get(dynamic);
+        }
+
+        // Section 5.1: the low 'prefix' bits of the first octet, continued in 7-bit groups if they're all ones.
+        private int readInteger(int prefix) throws IOException {
+            int max = (1 << prefix) - 1;
+            int value = block[pos++] & max;
+            if (value < max) {
+                return value;
+            }
+            int shift = 0;
+            while (true) {
+                if (pos >= end) {
+                    throw new DecodingException("Header block ends inside an integer");
+                }
+                int b = block[pos++] & 0xff;
+                value += (b & 0x7f) << shift;
+                if (value < 0 || shift > 21) {
+                    throw new DecodingException("Integer too large in header block");
+                }
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+
+        private String readString() throws IOException {
+            if (pos >= end) {
+                throw new DecodingException("Header block ends before a string");
+            }
+            boolean huffman = (block[pos] & 0x80) != 0;
+            int length = readInteger(7);
+            if (length > end - pos) {
+                throw new DecodingException("String runs past the end of the header block");
+            }
+            String value = huffman ? huffmanDecode(block, pos, length)
+                    : new String(block, pos, length, StandardCharsets.ISO_8859_1);
+            pos += length;
+            return value;
+        }
+    }
+
+    private static String huffmanDecode(byte[] data, int offset, int length) throws IOException {
+        StringBuilder out = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        int depth = 0; // Bits read since the last complete symbol.
+        boolean allOnes = true; // ...and whether they were all ones, as padding has to be.
+        for (int i = offset; i < offset + length; i++) {
+            int b = data[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = (b >>> bit) & 1;
+                int next = HUFFMAN_TREE[node * 2 + one];
+                depth++;
+                allOnes &= one == 1;
+                if (next < 0) {
+                    int symbol = -next - 1;
+                    if (symbol == EOS) {
+                        throw new DecodingException("EOS inside a Huffman-coded string");
+                    }
+                    out.append((char) symbol);
+                    node = 0;
+                    depth = 0;
+                    allOnes = true;
+                } else {
+                    node = next;
+                }
+            }
+        }
+        if (depth > 7 || !allOnes) {
+            throw new DecodingException("Bad padding on a Huffman-coded string");
+        }
+        return out.toString();
+    }
+
+    // Writes our header blocks. Strings go out as-is - Huffman coding them would save
+    // a few bytes on the first response, and the table saves far more after that.
+    static final class Encoder {
+        private final Table table = new Table();
+        private int smallestSize = -1; // Smallest size the table had since the last block, if it changed.
+
+        // The client's SETTINGS_HEADER_TABLE_SIZE. We use at most that much of it -
+        // and at most the default, since a bigger table buys us little.
+        void setMaxTableSize(int clientMax) {
+            int max = Math.min(clientMax, DEFAULT_TABLE_SIZE);
+            if (max != table.maxSize) {
+                smallestSize = smallestSize == -1 ? max : Math.min(smallestSize, max);
+                table.resize(max);
+            }
+        }
+
+        // Call before the first field of every block.
+        void startBlock(ByteArrayOutputStream out) {
+            if (smallestSize != -1) {
+                // The client has to hear about a change before it sees a block that relies on it.
+                writeInteger(out, 0x20, 5, smallestSize);
+                if (smallestSize != table.maxSize) {
+                    writeInteger(out, 0x20, 5, table.maxSize);
+                }
+                smallestSize = -1;
+            }
+        }
+
+        // index: the field is likely to be sent again as it is, so it's worth a table entry.
+        void field(ByteArrayOutputStream out, String name, String value, boolean index) {
+            Integer exact = STATIC_FIELDS.get(name + '\0' + value);
+            if (exact != null) {
+                writeInteger(out, 0x80, 7, exact);
+                return;
+            }
+            int nameIndex = 0;
+            for (int i = 0; i < table.count(); i++) {
+                String[] entry = table.get(i);
+                if (entry[0].equals(name)) {
+                    if (entry[1].equals(value)) {
+                        writeInteger(out, 0x80, 7, STATIC_TABLE.length + 1 + i);
+                        return;
+                    }
+                    if (nameIndex == 0) {
+                        nameIndex = STATIC_TABLE.length + 1 + i;
+                    }
+                }
+            }
+            Integer staticName = STATIC_NAMES.get(name);
+            if (staticName != null) {
+                nameIndex = staticName;
+            }
+            if (index) {
+                writeInteger(out, 0x40, 6, nameIndex);
+            } else {
+                writeInteger(out, 0x00, 4, nameIndex);
+            }
+            if (nameIndex == 0) {
+                writeString(out, name);
+            }
+            writeString(out, value);
+            if (index) {
+                table.add(name, value);
+            }
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+            writeInteger(out, 0x00, 7, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        private static void writeInteger(ByteArrayOutputStream out, int firstBits, int prefix, int value) {
+            int max = (1 << prefix) - 1;
+            if (value < max) {
+                out.write(firstBits | value);
+                return;
+            }
+            out.write(firstBits | max);
+            value -= max;
+            while (value >= 0x80) {
+                out.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+    }
+}
@@ -0,0 +1,1149 @@
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.BufferedOutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// HTTP/2 over plain TCP (h2c, RFC 9113) for one connection. A client gets here either
+// by opening with the HTTP/2 preface (prior knowledge), or by asking to upgrade an
+// HTTP/1.1 request ("Upgrade: h2c") - RequestHandler and NioServer spot both and hand
+// the socket over.
+//
+// The thread that calls run() reads frames for as long as the connection lasts. Each
+// request (stream) is answered on a worker, through the same RequestHandler.respond()
+// as HTTP/1.1, so many of them run at once over the one connection and their DATA
+// frames interleave. What a worker may send is limited by the client's flow-control
+// windows; what the client may send is limited by ours, which we open back up as its
+// data is taken in.
+public class Http2Connection {
+    // Frame types (section 6).
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+    // Flags.
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+    private static final int PADDED = 0x8;
+    private static final int PRIORITY_FLAG = 0x20;
+    // Error codes (section 7).
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int INTERNAL_ERROR = 0x2;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int STREAM_CLOSED = 0x5;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int COMPRESSION_ERROR = 0x9;
+    // Settings.
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final byte[] PREFACE = HeaderBytes.ascii("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n");
+    // What's left of the preface once the HTTP/1.1 parser has taken "PRI * HTTP/2.0" and the blank line.
+    private static final int PREFACE_TAIL = 6;
+    private static final byte[] SWITCHING_PROTOCOLS = HeaderBytes.ascii("HTTP/1.1 101 Switching Protocols"
+            + RequestParser.CRLF + "connection: Upgrade" + RequestParser.CRLF + "upgrade: h2c" + RequestParser.CRLF
+            + RequestParser.CRLF);
+    private static final byte[] NO_BYTES = new byte[0];
+    // Our SETTINGS (all defaults) and a GOAWAY before any stream - for a prior-knowledge
+    // connection we have no room for. The client may retry every request it sent.
+    static final byte[] REFUSAL = { 0, 0, 0, SETTINGS, 0, 0, 0, 0, 0,
+            0, 0, 8, GOAWAY, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, REFUSED_STREAM };
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final int MAX_WINDOW = Integer.MAX_VALUE;
+    // How far ahead of us the client may send, per stream and over the whole connection.
+    // Bigger than the default so an upload isn't held up waiting for our WINDOW_UPDATEs.
+    private static final int RECEIVE_WINDOW = 1024 * 1024;
+    private static final int MIN_FRAME_SIZE = 16384; // The most we take in one frame, the least anyone has to.
+    private static final int MAX_SEND_FRAME_SIZE = 64 * 1024; // Even if the client would take more.
+    // Per-connection headers don't exist in HTTP/2 - they're dropped from our responses,
+    // and make a request malformed.
+    private static final Set<String> CONNECTION_HEADERS = Set.of("connection", "keep-alive", "proxy-connection",
+            "transfer-encoding", "upgrade");
+    // Fields that are different on nearly every response - not worth a slot in the header table.
+    private static final Set<String> NOT_INDEXED = Set.of("content-length", "etag", "last-modified", "date",
+            "content-range", "age", "expires", "set-cookie");
+
+    // Something the client did that ends the connection (GOAWAY with code), or, with
+    // a streamId, just that stream (RST_STREAM).
+    private static class ProtocolException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+        final int streamId;
+
+        ProtocolException(int code, int streamId, String message) {
+            super(message);
+            this.code = code;
+            this.streamId = streamId;
+        }
+
+        ProtocolException(int code, String message) {
+            this(code, 0, message);
+        }
+    }
+
+    // One request and its response.
+    private final class Stream {
+        final int id;
+        final HashMap<String, String> requestVars;
+        final String traceHead; // The head as text, for TRACE only.
+        // Only the reading thread touches these.
+        RequestBody.Sink body;
+        long contentLength = -1;
+        boolean remoteClosed; // The client has sent all of the request.
+        int receiveWindow = RECEIVE_WINDOW;
+        int receiveUnacked; // Taken in, but not given back to the client yet.
+        // Flow control for what we send - guarded by the connection.
+        long sendWindow;
+        volatile boolean reset; // Cancelled by either side - stop sending.
+        volatile boolean answering; // Handed to a worker, or being answered - whoever sends it removes it.
+
+        Stream(int id, HashMap<String, String> requestVars, String traceHead) {
+            this.id = id;
+            this.requestVars = requestVars;
+            this.traceHead = traceHead;
+            this.sendWindow = initialWindow;
+        }
+    }
+
+    // Streams are answered on this pool rather than the one the connection itself may
+    // be running on, so a connection never waits on a thread only it could free up.
+    private static WorkerPool workers;
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out; // Only written holding writeLock.
+    private final Object writeLock = new Object();
+    private final Hpack.Decoder decoder = new Hpack.Decoder(); // Reading thread only.
+    private final Hpack.Encoder encoder = new Hpack.Encoder(); // Under writeLock - blocks go out in encoding order.
+    private final ConcurrentHashMap<Integer, Stream> streams = new ConcurrentHashMap<>();
+    // The reading side (idle, or a request body that stopped arriving) and the writing
+    // side (a response the client isn't taking) each have a deadline of their own.
+    private final ConnectionDeadline readDeadline = new ConnectionDeadline(this::abort);
+    private final ConnectionDeadline writeDeadline = new ConnectionDeadline(this::abort);
+    private final int maxStreams = WebServer.VALUES.getHttp2MaxStreams();
+    private final int maxHeaderSize = WebServer.VALUES.getMaxHeaderSize();
+    private volatile int sendFrameSize = MIN_FRAME_SIZE;
+    // Reading thread only.
+    private byte[] payload = new byte[MIN_FRAME_SIZE];
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+    private int headerStream; // Stream the header block being collected belongs to, 0 if none.
+    private boolean headerEndStream;
+    private int lastStreamId;
+    private int openRemote; // Streams the client is still sending a body on.
+    private int receiveWindow = RECEIVE_WINDOW;
+    private int receiveUnacked;
+    private boolean goingAway; // The client sent GOAWAY - no new streams.
+    // Guarded by this.
+    private long sendWindow = DEFAULT_WINDOW;
+    private int initialWindow = DEFAULT_WINDOW;
+    private int writing; // Responses being sent right now.
+    private boolean closed;
+
+    Http2Connection(Socket socket, InputStream in, OutputStream out) {
+        this.socket = socket;
+        this.in = in;
+        this.out = new BufferedOutputStream(out, MAX_SEND_FRAME_SIZE + 9);
+    }
+
+    // "PRI * HTTP/2.0" - the start of the preface, read as if it were an HTTP/1.1 request line.
+    static boolean isPriorKnowledge(HashMap<String, String> requestVars) {
+        return WebServer.VALUES.getHttp2() && "PRI".equals(requestVars.get("Request-Type"))
+                && "*".equals(requestVars.get("Requested-Index"))
+                && "HTTP/2.0".equals(requestVars.get("HTTP-Version"));
+    }
+
+    // "Upgrade: h2c" with usable HTTP2-Settings. Requests with a body are answered
+    // over HTTP/1.1 instead (the spec lets us ignore the upgrade), which saves
+    // reading a whole body before we can switch.
+    static boolean wantsUpgrade(HashMap<String, String> requestVars) {
+        String upgrade = requestVars.get("Upgrade");
+        if (!WebServer.VALUES.getHttp2() || upgrade == null || !"HTTP/1.1".equals(requestVars.get("HTTP-Version"))
+                || requestVars.containsKey("Transfer-Encoding")
+                || (requestVars.containsKey("Content-Length") && !"0".equals(requestVars.get("Content-Length").trim()))) {
+            return false;
+        }
+        boolean h2c = false;
+        for (String protocol : upgrade.split(",")) {
+            h2c |= protocol.trim().equalsIgnoreCase("h2c");
+        }
+        return h2c && upgradeSettings(requestVars) != null;
+    }
+
+    // The SETTINGS payload from HTTP2-Settings, or null if it's missing or garbled.
+    private static byte[] upgradeSettings(HashMap<String, String> requestVars) {
+        String settings = requestVars.get("Http2-Settings");
+        if (settings == null || settings.contains(",")) {
+            return null; // Exactly one is allowed.
+        }
+        try {
+            byte[] payload = Base64.getUrlDecoder().decode(settings.trim());
+            return payload.length % 6 == 0 ? payload : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static synchronized WorkerPool workers() {
+        if (workers == null) {
+            workers = new WorkerPool("h2-worker", WebServer.VALUES);
+        }
+        return workers;
+    }
+
+    // Serves the connection until either side is done with it, then closes the socket.
+    // upgraded is the HTTP/1.1 request that asked for the upgrade (it becomes stream 1),
+    // or null if the client came with prior knowledge; upgradedHead is its head, for TRACE.
+    void run(HashMap<String, String> upgraded, String upgradedHead) {
+        try {
+            if (upgraded != null) {
+                out.write(SWITCHING_PROTOCOLS);
+                Metrics.BYTES_OUT.add(SWITCHING_PROTOCOLS.length);
+                // Same as a SETTINGS frame - the 101 is its acknowledgement.
+                byte[] settings = upgradeSettings(upgraded);
+                applySettings(settings, settings.length);
+            }
+            sendPreface();
+            if (upgraded != null) {
+                Stream stream = new Stream(1, upgraded, upgradedHead);
+                stream.remoteClosed = true;
+                streams.put(1, stream);
+                lastStreamId = 1;
+                dispatch(stream, null);
+                readPreface(0);
+            } else {
+                readPreface(PREFACE.length - PREFACE_TAIL);
+            }
+            readFrames();
+            awaitStreams(); // The client stopped sending - answer what it already asked for.
+        } catch (ProtocolException e) {
+            Log.debug("HTTP/2 connection error: {}", e.getMessage());
+            goAway(e.code, e.getMessage());
+        } catch (IOException e) {
+            // The client went away, or a deadline closed the socket under us.
+        } finally {
+            close();
+        }
+    }
+
+    // Our SETTINGS, and a connection window as big as the per-stream ones.
+    private void sendPreface() throws IOException {
+        ByteBuffer settings = ByteBuffer.allocate(4 * 6);
+        settings.putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(maxStreams);
+        settings.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(RECEIVE_WINDOW);
+        settings.putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(maxHeaderSize);
+        settings.putShort((short) SETTINGS_ENABLE_PUSH).putInt(0);
+        synchronized (writeLock) {
+            writeFrame(SETTINGS, 0, 0, settings.array(), 0, settings.position());
+            writeFrame(WINDOW_UPDATE, 0, 0, intBytes(RECEIVE_WINDOW - DEFAULT_WINDOW), 0, 4);
+            out.flush();
+        }
+    }
+
+    private void readPreface(int from) throws IOException {
+        byte[] preface = new byte[PREFACE.length - from];
+        readFully(preface, preface.length, false);
+        for (int i = 0; i < preface.length; i++) {
+            if (preface[i] != PREFACE[from + i]) {
+                throw new ProtocolException(PROTOCOL_ERROR, "Bad connection preface");
+            }
+        }
+    }
+
+    private void readFrames() throws IOException {
+        byte[] header = new byte[9];
+        while (true) {
+            synchronized (this) {
+                readDeadline.enter(waitingOn());
+            }
+            if (!readFully(header, 9, true)) {
+                return;
+            }
+            int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+            int type = header[3] & 0xff;
+            int flags = header[4] & 0xff;
+            int streamId = readInt(header, 5) & 0x7fffffff;
+            if (length > MIN_FRAME_SIZE) {
+                throw new ProtocolException(FRAME_SIZE_ERROR, "Frame bigger than SETTINGS_MAX_FRAME_SIZE");
+            }
+            readFully(payload, length, false);
+            if (headerStream != 0 && (type != CONTINUATION || streamId != headerStream)) {
+                throw new ProtocolException(PROTOCOL_ERROR, "Header block interrupted by another frame");
+            }
+            try {
+                frame(type, flags, streamId, length);
+            } catch (ProtocolException e) {
+                if (e.streamId == 0) {
+                    throw e;
+                }
+                resetStream(e.streamId, e.code); // Only that stream is done for.
+            }
+        }
+    }
+
+    // What the reading side is waiting on the client for - called holding the lock, see finished().
+    private ConnectionDeadline.Phase waitingOn() {
+        if (streams.isEmpty()) {
+            return ConnectionDeadline.Phase.IDLE;
+        }
+        return openRemote > 0 ? ConnectionDeadline.Phase.BODY : ConnectionDeadline.Phase.NONE;
+    }
+
+    private void frame(int type, int flags, int streamId, int length) throws IOException {
+        switch (type) {
+            case DATA:
+                data(flags, streamId, length);
+                break;
+            case HEADERS:
+                headers(flags, streamId, length);
+                break;
+            case CONTINUATION:
+                if (headerStream == 0) {
+                    throw new ProtocolException(PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+                }
+                appendHeaderBlock(0, length);
+                if ((flags & END_HEADERS) != 0) {
+                    headerBlockDone();
+                }
+                break;
+            case PRIORITY:
+                // Advisory, and deprecated - we answer in whatever order the workers finish.
+                if (streamId == 0) {
+                    throw new ProtocolException(PROTOCOL_ERROR, "PRIORITY on stream 0");
+                }
+                if (length != 5) {
+                    throw new ProtocolException(FRAME_SIZE_ERROR, streamId, "PRIORITY of the wrong size");
+                }
+                break;
+            case RST_STREAM:
+                rstStream(streamId, length);
+                break;
+            case SETTINGS:
+                if (streamId != 0) {
+                    throw new ProtocolException(PROTOCOL_ERROR, "SETTINGS on a stream");
+                }
+                if ((flags & ACK) != 0) {
+                    if (length != 0) {
+                        throw new ProtocolException(FRAME_SIZE_ERROR, "SETTINGS ACK with a payload");
+                    }
+                    break;
+                }
+                if (length % 6 != 0) {
+                    throw new ProtocolException(FRAME_SIZE_ERROR, "SETTINGS of the wrong size");
+                }
+                applySettings(payload, length);
+                synchronized (writeLock) {
+                    writeFrame(SETTINGS, ACK, 0, payload, 0, 0);
+                    out.flush();
+                }
+                break;
+            case PING:
+                if (streamId != 0) {
+                    throw new ProtocolException(PROTOCOL_ERROR, "PING on a stream");
+                }
+                if (length != 8) {
+                    throw new ProtocolException(FRAME_SIZE_ERROR, "PING of the wrong size");
+                }
+                if ((flags & ACK) == 0) {
+                    synchronized (writeLock) {
+                        writeFrame(PING, ACK, 0, payload, 0, 8);
+                        out.flush();
+                    }
+                }
+                break;
+            case GOAWAY:
+                if (streamId != 0) {
+                    throw new ProtocolException(PROTOCOL_ERROR, "GOAWAY on a stream");
+                }
+                goingAway = true; // Streams already started still get their answers.
+                break;
+            case WINDOW_UPDATE:
+                windowUpdate(streamId, length);
+                break;
+            case PUSH_PROMISE:
+                throw new ProtocolException(PROTOCOL_ERROR, "Clients can't push");
+            default:
+                break; // Unknown frame types are ignored (section 5.5).
+        }
+    }
+
+    private void headers(int flags, int streamId, int length) throws IOException {
+        if (streamId == 0) {
+            throw new ProtocolException(PROTOCOL_ERROR, "HEADERS on stream 0");
+        }
+        int start = 0;
+        int end = length;
+        if ((flags & PADDED) != 0) {
+            if (length < 1) {
+                throw new ProtocolException(FRAME_SIZE_ERROR, "Padded HEADERS without a pad length");
+            }
+            start = 1;
+            end -= payload[0] & 0xff;
+        }
+        if ((flags & PRIORITY_FLAG) != 0) {
+            start += 5; // Dependency and weight - ignored, see PRIORITY.
+        }
+        if (end < start) {
+            throw new ProtocolException(PROTOCOL_ERROR, "HEADERS padding longer than the frame");
+        }
+        headerBlock.reset();
+        headerStream = streamId;
+        headerEndStream = (flags & END_STREAM) != 0;
+        appendHeaderBlock(start, end - start);
+        if ((flags & END_HEADERS) != 0) {
+            headerBlockDone();
+        }
+    }
+
+    private void appendHeaderBlock(int offset, int length) throws IOException {
+        // HPACK can make a block much smaller than the head it stands for, never much bigger.
+        if (headerBlock.size() + length > 2 * maxHeaderSize + MIN_FRAME_SIZE) {
+            throw new ProtocolException(PROTOCOL_ERROR, "Header block too large");
+        }
+        headerBlock.write(payload, offset, length);
+    }
+
+    // A whole header block is here - a new request, or the trailers of one.
+    private void headerBlockDone() throws IOException {
+        int id = headerStream;
+        headerStream = 0;
+        byte[] block = headerBlock.toByteArray();
+        Stream existing = streams.get(id);
+        if (existing != null && !existing.remoteClosed) {
+            // Trailers. Nothing we serve looks at them, but the table has to see them.
+            decode(block, new RequestFields(id));
+            if (!headerEndStream) {
+                throw new ProtocolException(PROTOCOL_ERROR, id, "Trailers without END_STREAM");
+            }
+            endOfRequest(existing);
+            return;
+        }
+        if (id <= lastStreamId || id % 2 == 0) {
+            throw new ProtocolException(id <= lastStreamId ? STREAM_CLOSED : PROTOCOL_ERROR,
+                    "HEADERS on stream " + id + " that can't be opened");
+        }
+        lastStreamId = id;
+        RequestFields fields = new RequestFields(id);
+        decode(block, fields);
+        if (goingAway || streams.size() >= maxStreams) {
+            resetStream(id, REFUSED_STREAM);
+            return;
+        }
+        fields.validate();
+        Stream stream = new Stream(id, fields.requestVars,
+                fields.trace != null ? fields.trace.toString() : null);
+        streams.put(id, stream);
+        stream.remoteClosed = headerEndStream;
+        if (!headerEndStream) {
+            openRemote++;
+        }
+        if (fields.tooLarge) {
+            answerEarly(stream, RequestParser.HeaderTooLargeResponse());
+            return;
+        }
+        if (headerEndStream) {
+            dispatch(stream, null);
+            return;
+        }
+        String contentLength = fields.requestVars.get("Content-Length");
+        try {
+            stream.contentLength = contentLength == null ? -1 : Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            throw new ProtocolException(PROTOCOL_ERROR, id, "Bad content-length");
+        }
+        if (stream.contentLength > WebServer.VALUES.getMaxBodySize()) {
+            answerEarly(stream, RequestParser.PayloadTooLargeResponse());
+            return;
+        }
+        stream.body = new RequestBody.Sink(WebServer.VALUES.getMaxBodySize(),
+                WebServer.VALUES.getBodySpillThreshold(), stream.contentLength);
+    }
+
+    private void decode(byte[] block, RequestFields fields) throws IOException {
+        try {
+            decoder.decode(block, 0, block.length, fields);
+        } catch (Hpack.DecodingException e) {
+            throw new ProtocolException(COMPRESSION_ERROR, e.getMessage());
+        }
+    }
+
+    // Turns decoded fields into requestVars, named the way RequestHeadParser names them.
+    private final class RequestFields implements Hpack.FieldSink {
+        final int id;
+        final HashMap<String, String> requestVars = new HashMap<>();
+        StringBuilder trace; // Only for TRACE, which echoes the head back.
+        boolean regularSeen;
+        boolean malformed;
+        boolean tooLarge;
+        int size;
+
+        RequestFields(int id) {
+            this.id = id;
+            requestVars.put("HTTP-Version", "HTTP/2.0");
+        }
+
+        @Override
+        public void field(String name, String value) {
+            size += name.length() + value.length() + 32;
+            if (size > maxHeaderSize) {
+                tooLarge = true; // Keep decoding though - the table still has to be kept in step.
+                return;
+            }
+            if (name.startsWith(":")) {
+                if (regularSeen) {
+                    malformed = true;
+                }
+                switch (name) {
+                    case ":method":
+                        requestVars.put("Request-Type", value);
+                        if (value.equals("TRACE")) {
+                            trace = new StringBuilder();
+                        }
+                        break;
+                    case ":path":
+                        // Octets on the wire - read as UTF-8, as the HTTP/1.1 parser does.
+                        requestVars.put("Requested-Index",
+                                new String(value.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8));
+                        break;
+                    case ":authority":
+                        requestVars.putIfAbsent("Host", value);
+                        break;
+                    case ":scheme":
+                        break;
+                    default:
+                        malformed = true;
+                }
+                return;
+            }
+            regularSeen = true;
+            if (!name.equals(name.toLowerCase()) || CONNECTION_HEADERS.contains(name)
+                    || (name.equals("te") && !value.equals("trailers"))) {
+                malformed = true;
+                return;
+            }
+            if (trace != null) {
+                trace.append(name).append(": ").append(value).append(RequestParser.CRLF);
+            }
+            String key = RequestHeadParser.headerName(name);
+            if (RequestHeadParser.isRequestLineKey(key)) {
+                malformed = true;
+                return;
+            }
+            String previous = requestVars.get(key);
+            // HTTP/2 clients may split cookies into several fields (section 8.2.3).
+            requestVars.put(key, previous == null ? value : previous + (name.equals("cookie") ? "; " : ", ") + value);
+        }
+
+        void validate() throws ProtocolException {
+            if (malformed || !requestVars.containsKey("Request-Type") || !requestVars.containsKey("Requested-Index")) {
+                throw new ProtocolException(PROTOCOL_ERROR, id, "Malformed request headers");
+            }
+            if (trace != null) {
+                trace.insert(0, "TRACE " + requestVars.get("Requested-Index") + " HTTP/2.0" + RequestParser.CRLF);
+            }
+        }
+    }
+
+    private void data(int flags, int streamId, int length) throws IOException {
+        if (streamId == 0) {
+            throw new ProtocolException(PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        // The whole frame counts against the windows, padding included.
+        receiveWindow -= length;
+        if (receiveWindow < 0) {
+            throw new ProtocolException(FLOW_CONTROL_ERROR, "Client overran the connection window");
+        }
+        giveBack(null, length);
+        int start = 0;
+        int end = length;
+        if ((flags & PADDED) != 0) {
+            if (length < 1) {
+                throw new ProtocolException(FRAME_SIZE_ERROR, "Padded DATA without a pad length");
+            }
+            start = 1;
+            end -= payload[0] & 0xff;
+            if (end < start) {
+                throw new ProtocolException(PROTOCOL_ERROR, "DATA padding longer than the frame");
+            }
+        }
+        Stream stream = streams.get(streamId);
+        if (stream == null || stream.remoteClosed) {
+            if (streamId > lastStreamId) {
+                throw new ProtocolException(PROTOCOL_ERROR, "DATA on a stream that was never opened");
+            }
+            if (stream != null && stream.body == null && !stream.reset) {
+                throw new ProtocolException(STREAM_CLOSED, streamId, "DATA after END_STREAM");
+            }
+            return; // A stream we already reset or answered - the client just hasn't heard yet.
+        }
+        stream.receiveWindow -= length;
+        if (stream.receiveWindow < 0) {
+            throw new ProtocolException(FLOW_CONTROL_ERROR, streamId, "Client overran the stream window");
+        }
+        boolean endStream = (flags & END_STREAM) != 0;
+        try {
+            stream.body.write(payload, start, end - start);
+        } catch (RequestBody.TooLargeException e) {
+            stream.body = null; // The sink cleaned up after itself.
+            answerEarly(stream, RequestParser.PayloadTooLargeResponse());
+            return;
+        }
+        if (endStream) {
+            endOfRequest(stream);
+        } else {
+            giveBack(stream, length);
+        }
+    }
+
+    // The client has sent all of a request - now it can be answered.
+    private void endOfRequest(Stream stream) throws IOException {
+        stream.remoteClosed = true;
+        openRemote--;
+        RequestBody.Sink sink = stream.body;
+        stream.body = null;
+        if (stream.contentLength >= 0 && sink.size() != stream.contentLength) {
+            sink.abort();
+            throw new ProtocolException(PROTOCOL_ERROR, stream.id, "Body doesn't match content-length");
+        }
+        dispatch(stream, sink.finish());
+    }
+
+    // Opens a receive window back up once enough of it has been used - a WINDOW_UPDATE
+    // per DATA frame would nearly double the frames on an upload.
+    private void giveBack(Stream stream, int length) throws IOException {
+        int unacked;
+        if (stream == null) {
+            unacked = receiveUnacked += length;
+        } else {
+            unacked = stream.receiveUnacked += length;
+        }
+        if (unacked < RECEIVE_WINDOW / 2) {
+            return;
+        }
+        if (stream == null) {
+            receiveWindow += unacked;
+            receiveUnacked = 0;
+        } else {
+            stream.receiveWindow += unacked;
+            stream.receiveUnacked = 0;
+        }
+        synchronized (writeLock) {
+            writeFrame(WINDOW_UPDATE, 0, stream == null ? 0 : stream.id, intBytes(unacked), 0, 4);
+            out.flush();
+        }
+    }
+
+    private void rstStream(int streamId, int length) throws IOException {
+        if (streamId == 0) {
+            throw new ProtocolException(PROTOCOL_ERROR, "RST_STREAM on stream 0");
+        }
+        if (length != 4) {
+            throw new ProtocolException(FRAME_SIZE_ERROR, "RST_STREAM of the wrong size");
+        }
+        if (streamId > lastStreamId) {
+            throw new ProtocolException(PROTOCOL_ERROR, "RST_STREAM on a stream that was never opened");
+        }
+        Stream stream = streams.get(streamId);
+        if (stream != null) {
+            cancel(stream);
+        }
+    }
+
+    private void windowUpdate(int streamId, int length) throws IOException {
+        if (length != 4) {
+            throw new ProtocolException(FRAME_SIZE_ERROR, "WINDOW_UPDATE of the wrong size");
+        }
+        int increment = readInt(payload, 0) & 0x7fffffff;
+        if (increment == 0) {
+            throw new ProtocolException(PROTOCOL_ERROR, streamId, "WINDOW_UPDATE of 0");
+        }
+        synchronized (this) {
+            if (streamId == 0) {
+                sendWindow += increment;
+                if (sendWindow > MAX_WINDOW) {
+                    throw new ProtocolException(FLOW_CONTROL_ERROR, "Connection window over 2^31-1");
+                }
+            } else {
+                Stream stream = streams.get(streamId);
+                if (stream == null) {
+                    if (streamId > lastStreamId) {
+                        throw new ProtocolException(PROTOCOL_ERROR, "WINDOW_UPDATE on a stream never opened");
+                    }
+                    return; // Already done with it.
+                }
+                stream.sendWindow += increment;
+                if (stream.sendWindow > MAX_WINDOW) {
+                    throw new ProtocolException(FLOW_CONTROL_ERROR, streamId, "Stream window over 2^31-1");
+                }
+            }
+            notifyAll(); // Workers waiting to send.
+        }
+    }
+
+    private void applySettings(byte[] settings, int length) throws IOException {
+        for (int i = 0; i < length; i += 6) {
+            int id = ((settings[i] & 0xff) << 8) | (settings[i + 1] & 0xff);
+            long value = readInt(settings, i + 2) & 0xffffffffL;
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    synchronized (writeLock) {
+                        encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                    }
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value > 1) {
+                        throw new ProtocolException(PROTOCOL_ERROR, "SETTINGS_ENABLE_PUSH not 0 or 1");
+                    }
+                    break; // We never push anyway.
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value > MAX_WINDOW) {
+                        throw new ProtocolException(FLOW_CONTROL_ERROR, "SETTINGS_INITIAL_WINDOW_SIZE over 2^31-1");
+                    }
+                    synchronized (this) {
+                        // Applies to streams already open too, as a change from what they had.
+                        long change = value - initialWindow;
+                        for (Stream stream : streams.values()) {
+                            stream.sendWindow += change;
+                            if (stream.sendWindow > MAX_WINDOW) {
+                                throw new ProtocolException(FLOW_CONTROL_ERROR, "Stream window over 2^31-1");
+                            }
+                        }
+                        initialWindow = (int) value;
+                        notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < MIN_FRAME_SIZE || value > 0xffffff) {
+                        throw new ProtocolException(PROTOCOL_ERROR, "SETTINGS_MAX_FRAME_SIZE out of range");
+                    }
+                    sendFrameSize = (int) Math.min(value, MAX_SEND_FRAME_SIZE);
+                    break;
+                default:
+                    break; // Nothing else changes what we do.
+            }
+        }
+    }
+
+    // Hands a complete request to a worker.
+    private void dispatch(Stream stream, RequestBody body) throws IOException {
+        RequestHandler handler = new RequestHandler(stream.traceHead, body, stream.requestVars);
+        stream.answering = true;
+        long queuedAt = System.nanoTime();
+        try {
+            workers().execute(() -> respond(stream, handler, queuedAt));
+        } catch (RejectedExecutionException e) {
+            // Every worker is busy and the queue is full.
+            Metrics.SHED.increment();
+            handler.closeBody();
+            answerEarly(stream, RequestParser.ServiceUnavailableResponse());
+        }
+    }
+
+    // Runs on a worker.
+    private void respond(Stream stream, RequestHandler handler, long queuedAt) {
+        HttpMessage message;
+        try {
+            if (WebServer.waitedTooLong(queuedAt)) {
+                Metrics.SHED.increment();
+                message = RequestParser.ServiceUnavailableResponse();
+            } else {
+                message = handler.respond();
+            }
+        } catch (Exception e) {
+            Log.warn("Err caught in HTTP/2 stream: {}", e);
+            message = RequestParser.ServerErrorResponse();
+        }
+        try {
+            send(stream, message);
+        } finally {
+            handler.closeBody();
+        }
+    }
+
+    // An answer that doesn't need a worker (an error, or a 503), sent from the reading
+    // thread. If the client is still sending the request, it's told to stop.
+    private void answerEarly(Stream stream, HttpMessage message) throws IOException {
+        stream.answering = true;
+        boolean stillSending = !stream.remoteClosed;
+        if (stream.body != null) {
+            stream.body.abort();
+            stream.body = null;
+        }
+        if (stillSending) {
+            stream.remoteClosed = true; // We don't want the rest of it.
+            openRemote--;
+        }
+        send(stream, message);
+        if (stillSending) {
+            resetStream(stream.id, NO_ERROR);
+        }
+    }
+
+    // Writes a response: HEADERS (plus CONTINUATIONs), then its body as DATA frames.
+    private void send(Stream stream, HttpMessage message) {
+        int status = message.statusCode();
+        Metrics.requestDone(stream.requestVars.get("Request-Type"), status);
+        boolean hasBody = message.sendContent
+                && (message.isStreamed() || message.hasFileContent() || message.hasMemoryContent());
+        startedWriting();
+        try {
+            writeHeaders(stream, status, message, !hasBody);
+            if (message.isStreamed()) {
+                DataStream data = new DataStream(stream);
+                message.bodyWriter.writeTo(data);
+                data.close();
+            } else if (message.hasFileContent()) {
+                sendFileParts(stream, message);
+            } else if (hasBody) {
+                writeData(stream, message.content, 0, message.content.length, true);
+            }
+        } catch (Exception e) {
+            if (!stream.reset) {
+                Log.debug("HTTP/2 stream {} failed: {}", stream.id, e);
+                try {
+                    resetStream(stream.id, INTERNAL_ERROR); // Tells the client the body is incomplete.
+                } catch (IOException e2) {
+                    // The connection's gone too.
+                }
+            }
+        } finally {
+            doneWriting(stream);
+        }
+    }
+
+    private void writeHeaders(Stream stream, int status, HttpMessage message, boolean endStream)
+            throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+        synchronized (writeLock) {
+            if (stream.reset) {
+                throw new IOException("Stream was reset");
+            }
+            encoder.startBlock(block);
+            encoder.field(block, ":status", Integer.toString(status), false);
+            for (String[] field : message.headerFields()) {
+                if (!CONNECTION_HEADERS.contains(field[0])) {
+                    encoder.field(block, field[0], field[1], !NOT_INDEXED.contains(field[0]));
+                }
+            }
+            byte[] bytes = block.toByteArray();
+            int frameSize = sendFrameSize;
+            int first = Math.min(bytes.length, frameSize);
+            int flags = (endStream ? END_STREAM : 0) | (first == bytes.length ? END_HEADERS : 0);
+            writeFrame(HEADERS, flags, stream.id, bytes, 0, first);
+            for (int pos = first; pos < bytes.length; pos += frameSize) {
+                int length = Math.min(bytes.length - pos, frameSize);
+                writeFrame(CONTINUATION, pos + length == bytes.length ? END_HEADERS : 0, stream.id, bytes, pos, length);
+            }
+            if (endStream) {
+                out.flush();
+            }
+        }
+    }
+
+    // DATA frames for data[offset, offset + length), each as big as the windows allow.
+    private void writeData(Stream stream, byte[] data, int offset, int length, boolean endStream)
+            throws IOException {
+        do {
+            int size = reserve(stream, length);
+            synchronized (writeLock) {
+                if (stream.reset) {
+                    throw new IOException("Stream was reset");
+                }
+                writeFrame(DATA, endStream && size == length ? END_STREAM : 0, stream.id, data, offset, size);
+                out.flush();
+            }
+            offset += size;
+            length -= size;
+        } while (length > 0);
+    }
+
+    // Waits until both windows have room, takes up to wanted bytes of it (and one frame's worth at most).
+    private int reserve(Stream stream, int wanted) throws IOException {
+        int size = takeWindow(stream, wanted, false);
+        if (size == -1) {
+            // Anything written but not flushed yet (this stream's HEADERS, say) goes out
+            // before we wait - the client may want to see it before it opens the window.
+            synchronized (writeLock) {
+                out.flush();
+            }
+            size = takeWindow(stream, wanted, true);
+        }
+        return size;
+    }
+
+    // reserve() without the flush. Returns -1 rather than waiting, unless wait is set.
+    private synchronized int takeWindow(Stream stream, int wanted, boolean wait) throws IOException {
+        long limit = WebServer.VALUES.getWriteTimeout();
+        long giveUp = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(limit);
+        while (true) {
+            if (closed || stream.reset) {
+                throw new IOException("Stream was reset");
+            }
+            long size = Math.min(Math.min(wanted, sendFrameSize), Math.min(sendWindow, stream.sendWindow));
+            if (size > 0 || wanted == 0) {
+                sendWindow -= size;
+                stream.sendWindow -= size;
+                return (int) size;
+            }
+            if (!wait) {
+                return -1;
+            }
+            long left = giveUp - System.nanoTime();
+            if (limit > 0 && left <= 0) {
+                throw new IOException("Client stopped opening its flow-control window");
+            }
+            try {
+                wait(limit > 0 ? Math.max(1, TimeUnit.NANOSECONDS.toMillis(left)) : 0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for the flow-control window");
+            }
+        }
+    }
+
+    private void sendFileParts(Stream stream, HttpMessage message) throws IOException {
+        try (FileChannel file = FileChannel.open(message.contentFile, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(MAX_SEND_FRAME_SIZE);
+            for (HttpMessage.BodyPart part : message.contentParts) {
+                if (part.bytes != null) {
+                    writeData(stream, part.bytes, 0, part.bytes.length, false);
+                    continue;
+                }
+                long position = part.offset;
+                long end = part.offset + part.length;
+                while (position < end) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                    int read = file.read(buffer, position);
+                    if (read <= 0) {
+                        throw new IOException("File shrank while sending: " + message.contentFile);
+                    }
+                    writeData(stream, buffer.array(), 0, read, false);
+                    position += read;
+                }
+            }
+        }
+        writeData(stream, NO_BYTES, 0, 0, true);
+    }
+
+    // A streamed body (HttpMessage.BodyWriter), cut into DATA frames as it's written.
+    private final class DataStream extends OutputStream {
+        private final Stream stream;
+        private final byte[] buffer = new byte[MIN_FRAME_SIZE];
+        private int count;
+
+        DataStream(Stream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flush();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            if (length >= buffer.length) {
+                flush();
+                writeData(stream, data, offset, length, false);
+                return;
+            }
+            if (count + length > buffer.length) {
+                flush();
+            }
+            System.arraycopy(data, offset, buffer, count, length);
+            count += length;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) {
+                writeData(stream, buffer, 0, count, false);
+                count = 0;
+            }
+        }
+
+        // Ends the stream, with whatever is still buffered.
+        @Override
+        public void close() throws IOException {
+            writeData(stream, buffer, 0, count, true);
+            count = 0;
+        }
+    }
+
+    // The write deadline covers the time any response is being sent. It starts over
+    // whenever one finishes, so a busy connection isn't cut off - only a stuck one.
+    private synchronized void startedWriting() {
+        if (writing++ == 0) {
+            writeDeadline.enter(ConnectionDeadline.Phase.WRITE);
+        }
+    }
+
+    private synchronized void doneWriting(Stream stream) {
+        writeDeadline.clear();
+        if (--writing > 0) {
+            writeDeadline.enter(ConnectionDeadline.Phase.WRITE);
+        }
+        streams.remove(stream.id, stream);
+        if (streams.isEmpty()) {
+            readDeadline.enter(ConnectionDeadline.Phase.IDLE);
+        }
+        notifyAll(); // See awaitStreams.
+    }
+
+    private synchronized void awaitStreams() throws IOException {
+        while (!streams.isEmpty() && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Stops a stream on our side: RST_STREAM to the client, and whoever's sending it stops.
+    private void resetStream(int streamId, int code) throws IOException {
+        Stream stream = streams.get(streamId);
+        if (stream != null) {
+            cancel(stream);
+        }
+        synchronized (writeLock) {
+            writeFrame(RST_STREAM, 0, streamId, intBytes(code), 0, 4);
+            out.flush();
+        }
+    }
+
+    private void cancel(Stream stream) {
+        stream.reset = true;
+        if (stream.body != null) {
+            stream.body.abort();
+            stream.body = null;
+        }
+        if (!stream.remoteClosed) {
+            stream.remoteClosed = true;
+            openRemote--;
+        }
+        if (!stream.answering) {
+            streams.remove(stream.id, stream); // Nobody is answering it, so nobody else will.
+        }
+        synchronized (this) {
+            notifyAll(); // A worker waiting on flow control gives up.
+        }
+    }
+
+    private void goAway(int code, String reason) {
+        byte[] reasonBytes = reason == null ? NO_BYTES : reason.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = ByteBuffer.allocate(8 + reasonBytes.length).putInt(lastStreamId).putInt(code)
+                .put(reasonBytes).array();
+        try {
+            synchronized (writeLock) {
+                writeFrame(GOAWAY, 0, 0, frame, 0, frame.length);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // It was going away anyway.
+        }
+    }
+
+    // Frame header and payload. Callers hold writeLock, and flush when they're done.
+    private void writeFrame(int type, int flags, int streamId, byte[] data, int offset, int length)
+            throws IOException {
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(type);
+        out.write(flags);
+        out.write(intBytes(streamId), 0, 4);
+        out.write(data, offset, length);
+        Metrics.BYTES_OUT.add(9 + length);
+    }
+
+    // Reads exactly length bytes. Returns false if the stream ended before the first
+    // one and endOk says that's fine (between frames); anywhere else it's an error.
+    private boolean readFully(byte[] buffer, int length, boolean endOk) throws IOException {
+        int read = in.readNBytes(buffer, 0, length);
+        if (read == length) {
+            return true;
+        }
+        if (read == 0 && endOk) {
+            return false;
+        }
+        throw new EOFException("Connection closed in the middle of a frame.");
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8)
+                | (data[offset + 3] & 0xff);
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+    }
+
+    // A deadline passed. Shutting the socket down is what gets threads blocked on it moving again.
+    private void abort() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            socket.shutdownInput();
+            socket.shutdownOutput();
+        } catch (IOException e) {
+            // Already half gone - closing is all that's left.
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+    }
+
+    private void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        for (Stream stream : streams.values()) {
+            if (stream.body != null) {
+                stream.body.abort();
+                stream.body = null;
+            }
+        }
+        readDeadline.clear();
+        writeDeadline.clear();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already gone.
+        }
+    }
+}
@@ -1,23 +1,317 @@
 
 // A class meant to hold the headers and message content separately.
 import java.io.*;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Locale;
 
 public class HttpMessage {
-    byte[] headers;
+    // Bodies up to this size are copied next to the head when we can't do a gathering
+    // write, so the whole response still goes out in one write() call.
+    private static final int COALESCE_LIMIT = 16 * 1024;
+    // Streamed bodies go out in chunks sized to the socket's send buffer, within these bounds.
+    private static final int MIN_CHUNK_SIZE = 4 * 1024;
+    private static final int MAX_CHUNK_SIZE = 64 * 1024;
+    private static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+    byte[] headers; // Often shared (cached / precomputed) - never written into.
+    byte[] extraHeaders; // Per-response lines from addHeader, sent right after headers.
     byte[] content;
+    // Large files (and byte ranges) aren't loaded into content - the body is
+    // streamed from contentFile instead, as a list of parts: regions of the file,
+    // plus for multipart responses the bytes that go between them.
+    Path contentFile;
+    ArrayList<BodyPart> contentParts;
     boolean sendContent = true;
+    // Set for bodies that are generated while they're sent, instead of being built first.
+    BodyWriter bodyWriter;
+    boolean chunked = true; // False for HTTP/1.0 clients - the body then ends when we hang up.
+
+    // Produces a streamed body. Write as much as you like - it goes out in chunks
+    // as it's written, so memory use doesn't grow with the size of the body.
+    // Don't close out, the server ends the body itself.
+    interface BodyWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    // One piece of a streamed body.
+    static class BodyPart {
+        final byte[] bytes; // Null for a region of contentFile.
+        final long offset;
+        final long length;
+
+        BodyPart(byte[] bytes) {
+            this.bytes = bytes;
+            this.offset = 0;
+            this.length = bytes.length;
+        }
+
+        BodyPart(long offset, long length) {
+            this.bytes = null;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
 
     // Sends headers and content over given outputstream.
     public void send(OutputStream out) throws IOException {
-        out.write(headers);
-        System.err.println(new String(headers));
-        out.write(RequestParser.CRLF.getBytes());
-        if (sendContent) {
-            if (content != null && content.length > 0) {
+        send(out, null);
+    }
+
+    // Same, but file-backed bodies go through the given channel, which lets
+    // the OS copy straight from the file to the socket (sendfile).
+    public void send(OutputStream out, WritableByteChannel channel) throws IOException {
+        Log.debug("Sending headers:\n{}", headers); // Decoded on the log thread, if at all.
+        if (bodyWriter != null) {
+            writeStreamed(new CountingOutputStream(out), chunkSizeFor(channel));
+            return;
+        }
+        if (out instanceof ConnectionOutput) {
+            // Collected in the connection's pooled buffer - no need to join the pieces first,
+            // and the socket gets a direct buffer instead of a copy of our arrays.
+            int length = headers.length + HeaderBytes.CRLF.length;
+            out.write(headers);
+            if (extraHeaders != null) {
+                out.write(extraHeaders);
+                length += extraHeaders.length;
+            }
+            out.write(HeaderBytes.CRLF);
+            if (hasMemoryContent()) {
+                out.write(content);
+                length += content.length;
+            }
+            Metrics.BYTES_OUT.add(length);
+        } else if (channel instanceof GatheringByteChannel) {
+            // Head, blank line and in-memory body in a single writev.
+            ByteBuffer[] buffers = toBuffers();
+            GatheringByteChannel gathering = (GatheringByteChannel) channel;
+            while (buffers[buffers.length - 1].hasRemaining()) {
+                Metrics.BYTES_OUT.add(gathering.write(buffers));
+            }
+        } else {
+            byte[] head = headBytes(hasMemoryContent() && content.length <= COALESCE_LIMIT);
+            out.write(head);
+            Metrics.BYTES_OUT.add(head.length);
+            if (hasMemoryContent() && content.length > COALESCE_LIMIT) {
                 out.write(content);
+                Metrics.BYTES_OUT.add(content.length);
+            }
+        }
+        if (hasFileContent()) {
+            out.flush();
+            sendFile(channel != null ? channel : Channels.newChannel(out));
+        }
+    }
+
+    // Writes the head, then the body as bodyWriter produces it: chunked, or as-is
+    // if the client can't take chunked. The head goes out with the first chunk.
+    void writeStreamed(OutputStream out, int chunkSize) throws IOException {
+        byte[] head = headBytes(false);
+        if (!sendContent) {
+            out.write(head);
+        } else if (chunked) {
+            ChunkedOutputStream chunks = new ChunkedOutputStream(out, chunkSize, head);
+            bodyWriter.writeTo(chunks);
+            chunks.close();
+        } else {
+            BufferedOutputStream buffered = new BufferedOutputStream(out, chunkSize);
+            buffered.write(head);
+            bodyWriter.writeTo(buffered);
+            buffered.flush();
+        }
+        out.flush();
+    }
+
+    // Half the send buffer per chunk, so one chunk can be in flight while the next is built.
+    static int chunkSizeFor(Channel channel) {
+        if (channel instanceof NetworkChannel) {
+            try {
+                int sendBuffer = ((NetworkChannel) channel).getOption(StandardSocketOptions.SO_SNDBUF);
+                return Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, sendBuffer / 2));
+            } catch (IOException | UnsupportedOperationException e) {
+                // Fall through to the default.
+            }
+        }
+        return DEFAULT_CHUNK_SIZE;
+    }
+
+    // Counts what a streamed body writes to the socket.
+    private static class CountingOutputStream extends FilterOutputStream {
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            Metrics.BYTES_OUT.increment();
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            out.write(data, offset, length);
+            Metrics.BYTES_OUT.add(length);
+        }
+    }
+
+    boolean hasMemoryContent() {
+        return sendContent && contentFile == null && content != null && content.length > 0;
+    }
+
+    // headers + extraHeaders + blank line (+ the body, if asked) in one array.
+    private byte[] headBytes(boolean withContent) {
+        int extraLength = extraHeaders == null ? 0 : extraHeaders.length;
+        byte[] framing = bodyWriter != null && chunked ? HeaderBytes.TRANSFER_ENCODING_CHUNKED : null;
+        int framingLength = framing == null ? 0 : framing.length;
+        int contentLength = withContent ? content.length : 0;
+        byte[] all = new byte[headers.length + extraLength + framingLength + HeaderBytes.CRLF.length
+                + contentLength];
+        int pos = HeaderBytes.put(all, 0, headers);
+        if (extraHeaders != null) {
+            pos = HeaderBytes.put(all, pos, extraHeaders);
+        }
+        if (framing != null) {
+            pos = HeaderBytes.put(all, pos, framing);
+        }
+        pos = HeaderBytes.put(all, pos, HeaderBytes.CRLF);
+        if (withContent) {
+            HeaderBytes.put(all, pos, content);
+        }
+        return all;
+    }
+
+    private void sendFile(WritableByteChannel channel) throws IOException {
+        try (FileChannel file = FileChannel.open(contentFile, StandardOpenOption.READ)) {
+            for (BodyPart part : contentParts) {
+                if (part.bytes != null) {
+                    ByteBuffer buffer = ByteBuffer.wrap(part.bytes);
+                    while (buffer.hasRemaining()) {
+                        Metrics.BYTES_OUT.add(channel.write(buffer));
+                    }
+                    continue;
+                }
+                // Positioned transfer - only the bytes of this region are touched.
+                long position = part.offset;
+                long end = part.offset + part.length;
+                while (position < end) {
+                    long sent = file.transferTo(position, end - position, channel);
+                    if (sent <= 0) {
+                        // Blocking channel, so this only happens if the file got shorter.
+                        throw new IOException("File shrank while sending: " + contentFile);
+                    }
+                    position += sent;
+                    Metrics.BYTES_OUT.add(sent);
+                }
+            }
+        }
+    }
+
+    // The status code from the status line ("HTTP/1.1 200 OK" -> 200), or -1.
+    public int statusCode() {
+        if (headers == null || headers.length < 12) {
+            return -1;
+        }
+        int code = 0;
+        for (int i = 9; i < 12; i++) {
+            if (headers[i] < '0' || headers[i] > '9') {
+                return -1;
             }
+            code = code * 10 + (headers[i] - '0');
+        }
+        return code;
+    }
+
+    // Everything is in memory - nothing to stream from a file or a writer.
+    public boolean isInMemory() {
+        return bodyWriter == null && !hasFileContent();
+    }
+
+    public boolean isStreamed() {
+        return bodyWriter != null;
+    }
+
+    public boolean hasFileContent() {
+        return sendContent && contentFile != null;
+    }
+
+    // The buffers send() would write, for callers that do their own (gathering) writes,
+    // like the NIO reactor. Nothing is copied - they wrap the message's own arrays.
+    // A file-backed body is not included - the caller has to transfer contentFile itself.
+    public ByteBuffer[] toBuffers() {
+        int count = 2 + (extraHeaders != null ? 1 : 0) + (hasMemoryContent() ? 1 : 0);
+        ByteBuffer[] buffers = new ByteBuffer[count];
+        int i = 0;
+        buffers[i++] = ByteBuffer.wrap(headers);
+        if (extraHeaders != null) {
+            buffers[i++] = ByteBuffer.wrap(extraHeaders);
+        }
+        buffers[i++] = ByteBuffer.wrap(HeaderBytes.CRLF);
+        if (hasMemoryContent()) {
+            buffers[i] = ByteBuffer.wrap(content);
         }
-    } // todo - make new function that sends back chunked
+        return buffers;
+    }
+
+    // The header lines (headers, then extraHeaders) as name/value pairs, without the
+    // status line. Names are lowercased - HTTP/2 sends fields, not lines, and only lowercase ones.
+    ArrayList<String[]> headerFields() {
+        ArrayList<String[]> fields = new ArrayList<>();
+        addFields(fields, headers, true);
+        if (extraHeaders != null) {
+            addFields(fields, extraHeaders, false);
+        }
+        return fields;
+    }
+
+    private static void addFields(ArrayList<String[]> fields, byte[] lines, boolean skipStatusLine) {
+        String text = new String(lines, StandardCharsets.ISO_8859_1);
+        int lineStart = 0;
+        while (lineStart < text.length()) {
+            int lineEnd = text.indexOf('\n', lineStart);
+            if (lineEnd == -1) {
+                lineEnd = text.length();
+            }
+            String line = text.substring(lineStart, lineEnd).trim();
+            lineStart = lineEnd + 1;
+            if (skipStatusLine) {
+                skipStatusLine = false;
+                continue;
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                fields.add(new String[] { line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                        line.substring(colon + 1).trim() });
+            }
+        }
+    }
+
+    // Appends a single header line (without CRLF) to the headers.
+    public void addHeader(String line) {
+        addHeader((line + RequestParser.CRLF).getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    // Appends complete header lines (CRLF included). The array is kept, not copied,
+    // so precomputed lines can be passed in directly.
+    public void addHeader(byte[] lines) {
+        if (extraHeaders == null) {
+            extraHeaders = lines;
+            return;
+        }
+        byte[] combined = new byte[extraHeaders.length + lines.length];
+        System.arraycopy(extraHeaders, 0, combined, 0, extraHeaders.length);
+        System.arraycopy(lines, 0, combined, extraHeaders.length, lines.length);
+        extraHeaders = combined;
+    }
 
     public void setHeaders(String head) {
         headers = head.getBytes();
@@ -35,6 +329,50 @@ public class HttpMessage {
         content = cont;
     }
 
+    // Streams the first 'length' bytes of file as the body.
+    public void setContentFile(Path file, long length) {
+        setContentFile(file);
+        addFileRegion(0, length);
+    }
+
+    // Streams parts of file as the body - add them with addFileRegion/addContentBytes.
+    public void setContentFile(Path file) {
+        contentFile = file;
+        contentParts = new ArrayList<>();
+    }
+
+    public void addFileRegion(long offset, long length) {
+        contentParts.add(new BodyPart(offset, length));
+    }
+
+    public void addContentBytes(byte[] bytes) {
+        contentParts.add(new BodyPart(bytes));
+    }
+
+    // The body is written by writer while the response is being sent. headers must not
+    // have a content-length - the length isn't known until the writer is done.
+    public void setStreamingBody(BodyWriter writer) {
+        bodyWriter = writer;
+        content = null;
+        contentFile = null;
+        contentParts = null;
+    }
+
+    // Turns an in-memory body into a streamed (chunked) one - for clients that ask
+    // for chunked responses. File-backed and already streamed bodies are left alone.
+    public void streamContent() {
+        if (bodyWriter != null || contentFile != null) {
+            return;
+        }
+        byte[] body = content;
+        headers = HeaderBytes.withoutLine(headers, HeaderBytes.CONTENT_LENGTH);
+        setStreamingBody(out -> {
+            if (body != null) {
+                out.write(body);
+            }
+        });
+    }
+
     public void setSendContent(boolean set) {
         sendContent = set;
     }
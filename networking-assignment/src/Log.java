@@ -0,0 +1,216 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Our logging, in place of System.out/System.err prints on the request path.
+//
+// Calls below the configured level (logLevel in config.ini) return after one
+// field read. Messages that do get logged are only a template plus arguments
+// dropped into a lock-free ring buffer - the "{}" formatting, the toString()
+// calls and the actual writing all happen on one background thread. If the
+// ring is full the message is dropped and counted rather than making the
+// request thread wait.
+public final class Log {
+
+    enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static final int CAPACITY = 8192; // Must be a power of two.
+    private static final int MASK = CAPACITY - 1;
+
+    private static volatile Level level = Level.INFO;
+
+    // The ring. Slot i is free for the producer claiming position p when
+    // sequences[i] == p, and holds a message for the consumer at position p
+    // when sequences[i] == p + 1 (a bounded MPSC queue, Vyukov-style).
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final Level[] levels = new Level[CAPACITY];
+    private static final long[] times = new long[CAPACITY];
+    private static final String[] templates = new String[CAPACITY];
+    private static final Object[] firstArgs = new Object[CAPACITY];
+    private static final Object[] secondArgs = new Object[CAPACITY];
+    private static final AtomicLong tail = new AtomicLong(); // Next position to claim.
+    private static long head = 0; // Next position to read - writer thread only.
+
+    private static final LongAdder dropped = new LongAdder();
+    private static long droppedReported = 0;
+    private static final PrintStream out = new PrintStream(
+            new BufferedOutputStream(new FileOutputStream(FileDescriptor.err), 64 * 1024), false);
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        Thread writer = new Thread(Log::writerLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // Whatever is still queued when the server exits should make it out.
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static void setLevel(String name) {
+        level = Level.valueOf(name.trim().toUpperCase());
+    }
+
+    public static boolean isDebugEnabled() {
+        return level == Level.DEBUG;
+    }
+
+    // Messages lost because the ring was full.
+    public static long droppedCount() {
+        return dropped.sum();
+    }
+
+    public static void debug(String template) {
+        log(Level.DEBUG, template, null, null);
+    }
+
+    public static void debug(String template, Object arg) {
+        log(Level.DEBUG, template, arg, null);
+    }
+
+    public static void debug(String template, Object first, Object second) {
+        log(Level.DEBUG, template, first, second);
+    }
+
+    public static void info(String template) {
+        log(Level.INFO, template, null, null);
+    }
+
+    public static void info(String template, Object arg) {
+        log(Level.INFO, template, arg, null);
+    }
+
+    public static void warn(String template) {
+        log(Level.WARN, template, null, null);
+    }
+
+    public static void warn(String template, Object arg) {
+        log(Level.WARN, template, arg, null);
+    }
+
+    public static void error(String template, Object arg) {
+        log(Level.ERROR, template, arg, null);
+    }
+
+    private static void log(Level messageLevel, String template, Object first, Object second) {
+        if (messageLevel.ordinal() < level.ordinal()) {
+            return;
+        }
+
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) (position & MASK);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // Writer hasn't freed this slot yet - the ring is full.
+                dropped.increment();
+                return;
+            } else {
+                position = tail.get(); // Someone else took it, try the next one.
+            }
+        }
+
+        levels[index] = messageLevel;
+        times[index] = System.currentTimeMillis();
+        templates[index] = template;
+        firstArgs[index] = first;
+        secondArgs[index] = second;
+        sequences.set(index, position + 1); // Publishes the fields above to the writer.
+    }
+
+    private static void writerLoop() {
+        while (true) {
+            if (!drain()) {
+                LockSupport.parkNanos(1_000_000); // Nothing queued - check again in a millisecond.
+            }
+        }
+    }
+
+    // Writes out everything queued so far. Returns false if there was nothing.
+    private static synchronized boolean drain() {
+        boolean wroteAny = false;
+        while (true) {
+            int index = (int) (head & MASK);
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            Level messageLevel = levels[index];
+            long time = times[index];
+            String template = templates[index];
+            Object first = firstArgs[index];
+            Object second = secondArgs[index];
+            templates[index] = null;
+            firstArgs[index] = null;
+            secondArgs[index] = null;
+            sequences.set(index, head + CAPACITY); // Slot is free for the lap after this one.
+            head++;
+
+            out.print(Instant.ofEpochMilli(time));
+            out.print(' ');
+            out.print(messageLevel);
+            out.print(' ');
+            out.println(format(template, first, second));
+            wroteAny = true;
+        }
+
+        long droppedNow = dropped.sum();
+        if (droppedNow != droppedReported) {
+            out.println("log: " + (droppedNow - droppedReported) + " messages dropped (ring buffer full)");
+            droppedReported = droppedNow;
+            wroteAny = true;
+        }
+        if (wroteAny) {
+            out.flush();
+        }
+        return wroteAny;
+    }
+
+    // Replaces each "{}" in template with the next argument. If the last argument is
+    // a Throwable, its stack trace follows on the lines after, as SLF4J does.
+    private static String format(String template, Object first, Object second) {
+        StringBuilder line = new StringBuilder(template.length() + 32);
+        Object[] args = { first, second };
+        int argIndex = 0;
+        int from = 0;
+        int placeholder;
+        while (argIndex < args.length && (placeholder = template.indexOf("{}", from)) != -1) {
+            line.append(template, from, placeholder).append(text(args[argIndex++]));
+            from = placeholder + 2;
+        }
+        line.append(template, from, template.length());
+        Object last = second != null ? second : first;
+        if (last instanceof Throwable) {
+            StringWriter trace = new StringWriter();
+            ((Throwable) last).printStackTrace(new PrintWriter(trace));
+            line.append(System.lineSeparator()).append(trace.toString().stripTrailing());
+        }
+        return line.toString();
+    }
+
+    private static String text(Object arg) {
+        if (arg instanceof byte[]) {
+            // Raw headers/bodies are passed as-is and only decoded here, off the request path.
+            return new String((byte[]) arg, java.nio.charset.StandardCharsets.ISO_8859_1);
+        }
+        return String.valueOf(arg);
+    }
+}
@@ -0,0 +1,276 @@
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+// Counters and latency histograms for the whole server, served on the admin path
+// (metricsPath in config.ini) as Prometheus text, or JSON with ?format=json.
+//
+// Everything is a LongAdder, so request threads bumping the same counter don't
+// fight over one cache line - the cost moves to reading them, which only the
+// admin endpoint does.
+public final class Metrics {
+
+    // Latency histogram with power-of-two buckets: bucket k holds durations in
+    // [2^(k-1), 2^k) nanoseconds. Coarse, but recording is one add and no locks.
+    static final class Histogram {
+        private static final int BUCKETS = 64;
+        final String name;
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram(String name) {
+            this.name = name;
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            buckets[64 - Long.numberOfLeadingZeros(nanos)].increment();
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        // Upper bound of the bucket holding the given percentile, in nanoseconds.
+        long percentile(long[] snapshot, long total, double percentile) {
+            long rank = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank && seen > 0) {
+                    return 1L << i;
+                }
+            }
+            return 0;
+        }
+
+        long[] snapshot() {
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets[i].sum();
+            }
+            return snapshot;
+        }
+    }
+
+    // Only buckets in this range are listed (roughly 1us to 34s) - the rest still count
+    // towards the cumulative totals, there's just no point printing them one by one.
+    private static final int FIRST_EXPORTED_BUCKET = 10;
+    private static final int LAST_EXPORTED_BUCKET = 35;
+
+    // Methods we count separately - anything else (or an unparseable request) is "OTHER".
+    private static final String[] METHODS = { "GET", "HEAD", "POST", "TRACE", "OTHER" };
+    private static final int STATUS_CODES = 600;
+
+    static final LongAdder CONNECTIONS_ACCEPTED = new LongAdder();
+    static final LongAdder BYTES_IN = new LongAdder();
+    static final LongAdder BYTES_OUT = new LongAdder();
+    static final LongAdder SHED = new LongAdder(); // Connections and requests turned away with a 503.
+    static final LongAdder TIMED_OUT = new LongAdder(); // Connections closed by a deadline (see ConnectionDeadline).
+    private static final LongAdder[][] REQUESTS = new LongAdder[METHODS.length][STATUS_CODES];
+
+    static final Histogram PARSE = new Histogram("parse"); // Request head parsing.
+    static final Histogram FILE_READ = new Histogram("file_read"); // Reading (and compressing) a file on a cache miss.
+    static final Histogram SEND = new Histogram("send"); // Writing a response out to the client.
+    private static final Histogram[] HISTOGRAMS = { PARSE, FILE_READ, SEND };
+
+    // Read only when the metrics are asked for. Set by whichever server is running.
+    private static volatile IntSupplier queueDepth = () -> 0;
+    private static volatile IntSupplier workerThreads = () -> 0;
+
+    static {
+        for (LongAdder[] byStatus : REQUESTS) {
+            for (int i = 0; i < STATUS_CODES; i++) {
+                byStatus[i] = new LongAdder();
+            }
+        }
+    }
+
+    private Metrics() {
+    }
+
+    static void setQueueDepth(IntSupplier depth) {
+        queueDepth = depth;
+    }
+
+    static void setWorkerThreads(IntSupplier threads) {
+        workerThreads = threads;
+    }
+
+    // Counts one finished request. method may be null if the request couldn't be parsed.
+    static void requestDone(String method, int status) {
+        if (status < 0 || status >= STATUS_CODES) {
+            return;
+        }
+        REQUESTS[methodIndex(method)][status].increment();
+    }
+
+    private static int methodIndex(String method) {
+        if (method != null) {
+            for (int i = 0; i < METHODS.length - 1; i++) {
+                if (METHODS[i].equals(method)) {
+                    return i;
+                }
+            }
+        }
+        return METHODS.length - 1;
+    }
+
+    // True if the request target is our admin path (with or without a query string).
+    static boolean isMetricsPath(String target) {
+        String path = WebServer.VALUES.getMetricsPath();
+        if (path.isEmpty() || target == null || !target.startsWith(path)) {
+            return false;
+        }
+        return target.length() == path.length() || target.charAt(path.length()) == '?';
+    }
+
+    static HttpMessage response(HashMap<String, String> requestVars) {
+        String target = requestVars.get("Requested-Index");
+        String accept = requestVars.get("Accept");
+        boolean json = target.contains("format=json")
+                || (accept != null && accept.contains("application/json"));
+
+        byte[] body = (json ? json() : prometheus()).getBytes(StandardCharsets.UTF_8);
+        HttpMessage message = new HttpMessage();
+        message.setHeaders(RequestParser.basicHeaderFormat(RequestParser.ResponseType.OK, null, body.length)
+                + "content-type: " + (json ? "application/json" : "text/plain; version=0.0.4") + RequestParser.CRLF
+                + "cache-control: no-store" + RequestParser.CRLF);
+        message.setContent(body);
+        return message;
+    }
+
+    static String prometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        counter(out, "webserver_connections_accepted_total", "Connections accepted.", CONNECTIONS_ACCEPTED.sum());
+        counter(out, "webserver_bytes_received_total", "Bytes read from clients.", BYTES_IN.sum());
+        counter(out, "webserver_bytes_sent_total", "Bytes written to clients.", BYTES_OUT.sum());
+        counter(out, "webserver_shed_total", "Connections and requests turned away because we were overloaded.",
+                SHED.sum());
+        counter(out, "webserver_timeouts_total", "Connections closed because an idle, header, body or write deadline passed.",
+                TIMED_OUT.sum());
+        counter(out, "webserver_log_messages_dropped_total", "Log messages dropped because the log buffer was full.",
+                Log.droppedCount());
+        out.append("# HELP webserver_executor_queue_depth Tasks waiting for a worker thread.\n")
+                .append("# TYPE webserver_executor_queue_depth gauge\n")
+                .append("webserver_executor_queue_depth ").append(queueDepth.getAsInt()).append('\n');
+        out.append("# HELP webserver_executor_threads Worker threads right now (the pool sizes itself to the load).\n")
+                .append("# TYPE webserver_executor_threads gauge\n")
+                .append("webserver_executor_threads ").append(workerThreads.getAsInt()).append('\n');
+
+        out.append("# HELP webserver_buffer_pool_idle_bytes Bytes of I/O buffers sitting in the pool, ready for reuse.\n")
+                .append("# TYPE webserver_buffer_pool_idle_bytes gauge\n")
+                .append("webserver_buffer_pool_idle_bytes ").append(BufferPool.idleBytes()).append('\n');
+        out.append("# HELP webserver_buffers_in_use I/O buffers borrowed from the pool right now.\n")
+                .append("# TYPE webserver_buffers_in_use gauge\n")
+                .append("webserver_buffers_in_use ").append(BufferPool.inUse()).append('\n');
+        counter(out, "webserver_buffers_allocated_total", "I/O buffers allocated because the pool had none idle.",
+                BufferPool.allocated());
+        counter(out, "webserver_buffer_leaks_total", "Pooled buffers collected without being given back (bufferLeakDetection).",
+                BufferPool.leaks());
+
+        out.append("# HELP webserver_requests_total Requests answered, by method and status.\n")
+                .append("# TYPE webserver_requests_total counter\n");
+        for (int m = 0; m < METHODS.length; m++) {
+            for (int status = 0; status < STATUS_CODES; status++) {
+                long count = REQUESTS[m][status].sum();
+                if (count > 0) {
+                    out.append("webserver_requests_total{method=\"").append(METHODS[m])
+                            .append("\",status=\"").append(status).append("\"} ").append(count).append('\n');
+                }
+            }
+        }
+
+        out.append("# HELP webserver_phase_seconds Time spent in each phase of handling a request.\n")
+                .append("# TYPE webserver_phase_seconds histogram\n");
+        for (Histogram histogram : HISTOGRAMS) {
+            long[] snapshot = histogram.snapshot();
+            long cumulative = 0;
+            for (int i = 0; i <= LAST_EXPORTED_BUCKET; i++) {
+                cumulative += snapshot[i];
+                if (i >= FIRST_EXPORTED_BUCKET) {
+                    out.append("webserver_phase_seconds_bucket{phase=\"").append(histogram.name)
+                            .append("\",le=\"").append(seconds(1L << i)).append("\"} ").append(cumulative)
+                            .append('\n');
+                }
+            }
+            long count = histogram.count.sum();
+            out.append("webserver_phase_seconds_bucket{phase=\"").append(histogram.name).append("\",le=\"+Inf\"} ")
+                    .append(count).append('\n');
+            out.append("webserver_phase_seconds_sum{phase=\"").append(histogram.name).append("\"} ")
+                    .append(seconds(histogram.sumNanos.sum())).append('\n');
+            out.append("webserver_phase_seconds_count{phase=\"").append(histogram.name).append("\"} ")
+                    .append(count).append('\n');
+        }
+        return out.toString();
+    }
+
+    static String json() {
+        StringBuilder out = new StringBuilder(2048);
+        out.append("{\"connectionsAccepted\":").append(CONNECTIONS_ACCEPTED.sum())
+                .append(",\"bytesReceived\":").append(BYTES_IN.sum())
+                .append(",\"bytesSent\":").append(BYTES_OUT.sum())
+                .append(",\"shed\":").append(SHED.sum())
+                .append(",\"timedOut\":").append(TIMED_OUT.sum())
+                .append(",\"logMessagesDropped\":").append(Log.droppedCount())
+                .append(",\"executorQueueDepth\":").append(queueDepth.getAsInt())
+                .append(",\"executorThreads\":").append(workerThreads.getAsInt())
+                .append(",\"bufferPoolIdleBytes\":").append(BufferPool.idleBytes())
+                .append(",\"buffersInUse\":").append(BufferPool.inUse())
+                .append(",\"buffersAllocated\":").append(BufferPool.allocated())
+                .append(",\"bufferLeaks\":").append(BufferPool.leaks())
+                .append(",\"requests\":[");
+        boolean first = true;
+        for (int m = 0; m < METHODS.length; m++) {
+            for (int status = 0; status < STATUS_CODES; status++) {
+                long count = REQUESTS[m][status].sum();
+                if (count > 0) {
+                    out.append(first ? "" : ",").append("{\"method\":\"").append(METHODS[m])
+                            .append("\",\"status\":").append(status).append(",\"count\":").append(count).append('}');
+                    first = false;
+                }
+            }
+        }
+        out.append("],\"phases\":{");
+        for (int h = 0; h < HISTOGRAMS.length; h++) {
+            Histogram histogram = HISTOGRAMS[h];
+            long[] snapshot = histogram.snapshot();
+            long count = 0;
+            for (long bucket : snapshot) {
+                count += bucket;
+            }
+            out.append(h == 0 ? "" : ",").append('"').append(histogram.name).append("\":{\"count\":").append(count)
+                    .append(",\"sumSeconds\":").append(seconds(histogram.sumNanos.sum()))
+                    .append(",\"p50Seconds\":").append(seconds(histogram.percentile(snapshot, count, 0.50)))
+                    .append(",\"p99Seconds\":").append(seconds(histogram.percentile(snapshot, count, 0.99)))
+                    .append(",\"p999Seconds\":").append(seconds(histogram.percentile(snapshot, count, 0.999)))
+                    .append(",\"buckets\":[");
+            boolean firstBucket = true;
+            for (int i = 0; i < snapshot.length; i++) {
+                if (snapshot[i] > 0) {
+                    out.append(firstBucket ? "" : ",").append("{\"leSeconds\":").append(seconds(1L << i))
+                            .append(",\"count\":").append(snapshot[i]).append('}');
+                    firstBucket = false;
+                }
+            }
+            out.append("]}");
+        }
+        out.append("}}");
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(" counter\n")
+                .append(name).append(' ').append(value).append('\n');
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+}
@@ -0,0 +1,1112 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The non-blocking alternative to WebServer (serverMode=nio in config.ini).
+// A reactor thread accepts, reads, parses and writes for its connections through
+// a Selector - only building the response (which may block on the disk) is handed
+// off to the worker pool. A slow client costs us a buffer, not a thread.
+//
+// There's one reactor (an EventLoop) per core by default (ioThreads), each with its
+// own Selector. A connection stays on the loop that got it for its whole life, so
+// loops share nothing but the worker pool and the connection count. Each loop
+// accepts on its own SO_REUSEPORT socket where it can; otherwise the first loop
+// accepts for all of them and hands connections out in turn.
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 8192;
+    // How much of a streamed body may sit in a connection's write queue before the
+    // worker producing it has to wait for the client to catch up.
+    private static final int STREAM_WINDOW = 256 * 1024;
+    // Most buffers handed to one gathering write - well under the OS limit (IOV_MAX).
+    private static final int MAX_BATCH_BUFFERS = 64;
+
+    private final WorkerPool workers; // Bounded queue - past it, requests get a 503.
+    private final AtomicInteger connections = new AtomicInteger(); // Open right now, on every loop.
+    private final AtomicInteger http2Threads = new AtomicInteger(); // Handed over to HTTP/2, see handOver.
+    private AtomicBoolean running = new AtomicBoolean(true);
+    private volatile EventLoop[] loops;
+    private boolean handOut; // One loop accepts for all of them (no SO_REUSEPORT).
+    private int nextLoop; // Whose turn it is for the next connection - only the accepting loop touches it.
+
+    public NioServer() {
+        this.workers = new WorkerPool("worker", WebServer.VALUES);
+        Metrics.setQueueDepth(() -> workers.getQueue().size());
+        Metrics.setWorkerThreads(workers::threads);
+    }
+
+    // One reactor thread and what belongs to it. Only that thread touches the state of
+    // its connections, so workers, deadlines and the accepting loop leave whatever
+    // they have for it (finished responses, closes, new connections) in tasks.
+    private static final class EventLoop {
+        final Selector selector;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        // Runs task on this loop's thread, as soon as it gets to it. Any thread can call it.
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    // Something still to be written: buffers (written with one gathering write),
+    // a region of a file, or - with neither - the end of an exchange's response.
+    private static class Pending {
+        final ByteBuffer[] buffers;
+        final FileChannel file;
+        long position;
+        final long end;
+        final Exchange finished;
+        Semaphore credit; // Streamed body data - given back to the worker once written.
+        int permits;
+        boolean pooled; // The buffers are from BufferPool - given back once written, or dropped.
+
+        Pending(ByteBuffer... buffers) {
+            this.buffers = buffers;
+            this.file = null;
+            this.end = 0;
+            this.finished = null;
+        }
+
+        Pending(FileChannel file, long position, long end) {
+            this.buffers = null;
+            this.file = file;
+            this.position = position;
+            this.end = end;
+            this.finished = null;
+        }
+
+        Pending(Exchange finished) {
+            this.buffers = null;
+            this.file = null;
+            this.end = 0;
+            this.finished = finished;
+        }
+
+        void release() {
+            if (pooled) {
+                for (ByteBuffer buffer : buffers) {
+                    BufferPool.give(buffer);
+                }
+            }
+        }
+    }
+
+    // One request taken off a connection, from the moment it's parsed until its
+    // response is written. Clients pipeline, so a connection can have several of
+    // these going at once - their responses still go out in request order.
+    private static class Exchange {
+        final RequestHandler handler; // Null for an error we answer without a worker.
+        final HashMap<String, String> requestVars;
+        final int requestsServed;
+        final boolean safe; // GET or HEAD without a body - fine to run alongside other requests.
+        // Output that's ready while an earlier response is still on its way out.
+        final ArrayDeque<Pending> output = new ArrayDeque<>();
+        FileChannel file; // Closed once the response is written.
+        boolean done; // The worker is finished, everything it produced is queued.
+        boolean keepAlive;
+        long queuedAt; // When it was handed to the workers, for maxQueueTime.
+        long sendStarted; // When the response reached the write queue, for the send histogram.
+
+        Exchange(RequestHandler handler, HashMap<String, String> requestVars, int requestsServed,
+                boolean keepAlive, boolean safe) {
+            this.handler = handler;
+            this.requestVars = requestVars;
+            this.requestsServed = requestsServed;
+            this.keepAlive = keepAlive;
+            this.safe = safe;
+        }
+    }
+
+    // Everything we know about one client connection.
+    private static class Connection {
+        final SocketChannel channel;
+        final EventLoop loop; // The only thread that touches any of this.
+        ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE); // Always left in "write" mode.
+        // What's ready to go out, in order. A response only gets here once all
+        // the responses before it have.
+        final ArrayDeque<Pending> writeQueue = new ArrayDeque<>();
+        final RequestHeadParser headParser = new RequestHeadParser(WebServer.VALUES.getMaxHeaderSize());
+        final ArrayDeque<Exchange> inFlight = new ArrayDeque<>(); // Not in writeQueue yet, oldest first.
+        int outstanding; // Requests taken whose responses aren't written yet - at most maxPipelineDepth.
+        int running; // Requests with the workers right now.
+        boolean exclusive; // The one running request has to run alone (see Exchange.safe).
+        Exchange held; // Taken, but waiting for the requests before it to finish (see canStart).
+        boolean noMoreRequests; // The last request taken ends the connection.
+        boolean inputClosed; // The client won't send anything more.
+        int requestsServed;
+        ConnectionDeadline deadline; // Re-picked every time pump() is done with the connection.
+        // A body still arriving: where it's going, and the head it belongs to. A
+        // Content-Length body counts down bodyRemaining, a chunked one has a decoder.
+        RequestBody.Sink body;
+        long bodyRemaining;
+        ChunkDecoder chunks;
+        String bodyHeaders;
+        HashMap<String, String> bodyRequestVars;
+
+        Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+    }
+
+    public void run() {
+        List<ServerSocketChannel> listeners = new ArrayList<>();
+        Log.info("NIO server started on port {}", WebServer.VALUES.getPort());
+        try {
+            EventLoop[] all = new EventLoop[WebServer.VALUES.getIoThreads()];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = new EventLoop();
+            }
+            loops = all;
+            listeners = WebServer.openListeners(all.length);
+            handOut = listeners.size() < all.length;
+            for (int i = 0; i < listeners.size(); i++) {
+                listeners.get(i).configureBlocking(false);
+                listeners.get(i).register(all[i].selector, SelectionKey.OP_ACCEPT);
+            }
+            Log.info("Running {} event loops.", all.length);
+            if (handOut && all.length > 1) {
+                Log.info("No SO_REUSEPORT - the first loop accepts and hands connections out.");
+            }
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 1; i < all.length; i++) {
+                EventLoop loop = all[i];
+                Thread thread = new Thread(() -> loop(loop), "nio-loop-" + i);
+                thread.start();
+                threads.add(thread);
+            }
+            loop(all[0]); // This thread is the first loop.
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (Exception e) {
+            Log.error("FATAL ERROR: Server stopped unexpectedly: {}", e);
+        } finally {
+            stop(); // If we got here because something failed, the other loops go too.
+            workers.shutdown();
+            try {
+                for (ServerSocketChannel listener : listeners) {
+                    listener.close();
+                }
+            } catch (IOException e) {
+                Log.warn("Error closing server channel: {}", e.getMessage());
+            }
+        }
+        Log.info("Shutting down server!");
+    }
+
+    // Call this method to stop the server
+    public void stop() {
+        running.set(false);
+        EventLoop[] all = loops;
+        if (all != null) {
+            for (EventLoop loop : all) {
+                loop.selector.wakeup();
+            }
+        }
+    }
+
+    // One reactor, running until the server stops.
+    private void loop(EventLoop loop) {
+        Selector selector = loop.selector;
+        try {
+            while (running.get()) {
+                selector.select(); // Deadlines, workers and the other loops wake us up through tasks.
+
+                Runnable task;
+                while ((task = loop.tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept(loop, (ServerSocketChannel) key.channel());
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            read(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            pump(key, (Connection) key.attachment());
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        close(key); // One bad connection shouldn't take the reactor down.
+                    }
+                }
+            }
+        } catch (Exception e) {
+            Log.error("FATAL ERROR: Event loop stopped unexpectedly: {}", e);
+            stop();
+        } finally {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                Log.warn("Error closing selector: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void accept(EventLoop loop, ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        // Drain everything that's waiting, not just one connection per wakeup.
+        while ((channel = serverChannel.accept()) != null) {
+            Metrics.CONNECTIONS_ACCEPTED.increment();
+            if (connections.incrementAndGet() > WebServer.VALUES.getMaxConnections()) {
+                connections.decrementAndGet();
+                shed(channel);
+                continue;
+            }
+            channel.configureBlocking(false);
+            EventLoop target = loop;
+            if (handOut) {
+                target = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+            }
+            if (target == loop) {
+                register(loop, channel);
+            } else {
+                EventLoop owner = target;
+                SocketChannel accepted = channel;
+                owner.execute(() -> register(owner, accepted));
+            }
+        }
+    }
+
+    // Runs on the loop the connection will live on.
+    private void register(EventLoop loop, SocketChannel channel) {
+        Connection conn = new Connection(channel, loop);
+        SelectionKey key;
+        try {
+            key = channel.register(loop.selector, SelectionKey.OP_READ, conn);
+        } catch (IOException e) {
+            connections.decrementAndGet();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Already gone, nothing to do.
+            }
+            return;
+        }
+        conn.deadline = new ConnectionDeadline(() -> loop.execute(() -> close(key)));
+        conn.deadline.enter(ConnectionDeadline.Phase.IDLE);
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection conn = (Connection) key.attachment();
+        if (!conn.readBuffer.hasRemaining()) {
+            // Out of room - grow, so a head (or a chunk-size line) can fit in one piece.
+            // Both are capped at maxHeaderSize, bodies are taken out as they arrive.
+            ByteBuffer bigger = ByteBuffer.allocate(conn.readBuffer.capacity() * 2);
+            conn.readBuffer.flip();
+            bigger.put(conn.readBuffer);
+            conn.readBuffer = bigger;
+        }
+
+        int read = conn.channel.read(conn.readBuffer);
+        if (read == -1) {
+            // It may have half-closed after pipelining its last requests - those still get answered.
+            conn.inputClosed = true;
+        } else {
+            Metrics.BYTES_IN.add(read);
+        }
+        pump(key, conn);
+    }
+
+    // Moves a connection along as far as it can go right now: takes the requests
+    // already sitting in the read buffer (as many as the pipeline has room for),
+    // writes whatever responses are ready, then picks what to wait for next.
+    private void pump(SelectionKey key, Connection conn) throws IOException {
+        while (true) {
+            while (canTakeRequest(conn) && dispatch(key, conn)) {
+                // More requests may be pipelined behind this one.
+            }
+            if (!key.isValid()) {
+                return; // Handed over to HTTP/2.
+            }
+            int outstanding = conn.outstanding;
+            if (!flush(key, conn)) {
+                key.interestOps(SelectionKey.OP_WRITE); // Socket buffer is full - come back when it drains.
+                conn.deadline.enter(ConnectionDeadline.Phase.WRITE);
+                return;
+            }
+            if (!key.isValid()) {
+                return; // Sent a response that ends the connection.
+            }
+            if (conn.outstanding == outstanding) {
+                break; // Nothing finished, so no new room in the pipeline.
+            }
+        }
+        if (conn.inputClosed && conn.outstanding == 0) {
+            close(key);
+            return;
+        }
+        // Reading stops while the pipeline is full - that's what bounds a connection's memory.
+        key.interestOps(canTakeRequest(conn) && !conn.inputClosed ? SelectionKey.OP_READ : 0);
+        conn.deadline.enter(waitingOn(conn));
+    }
+
+    // What we're waiting on the client for, once everything ready has been written.
+    private static ConnectionDeadline.Phase waitingOn(Connection conn) {
+        if (conn.body != null) {
+            return ConnectionDeadline.Phase.BODY;
+        }
+        if (!canTakeRequest(conn)) {
+            return ConnectionDeadline.Phase.NONE; // Not reading - it's our turn.
+        }
+        if (conn.readBuffer.position() > 0) {
+            return ConnectionDeadline.Phase.HEADER;
+        }
+        return conn.outstanding == 0 ? ConnectionDeadline.Phase.IDLE : ConnectionDeadline.Phase.NONE;
+    }
+
+    private static boolean canTakeRequest(Connection conn) {
+        return !conn.noMoreRequests && conn.held == null
+                && conn.outstanding < WebServer.VALUES.getMaxPipelineDepth();
+    }
+
+    // If a complete request is sitting in the read buffer, cut it out and take it.
+    // Returns false if there wasn't one (or it was unusable).
+    private boolean dispatch(SelectionKey key, Connection conn) {
+        if (conn.body != null) {
+            return feedBody(key, conn); // Still collecting the body of the last head we parsed.
+        }
+        byte[] data = conn.readBuffer.array();
+        int length = conn.readBuffer.position();
+
+        // Picks up where it left off if we've been here before for this request.
+        RequestHeadParser.Result result = conn.headParser.parse(data, 0, length);
+        if (result == RequestHeadParser.Result.NEED_MORE) {
+            return false;
+        }
+        if (result != RequestHeadParser.Result.DONE) {
+            respondWithError(conn, result == RequestHeadParser.Result.TOO_LARGE
+                    ? RequestParser.HeaderTooLargeResponse() : null);
+            return false;
+        }
+
+        HashMap<String, String> requestVars = conn.headParser.requestVars();
+        String headers = "TRACE".equals(requestVars.get("Request-Type"))
+                ? conn.headParser.headString(data, 0) : null;
+        int bodyStart = conn.headParser.headLength();
+        if (conn.outstanding == 0
+                && (Http2Connection.isPriorKnowledge(requestVars) || Http2Connection.wantsUpgrade(requestVars))) {
+            // Behind anything else pipelined it's answered as HTTP/1.1 - the upgrade is optional.
+            // So is it when there's no room for another HTTP/2 thread (http2MaxConnections).
+            if (http2Threads.incrementAndGet() <= WebServer.VALUES.getHttp2MaxConnections()) {
+                handOver(key, conn, requestVars, headers, bodyStart);
+                return false;
+            }
+            http2Threads.decrementAndGet();
+            if (Http2Connection.isPriorKnowledge(requestVars)) {
+                refuseHttp2(conn);
+                return false;
+            }
+        }
+        long maxBodySize = WebServer.VALUES.getMaxBodySize();
+        try {
+            String transferEncoding = requestVars.get("Transfer-Encoding");
+            if (transferEncoding != null && transferEncoding.equalsIgnoreCase("chunked")) {
+                // Decoded as it arrives, same as a Content-Length body is copied - see feedBody.
+                conn.headParser.reset();
+                consume(conn, bodyStart);
+                conn.body = newBodySink(-1);
+                conn.chunks = new ChunkDecoder(WebServer.VALUES.getMaxHeaderSize());
+                conn.bodyHeaders = headers;
+                conn.bodyRequestVars = requestVars;
+                return feedBody(key, conn);
+            } else if (requestVars.containsKey("Content-Length")) {
+                long contentLength = Long.parseLong(requestVars.get("Content-Length").trim());
+                if (contentLength < 0) {
+                    throw new NumberFormatException("Negative Content-Length");
+                }
+                if (contentLength > maxBodySize) {
+                    throw new RequestBody.TooLargeException(maxBodySize);
+                }
+                // The body is taken out of the read buffer as it arrives, so the buffer never
+                // has to grow to fit it - big ones end up in a temp file instead.
+                conn.headParser.reset();
+                consume(conn, bodyStart);
+                conn.body = newBodySink(contentLength);
+                conn.bodyRemaining = contentLength;
+                conn.bodyHeaders = headers;
+                conn.bodyRequestVars = requestVars;
+                return feedBody(key, conn);
+            } else {
+                conn.headParser.reset();
+                consume(conn, bodyStart);
+                take(key, conn, headers, null, requestVars);
+                return true;
+            }
+        } catch (NumberFormatException e) {
+            // Garbage length.
+            respondWithError(conn, null);
+        } catch (RequestBody.TooLargeException e) {
+            respondWithError(conn, RequestParser.PayloadTooLargeResponse());
+        }
+        return false;
+    }
+
+    // Moves whatever part of the pending body is in the read buffer into its sink,
+    // and takes the request once the body is complete (returning true).
+    private boolean feedBody(SelectionKey key, Connection conn) {
+        byte[] data = conn.readBuffer.array();
+        int available = conn.readBuffer.position();
+        int take;
+        boolean complete;
+        try {
+            if (conn.chunks != null) {
+                take = conn.chunks.feed(data, available, conn.body);
+                complete = conn.chunks.done;
+            } else {
+                take = (int) Math.min(available, conn.bodyRemaining);
+                conn.body.write(data, 0, take);
+                conn.bodyRemaining -= take;
+                complete = conn.bodyRemaining == 0;
+            }
+        } catch (NumberFormatException e) {
+            // Garbage chunk size.
+            dropBody(conn);
+            respondWithError(conn, null);
+            return false;
+        } catch (RequestBody.TooLargeException e) {
+            dropBody(conn);
+            respondWithError(conn, RequestParser.PayloadTooLargeResponse());
+            return false;
+        } catch (ConnectionInput.LineTooLongException e) {
+            // A chunk-size line or the trailers never ended.
+            dropBody(conn);
+            respondWithError(conn, RequestParser.HeaderTooLargeResponse());
+            return false;
+        } catch (IOException e) {
+            // Couldn't write the temp file.
+            dropBody(conn);
+            respondWithError(conn, RequestParser.ServerErrorResponse());
+            return false;
+        }
+        consume(conn, take);
+        if (!complete) {
+            return false;
+        }
+
+        RequestBody.Sink sink = conn.body;
+        String headers = conn.bodyHeaders;
+        HashMap<String, String> requestVars = conn.bodyRequestVars;
+        conn.body = null;
+        conn.chunks = null;
+        conn.bodyHeaders = null;
+        conn.bodyRequestVars = null;
+        try {
+            take(key, conn, headers, sink.finish(), requestVars);
+            return true;
+        } catch (IOException e) {
+            sink.abort();
+            respondWithError(conn, RequestParser.ServerErrorResponse());
+            return false;
+        }
+    }
+
+    // The connection is switching to HTTP/2, which is served by a blocking thread of its
+    // own (see Http2Connection) rather than this loop. The channel has to leave the
+    // selector before it can block, which happens at the loop's next select - the
+    // thread is started from a task, which runs after that.
+    private void handOver(SelectionKey key, Connection conn, HashMap<String, String> requestVars, String headers,
+            int headLength) {
+        conn.headParser.reset();
+        consume(conn, headLength);
+        byte[] leftover = Arrays.copyOf(conn.readBuffer.array(), conn.readBuffer.position());
+        conn.deadline.clear();
+        key.cancel();
+        boolean priorKnowledge = Http2Connection.isPriorKnowledge(requestVars);
+        conn.loop.execute(() -> {
+            Thread thread = new Thread(() -> {
+                try {
+                    conn.channel.configureBlocking(true);
+                    Socket socket = conn.channel.socket();
+                    // Adaptor streams, so frames can be read and written at the same time.
+                    InputStream in = new ConnectionInput(
+                            new SequenceInputStream(new ByteArrayInputStream(leftover), socket.getInputStream()),
+                            () -> { }, () -> { });
+                    new Http2Connection(socket, in, socket.getOutputStream())
+                            .run(priorKnowledge ? null : requestVars, headers);
+                } catch (IOException e) {
+                    try {
+                        conn.channel.close();
+                    } catch (IOException e2) {
+                        // Gone already.
+                    }
+                } finally {
+                    http2Threads.decrementAndGet();
+                    connections.decrementAndGet();
+                }
+            }, "h2c");
+            thread.setDaemon(true);
+            thread.start();
+        });
+    }
+
+    // A prior-knowledge client, with every HTTP/2 thread taken - it can't be answered over
+    // HTTP/1.1, so it gets a GOAWAY and we hang up once that's out.
+    private void refuseHttp2(Connection conn) {
+        Metrics.SHED.increment();
+        conn.noMoreRequests = true;
+        conn.outstanding++;
+        Exchange exchange = new Exchange(null, null, 0, false, false);
+        exchange.done = true;
+        conn.inFlight.add(exchange);
+        queueOutput(conn, exchange, List.of(new Pending(ByteBuffer.wrap(Http2Connection.REFUSAL))));
+    }
+
+    // Drops the first 'count' bytes of the read buffer, keeping whatever follows them.
+    private static void consume(Connection conn, int count) {
+        byte[] data = conn.readBuffer.array();
+        int length = conn.readBuffer.position();
+        System.arraycopy(data, count, data, 0, length - count);
+        conn.readBuffer.position(length - count);
+    }
+
+    private static RequestBody.Sink newBodySink(long contentLength) {
+        return new RequestBody.Sink(WebServer.VALUES.getMaxBodySize(), WebServer.VALUES.getBodySpillThreshold(),
+                contentLength);
+    }
+
+    // Takes a complete request off the connection. It goes to the workers right away
+    // if it can run alongside whatever is running already, otherwise it's held back.
+    private void take(SelectionKey key, Connection conn, String headers, RequestBody body,
+            HashMap<String, String> requestVars) {
+        conn.requestsServed++;
+        RequestHandler handler = new RequestHandler(headers, body, requestVars);
+        boolean keepAlive = handler.wantsKeepAlive(conn.requestsServed);
+        String method = requestVars.get("Request-Type");
+        boolean safe = body == null && ("GET".equals(method) || "HEAD".equals(method));
+        Exchange exchange = new Exchange(handler, requestVars, conn.requestsServed, keepAlive, safe);
+        if (!keepAlive) {
+            conn.noMoreRequests = true; // Anything pipelined after this one won't be answered.
+        }
+        conn.outstanding++;
+        conn.inFlight.add(exchange);
+        if (canStart(conn, exchange)) {
+            start(key, conn, exchange);
+        } else {
+            conn.held = exchange;
+        }
+    }
+
+    // GETs and HEADs only read, so they can run in parallel. Anything else runs on
+    // its own, after the requests before it are done and before the ones after it start.
+    private static boolean canStart(Connection conn, Exchange exchange) {
+        return exchange.safe ? !conn.exclusive : conn.running == 0;
+    }
+
+    private void start(SelectionKey key, Connection conn, Exchange exchange) {
+        conn.running++;
+        if (!exchange.safe) {
+            conn.exclusive = true;
+        }
+        exchange.queuedAt = System.nanoTime();
+        try {
+            workers.execute(() -> work(key, conn, exchange));
+        } catch (RejectedExecutionException e) {
+            shed(key, conn, exchange); // Every worker is busy and the queue is full.
+        }
+    }
+
+    // Turns a request away with the 503 instead of doing any work on it. Fine to call
+    // from any thread - the answer goes through the reactor like any other response.
+    private void shed(SelectionKey key, Connection conn, Exchange exchange) {
+        Metrics.SHED.increment();
+        exchange.handler.closeBody();
+        HttpMessage unavailable = RequestParser.ServiceUnavailableResponse();
+        Metrics.requestDone(exchange.requestVars.get("Request-Type"), unavailable.statusCode());
+        ArrayDeque<Pending> response = new ArrayDeque<>();
+        response.add(new Pending(unavailable.toBuffers()));
+        conn.loop.execute(() -> responseReady(key, conn, exchange, response, null, false));
+    }
+
+    // Overloaded - a brand new connection gets the 503 and is closed before we read anything.
+    private static void shed(SocketChannel channel) {
+        Metrics.SHED.increment();
+        try (channel) {
+            // Still in blocking mode, and it's a fresh socket - this write won't wait.
+            ByteBuffer unavailable = ByteBuffer.wrap(RequestParser.serviceUnavailableBytes());
+            while (unavailable.hasRemaining()) {
+                channel.write(unavailable);
+            }
+            channel.shutdownOutput();
+            // Drop what the client already sent, so closing doesn't reset the connection.
+            channel.configureBlocking(false);
+            ByteBuffer discard = BufferPool.take();
+            try {
+                while (channel.read(discard) > 0) {
+                    discard.clear();
+                }
+            } finally {
+                BufferPool.give(discard);
+            }
+        } catch (IOException e) {
+            // Client's gone already.
+        }
+    }
+
+    // Builds the response on a worker thread and hands it back to the reactor.
+    private void work(SelectionKey key, Connection conn, Exchange exchange) {
+        if (WebServer.waitedTooLong(exchange.queuedAt)) {
+            shed(key, conn, exchange);
+            return;
+        }
+        ArrayDeque<Pending> response = new ArrayDeque<>();
+        FileChannel file = null;
+        boolean keepAlive;
+        int status;
+        RequestHandler handler = exchange.handler;
+        HashMap<String, String> requestVars = exchange.requestVars;
+        HttpMessage message = null;
+        ReactorStream stream = null;
+        try {
+            message = handler.respond();
+            keepAlive = RequestHandler.streamingKeepAlive(message, requestVars, exchange.keepAlive);
+            RequestHandler.addConnectionHeaders(message, keepAlive, exchange.requestsServed);
+            status = message.statusCode();
+            if (message.isStreamed()) {
+                // Goes out piece by piece while it's generated, see ReactorStream.
+                stream = new ReactorStream(key, conn, exchange);
+                message.writeStreamed(stream, HttpMessage.chunkSizeFor(conn.channel));
+            } else {
+                response.add(new Pending(message.toBuffers()));
+            }
+            if (message.hasFileContent()) {
+                // Opening the file may block, so it's done here rather than on the reactor.
+                file = FileChannel.open(message.contentFile, StandardOpenOption.READ);
+                for (HttpMessage.BodyPart part : message.contentParts) {
+                    response.add(part.bytes != null ? new Pending(ByteBuffer.wrap(part.bytes))
+                            : new Pending(file, part.offset, part.offset + part.length));
+                }
+            }
+        } catch (Exception e) {
+            Log.warn("Err caught in worker: {}", e);
+            closeQuietly(file);
+            file = null;
+            response.clear();
+            keepAlive = false;
+            if (stream != null && stream.started) {
+                // Part of the body is already out - hang up once it's sent, so
+                // the client can tell the body was cut short.
+                status = message.statusCode();
+            } else {
+                HttpMessage err = RequestParser.ServerErrorResponse();
+                err.addHeader(HeaderBytes.CONNECTION_CLOSE);
+                response.add(new Pending(err.toBuffers()));
+                status = err.statusCode();
+            }
+        } finally {
+            handler.closeBody(); // The response never points into the request body.
+        }
+        Metrics.requestDone(requestVars.get("Request-Type"), status);
+        final FileChannel outFile = file;
+        final boolean keep = keepAlive;
+        conn.loop.execute(() -> responseReady(key, conn, exchange, response, outFile, keep));
+    }
+
+    // Unusable request - answered like the threaded server does (err, or a 400 if
+    // it's null) once the responses before it are out, and then we hang up.
+    private void respondWithError(Connection conn, HttpMessage err) {
+        if (err == null) {
+            try {
+                err = RequestParser.BadRequestResponseCode();
+            } catch (IOException e) {
+                err = RequestParser.ServerErrorResponse();
+            }
+        }
+        err.addHeader(HeaderBytes.CONNECTION_CLOSE);
+        Metrics.requestDone(conn.headParser.requestVars().get("Request-Type"), err.statusCode());
+        conn.noMoreRequests = true;
+        conn.outstanding++;
+        Exchange exchange = new Exchange(null, null, 0, false, false);
+        exchange.done = true;
+        conn.inFlight.add(exchange);
+        queueOutput(conn, exchange, List.of(new Pending(err.toBuffers())));
+    }
+
+    // Runs on the reactor thread once a worker is done with an exchange.
+    private void responseReady(SelectionKey key, Connection conn, Exchange exchange, ArrayDeque<Pending> response,
+            FileChannel file, boolean keepAlive) {
+        if (!key.isValid()) {
+            closeQuietly(file);
+            return; // Client left while we were working on it.
+        }
+        conn.running--;
+        if (!exchange.safe) {
+            conn.exclusive = false;
+        }
+        exchange.file = file;
+        exchange.keepAlive = keepAlive;
+        exchange.done = true;
+        queueOutput(conn, exchange, response);
+        if (conn.held != null && canStart(conn, conn.held)) {
+            Exchange next = conn.held;
+            conn.held = null;
+            start(key, conn, next);
+        }
+        try {
+            pump(key, conn);
+        } catch (IOException e) {
+            close(key);
+        }
+    }
+
+    // Adds output for an exchange. It only moves on to the write queue once every
+    // exchange before it is done - that's what keeps pipelined responses in order.
+    private static void queueOutput(Connection conn, Exchange exchange, Collection<Pending> output) {
+        exchange.output.addAll(output);
+        while (!conn.inFlight.isEmpty()) {
+            Exchange first = conn.inFlight.peek();
+            if (!first.output.isEmpty()) {
+                if (first.sendStarted == 0) {
+                    first.sendStarted = System.nanoTime();
+                }
+                conn.writeQueue.addAll(first.output);
+                first.output.clear();
+            }
+            if (!first.done) {
+                return; // Still being built (or streamed) - everything after it waits.
+            }
+            conn.writeQueue.add(new Pending(first)); // Marks the end of its response.
+            conn.inFlight.poll();
+        }
+    }
+
+    // Writes as much of the write queue as the socket will take. Returns false if
+    // the socket filled up first.
+    private boolean flush(SelectionKey key, Connection conn) throws IOException {
+        while (!conn.writeQueue.isEmpty()) {
+            Pending pending = conn.writeQueue.peek();
+            if (pending.finished != null) {
+                conn.writeQueue.poll();
+                Exchange exchange = pending.finished;
+                closeQuietly(exchange.file);
+                exchange.file = null;
+                conn.outstanding--;
+                if (exchange.sendStarted != 0) {
+                    // Includes any time spent waiting for a slow client to make room.
+                    Metrics.SEND.record(System.nanoTime() - exchange.sendStarted);
+                }
+                if (!exchange.keepAlive) {
+                    close(key);
+                    return true;
+                }
+                continue;
+            }
+            if (pending.buffers != null) {
+                Metrics.BYTES_OUT.add(conn.channel.write(batch(conn.writeQueue)));
+                if (!dropWritten(conn.writeQueue)) {
+                    return false;
+                }
+                continue;
+            }
+            // Straight from the file to the socket, as much as the socket will take right now.
+            while (pending.position < pending.end) {
+                long sent = pending.file.transferTo(pending.position, pending.end - pending.position, conn.channel);
+                if (sent == 0) {
+                    if (pending.position >= pending.file.size()) {
+                        throw new IOException("File shrank while sending.");
+                    }
+                    return false;
+                }
+                pending.position += sent;
+                Metrics.BYTES_OUT.add(sent);
+            }
+            conn.writeQueue.poll();
+        }
+        return true;
+    }
+
+    // The buffers at the front of the queue, for one gathering write - across
+    // responses, so a burst of small pipelined responses goes out in a single
+    // syscall. Stops at a file region, and after a response that ends the connection.
+    private static ByteBuffer[] batch(ArrayDeque<Pending> queue) {
+        ArrayList<ByteBuffer> batch = new ArrayList<>();
+        for (Pending pending : queue) {
+            if (pending.finished != null) {
+                if (!pending.finished.keepAlive) {
+                    break;
+                }
+                continue;
+            }
+            if (pending.buffers == null || batch.size() >= MAX_BATCH_BUFFERS) {
+                break;
+            }
+            for (ByteBuffer buffer : pending.buffers) {
+                if (buffer.hasRemaining()) {
+                    batch.add(buffer);
+                }
+            }
+        }
+        return batch.toArray(new ByteBuffer[0]);
+    }
+
+    // Takes fully written buffers off the front of the queue. Returns false if
+    // some are left half written, i.e. the socket is full.
+    private static boolean dropWritten(ArrayDeque<Pending> queue) {
+        while (!queue.isEmpty()) {
+            Pending pending = queue.peek();
+            if (pending.buffers == null) {
+                return true; // End of a response, or a file region - flush deals with those.
+            }
+            if (pending.buffers.length > 0 && pending.buffers[pending.buffers.length - 1].hasRemaining()) {
+                return false;
+            }
+            queue.poll();
+            pending.release();
+            if (pending.credit != null) {
+                pending.credit.release(pending.permits);
+            }
+        }
+        return true;
+    }
+
+    // Runs on the reactor thread for each piece of a streamed response.
+    private void streamData(SelectionKey key, Connection conn, Exchange exchange, Pending pending) {
+        if (!key.isValid()) {
+            pending.release();
+            return; // Client left - the worker notices and gives up.
+        }
+        queueOutput(conn, exchange, List.of(pending));
+        try {
+            pump(key, conn);
+        } catch (IOException e) {
+            close(key);
+        }
+    }
+
+    // What a worker writes a streamed response to. Every write is copied into buffers
+    // from BufferPool and queued on the connection through the reactor, which gives
+    // them back once they're written. Once STREAM_WINDOW bytes are waiting to go out,
+    // the worker blocks until the client reads some, so a slow client holds up one
+    // worker instead of piling the body up in memory.
+    private final class ReactorStream extends OutputStream {
+        private final SelectionKey key;
+        private final Connection conn;
+        private final Exchange exchange;
+        private final Semaphore credit = new Semaphore(STREAM_WINDOW);
+        boolean started;
+
+        ReactorStream(SelectionKey key, Connection conn, Exchange exchange) {
+            this.key = key;
+            this.conn = conn;
+            this.exchange = exchange;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            if (length == 0) {
+                return;
+            }
+            int permits = Math.min(length, STREAM_WINDOW);
+            try {
+                while (!credit.tryAcquire(permits, 100, TimeUnit.MILLISECONDS)) {
+                    if (!key.isValid()) {
+                        throw new IOException("Client went away during a streamed response.");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while streaming a response.");
+            }
+            ByteBuffer[] pieces = new ByteBuffer[(length + BufferPool.BUFFER_SIZE - 1) / BufferPool.BUFFER_SIZE];
+            for (int i = 0; i < pieces.length; i++) {
+                ByteBuffer piece = BufferPool.take();
+                int size = Math.min(length - i * BufferPool.BUFFER_SIZE, piece.capacity());
+                piece.put(data, offset + i * BufferPool.BUFFER_SIZE, size).flip();
+                pieces[i] = piece;
+            }
+            Pending pending = new Pending(pieces);
+            pending.pooled = true;
+            pending.credit = credit;
+            pending.permits = permits;
+            started = true;
+            conn.loop.execute(() -> streamData(key, conn, exchange, pending));
+        }
+    }
+
+    private void close(SelectionKey key) {
+        if (key.attachment() instanceof Connection && key.isValid()) {
+            connections.decrementAndGet();
+            Connection conn = (Connection) key.attachment();
+            conn.deadline.clear();
+            for (Pending pending : conn.writeQueue) {
+                if (pending.finished != null) {
+                    closeQuietly(pending.finished.file);
+                }
+                pending.release();
+            }
+            for (Exchange exchange : conn.inFlight) {
+                closeQuietly(exchange.file);
+                for (Pending pending : exchange.output) {
+                    pending.release();
+                }
+            }
+            if (conn.held != null) {
+                conn.held.handler.closeBody(); // Never got to a worker, which would have done it.
+                conn.held = null;
+            }
+            if (conn.body != null) {
+                conn.body.abort(); // Client left halfway through sending a body.
+                conn.body = null;
+            }
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Already gone, nothing to do.
+        }
+    }
+
+    private static void closeQuietly(FileChannel file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // Nothing useful to do about it.
+            }
+        }
+    }
+
+    // Gives up on a body that's partly here, deleting any temp file it started.
+    private static void dropBody(Connection conn) {
+        conn.body.abort();
+        conn.body = null;
+        conn.chunks = null;
+        conn.bodyHeaders = null;
+        conn.bodyRequestVars = null;
+    }
+
+    // Decodes a chunked body a read at a time. Chunk data goes into the sink as soon as
+    // it's here, so all that's ever left over in the read buffer is an unfinished
+    // chunk-size or trailer line. Each line is capped at maxLine bytes, and so are
+    // the trailers together - the sink only limits the data itself (maxBodySize).
+    static final class ChunkDecoder {
+        private static final int SIZE = 0; // Expecting a chunk-size line.
+        private static final int DATA = 1;
+        private static final int DATA_END = 2; // The CRLF after a chunk's data.
+        private static final int TRAILERS = 3; // Past the last chunk, up to the blank line.
+
+        private final int maxLine;
+        private int state = SIZE;
+        private long remaining; // Data left in the current chunk.
+        private int trailerBytes;
+        boolean done; // The blank line after the last chunk has been read.
+
+        ChunkDecoder(int maxLine) {
+            this.maxLine = maxLine;
+        }
+
+        // Decodes what it can of data[0, end). Returns how many bytes it used up -
+        // the rest is an incomplete line, to be passed again with more behind it.
+        int feed(byte[] data, int end, RequestBody.Sink sink) throws IOException {
+            int pos = 0;
+            while (!done) {
+                if (state == DATA) {
+                    int take = (int) Math.min(remaining, end - pos);
+                    if (take == 0) {
+                        break;
+                    }
+                    sink.write(data, pos, take);
+                    pos += take;
+                    remaining -= take;
+                    if (remaining == 0) {
+                        state = DATA_END;
+                    }
+                    continue;
+                }
+                int lineEnd = indexOfCRLF(data, pos, end);
+                if (lineEnd - pos > maxLine || (lineEnd == -1 && end - pos > maxLine)) {
+                    throw new ConnectionInput.LineTooLongException("Line over " + maxLine
+                            + " bytes in a chunked body.");
+                }
+                if (lineEnd == -1) {
+                    break;
+                }
+                int lineStart = pos;
+                pos = lineEnd + 2;
+                if (state == DATA_END) {
+                    state = SIZE; // Whatever is on it is ignored, as in the threaded server.
+                } else if (state == SIZE) {
+                    String sizeLine = new String(data, lineStart, lineEnd - lineStart, StandardCharsets.US_ASCII);
+                    int extension = sizeLine.indexOf(';');
+                    if (extension != -1) {
+                        sizeLine = sizeLine.substring(0, extension); // Chunk extensions are ignored.
+                    }
+                    remaining = Long.parseLong(sizeLine.trim(), 16);
+                    if (remaining < 0) {
+                        throw new NumberFormatException("Negative chunk size");
+                    }
+                    state = remaining == 0 ? TRAILERS : DATA;
+                } else if (lineEnd == lineStart) {
+                    done = true;
+                } else {
+                    trailerBytes += lineEnd - lineStart + 2;
+                    if (trailerBytes > maxLine) {
+                        throw new ConnectionInput.LineTooLongException("Chunked body trailers over " + maxLine
+                                + " bytes.");
+                    }
+                }
+            }
+            return pos;
+        }
+    }
+
+    private static int indexOfCRLF(byte[] data, int from, int end) {
+        for (int i = from; i + 1 < end; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,150 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+// A request body, read with a size limit (maxBodySize in config.ini). Small bodies
+// stay in memory. Once a body grows past bodySpillThreshold the rest of it goes to
+// a temp file as it arrives, so a big upload costs disk space instead of heap.
+// Nothing is turned into a String unless a handler asks for it.
+public class RequestBody implements Closeable {
+
+    // Thrown while reading a body bigger than maxBodySize - answered with a 413.
+    static class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException(long limit) {
+            super("Request body is over the " + limit + " byte limit.");
+        }
+    }
+
+    private final byte[] memory; // Null if the body is in file.
+    private final Path file;
+    private final long length;
+
+    private RequestBody(byte[] memory, Path file, long length) {
+        this.memory = memory;
+        this.file = file;
+        this.length = length;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    // Reads the body from the start. Each call gets its own stream.
+    public InputStream openStream() throws IOException {
+        if (file != null) {
+            return Files.newInputStream(file);
+        }
+        return new ByteArrayInputStream(memory, 0, (int) length);
+    }
+
+    // The whole body as one array - only for handlers that really need it all at once.
+    public byte[] bytes() throws IOException {
+        if (file != null) {
+            return Files.readAllBytes(file);
+        }
+        return memory.length == length ? memory : Arrays.copyOf(memory, (int) length);
+    }
+
+    public String text(Charset charset) throws IOException {
+        if (file != null) {
+            return new String(Files.readAllBytes(file), charset);
+        }
+        return new String(memory, 0, (int) length, charset);
+    }
+
+    // Deletes the temp file, if there is one. The body can't be read afterwards.
+    @Override
+    public void close() {
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                Log.warn("Couldn't delete request body file: {}", file);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RequestBody[" + length + " bytes" + (file != null ? " in " + file : "") + "]";
+    }
+
+    // Collects a body as it comes off the connection, in whatever pieces it arrives.
+    static class Sink {
+        private final long maxSize;
+        private final long spillThreshold;
+        private byte[] buffer;
+        private int count;
+        private Path file;
+        private OutputStream fileOut;
+        private long total;
+
+        // expectedLength is the Content-Length, or -1 if we don't know yet (chunked).
+        Sink(long maxSize, long spillThreshold, long expectedLength) {
+            this.maxSize = maxSize;
+            this.spillThreshold = spillThreshold;
+            long initial = expectedLength >= 0 ? Math.min(expectedLength, spillThreshold) : 1024;
+            this.buffer = new byte[(int) Math.max(0, Math.min(initial, Integer.MAX_VALUE - 8))];
+        }
+
+        void write(byte[] data, int offset, int length) throws IOException {
+            if (total + length > maxSize) {
+                abort();
+                throw new TooLargeException(maxSize);
+            }
+            total += length;
+            if (file == null && count + length <= spillThreshold) {
+                if (count + length > buffer.length) {
+                    long grown = Math.max((long) buffer.length * 2, count + length);
+                    buffer = Arrays.copyOf(buffer, (int) Math.min(grown, spillThreshold));
+                }
+                System.arraycopy(data, offset, buffer, count, length);
+                count += length;
+                return;
+            }
+            if (file == null) {
+                // Past the threshold - move what we have so far to disk, and keep going there.
+                file = Files.createTempFile("request-body", ".tmp");
+                fileOut = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024);
+                fileOut.write(buffer, 0, count);
+                buffer = null;
+            }
+            fileOut.write(data, offset, length);
+        }
+
+        long size() {
+            return total;
+        }
+
+        RequestBody finish() throws IOException {
+            if (file != null) {
+                fileOut.close();
+                return new RequestBody(null, file, total);
+            }
+            return new RequestBody(buffer, null, total);
+        }
+
+        // Gives up on the body (client left, or it was too large) - removes any temp file.
+        void abort() {
+            if (file != null) {
+                try {
+                    fileOut.close();
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    Log.warn("Couldn't delete request body file: {}", file);
+                }
+                file = null;
+            }
+            buffer = null;
+        }
+    }
+}
@@ -1,279 +1,552 @@
 import java.net.*;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.io.*;
 
 public class RequestHandler implements Runnable {
 
     private final Socket clientSocket;
     private static ConfigValues config;
-
-    private String headers; // Raw head contents.
-    private byte[] body; // Raw body contents.
+    // Where pipelined GETs and HEADs are built alongside the request in front of them
+    // (see readAhead) - the server's thread pool. Null means one at a time.
+    private static Executor pipelineWorkers;
+
+    private ConnectionInput inputStream; // Lives as long as the connection does.
+    private RequestHeadParser headParser;
+    private HttpMessage headError; // Set instead of requestVars when the head was unusable.
+    private String headers; // Raw head contents - only kept for TRACE.
+    private RequestBody body; // Null if the request had none. Closed once the response is out.
+    private FormParser.Form form; // A form POSTed to params_info.html - closed along with the body.
     private HashMap<String, String> requestVars;
+    private boolean responseStarted; // A response is being written - too late for a 500.
+    // Every response goes out through here, in a direct buffer borrowed from BufferPool.
+    // Responses to pipelined requests are collected and written together. It's flushed
+    // whenever we'd otherwise block on the client (see ConnectionInput), which also
+    // gives its pooled buffer back while the connection sits idle.
+    private ConnectionOutput responseBatch;
+    private int batched; // Responses held back in responseBatch.
+    // Pipelined requests read ahead of the one being answered, oldest first.
+    private final ArrayDeque<Ahead> ahead = new ArrayDeque<>();
+    // Closes the socket if the client is too slow with whatever we're waiting on -
+    // that's what gets a thread stuck in a read or write back.
+    private ConnectionDeadline deadline;
 
     public RequestHandler(Socket socket_in) {
         this.clientSocket = socket_in;
     }
 
+    // For requests that were already read and parsed elsewhere (the NIO reactor).
+    // There's no socket here - only respond() and wantsKeepAlive() are usable.
+    RequestHandler(String headers, RequestBody body, HashMap<String, String> requestVars) {
+        this.clientSocket = null;
+        this.headers = headers;
+        this.body = body;
+        this.requestVars = requestVars;
+    }
+
     public static void setConfig(ConfigValues values) {
         config = values;
     }
 
-    public void run() {
-        try {
-            // First let's listen to what the user is asking of us.
+    static void setPipelineWorkers(Executor workers) {
+        pipelineWorkers = workers;
+    }
 
-            System.err.println("Started thread!");
-
-            readRequest();
-            System.out.println("headers:" + headers);
-            String bodySTR;
-            // Add body and raw request to requestVars for POST and TRACE handling
-            if (body != null
-                    && (headers.contains("Content-Type: text") || headers.contains("Content-Type: application"))) {
-                // Convert body to a Base64 string to not corrupt not textual data
-                bodySTR = new String(body);
-                requestVars.put("RequestBody", bodySTR);
-            } else if (body != null) {
-                bodySTR = Base64.getEncoder().encodeToString(body);
-                requestVars.put("RequestBody", bodySTR);
-            } else {
-                bodySTR = Base64.getEncoder().encodeToString(new byte[0]);
-                requestVars.put("RequestBody", bodySTR);
-            }
+    // A request read ahead, and its response being built - maybe on another thread.
+    private static final class Ahead {
+        final HashMap<String, String> requestVars;
+        final int requestsServed;
+        final boolean keepAlive;
+        final FutureTask<HttpMessage> response;
+
+        Ahead(RequestHandler handler, int requestsServed, boolean keepAlive) {
+            this.requestVars = handler.requestVars;
+            this.requestsServed = requestsServed;
+            this.keepAlive = keepAlive;
+            this.response = new FutureTask<>(handler::respond);
+        }
 
-            requestVars.put("RawRequest", headers + RequestParser.CRLF + bodySTR);
+        // If no worker got to it yet, it's built right here - a FutureTask only runs
+        // once, so whoever starts it first builds it and the other does nothing.
+        HttpMessage response() throws Exception {
+            response.run();
+            try {
+                return response.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw (Exception) e.getCause();
+            }
+        }
+    }
 
-            // Addressing path traversal and misconfiguration issues
-            String requestedIndex = RequestParser.sanitizePath(requestVars.get("Requested-Index"));
-            requestVars.replace("Requested-Index", requestedIndex);
+    public void run() {
+        try {
+            // First let's listen to what the user is asking of us.
 
-            HttpMessage response = handleRequest(requestVars);
+            Log.debug("Started thread!");
 
-            // And now - send it back!
+            deadline = new ConnectionDeadline(this::abortConnection);
+            // One buffer for the whole connection - bytes of a follow-up
+            // request may already be sitting in it.
             OutputStream out = clientSocket.getOutputStream();
-            System.err.println("Returning response.");
-            if (requestVars.containsKey("Transfer-Encoding")
-                    && requestVars.get("Transfer-Encoding").equalsIgnoreCase("chunked") &&
-                    requestVars.containsKey("chunked") && requestVars.get("chunked").equalsIgnoreCase("yes")) {
-                sendChunkedBody(out, response.content);
-            } else {
-                response.send(out);
+            responseBatch = new ConnectionOutput(clientSocket.getChannel());
+            inputStream = new ConnectionInput(clientSocket.getInputStream(), responseBatch,
+                    () -> deadline.enter(ConnectionDeadline.Phase.HEADER));
+            headParser = new RequestHeadParser(config.getMaxHeaderSize());
+
+            int requestsServed = 0;
+            boolean keepAlive = true;
+            while (keepAlive) {
+                if (!readRequest()) {
+                    break; // Client closed the connection between requests.
+                }
+                deadline.clear(); // Our turn - the client isn't holding anything up.
+                if (headError != null) {
+                    // Can't tell where this request ends, so we can't read the next one.
+                    deadline.enter(ConnectionDeadline.Phase.WRITE);
+                    headError.addHeader(HeaderBytes.CONNECTION_CLOSE);
+                    Metrics.requestDone(requestVars == null ? null : requestVars.get("Request-Type"),
+                            headError.statusCode());
+                    headError.send(responseBatch);
+                    responseBatch.flush();
+                    break;
+                }
+                boolean priorKnowledge = Http2Connection.isPriorKnowledge(requestVars);
+                if (priorKnowledge || Http2Connection.wantsUpgrade(requestVars)) {
+                    // The rest of the connection is HTTP/2 - it's served (and closed) there.
+                    responseBatch.flush();
+                    new Http2Connection(clientSocket, inputStream, out).run(priorKnowledge ? null : requestVars,
+                            headers);
+                    return;
+                }
+                requestsServed++;
+                keepAlive = wantsKeepAlive(requestsServed);
+                if (keepAlive && body == null && isSafe(requestVars)) {
+                    readAhead(requestsServed);
+                }
+
+                HttpMessage response = respond();
+
+                // And now - send it back!
+                Log.debug("Returning response.");
+                keepAlive = sendResponse(response, requestVars, keepAlive, requestsServed);
+                // Then the ones read ahead, in the order they came in.
+                while (keepAlive && !ahead.isEmpty()) {
+                    Ahead next = ahead.poll();
+                    requestVars = next.requestVars;
+                    requestsServed = next.requestsServed;
+                    keepAlive = sendResponse(next.response(), requestVars, next.keepAlive, requestsServed);
+                }
+                ahead.clear(); // Not answered if the connection closes first - same as unread ones.
             }
         } catch (Exception e) {
-            System.err.println("Err caught in thread: " + e);
+            if (deadline != null && deadline.hasExpired()) {
+                // We closed the socket under it - the client was too slow, nothing to answer.
+                return;
+            }
+            Log.warn("Err caught in thread: {}", e);
+            if (responseStarted) {
+                // Part of a streamed response is already out - all we can do is hang up,
+                // which tells the client the body is incomplete.
+                return;
+            }
 
+            if (responseBatch == null) {
+                return; // Didn't get as far as having a connection to answer on.
+            }
             // Let's try and send them 500.
             try {
+                responseBatch.flush(); // Answers to the requests before this one.
                 HttpMessage err = RequestParser.ServerErrorResponse();
-                OutputStream out = clientSocket.getOutputStream();
-                err.send(out);
+                err.addHeader(HeaderBytes.CONNECTION_CLOSE);
+                Metrics.requestDone(requestVars == null ? null : requestVars.get("Request-Type"), err.statusCode());
+                err.send(responseBatch);
+                responseBatch.flush();
             } catch (Exception e2) {
                 // If this doesn't work... well, damn shame.
             }
         } finally {
-            shutConnection(); // HTTP is stateless, so regardless of what happened, once the transaction is
-                              // complete we're done. Bye!
+            if (deadline != null) {
+                deadline.clear();
+            }
+            closeBody();
+            if (responseBatch != null) {
+                responseBatch.release();
+            }
+            shutConnection(); // Either the client is done with us, or something went wrong. Bye!
+        }
+    }
+
+    // Sends a response, or holds it back in responseBatch if the next request is already
+    // here. Returns whether the connection stays open after it.
+    private boolean sendResponse(HttpMessage response, HashMap<String, String> requestVars, boolean keepAlive,
+            int requestsServed) throws IOException {
+        keepAlive = streamingKeepAlive(response, requestVars, keepAlive);
+        addConnectionHeaders(response, keepAlive, requestsServed);
+        long sendStarted = System.nanoTime();
+        responseStarted = true;
+        deadline.enter(ConnectionDeadline.Phase.WRITE);
+        if (keepAlive && (!ahead.isEmpty() || inputStream.hasBuffered()) && response.isInMemory()
+                && batched < config.getMaxPipelineDepth()) {
+            // The next request is already here, so this response can wait and go
+            // out with the ones after it.
+            response.send(responseBatch);
+            batched++;
+        } else {
+            batched = 0;
+            // A file-backed body still goes straight from the file to the socket.
+            response.send(responseBatch, clientSocket.getChannel());
+            responseBatch.flush();
+        }
+        responseStarted = false;
+        Metrics.SEND.record(System.nanoTime() - sendStarted);
+        Metrics.requestDone(requestVars.get("Request-Type"), response.statusCode());
+        return keepAlive;
+    }
+
+    // GETs and HEADs only read, so they can be built in parallel, same as in the NIO
+    // server. Anything else (or anything with a body) is read and built on its own.
+    private static boolean isSafe(HashMap<String, String> requestVars) {
+        String method = requestVars.get("Request-Type");
+        return ("GET".equals(method) || "HEAD".equals(method)) && !requestVars.containsKey("Content-Length")
+                && !requestVars.containsKey("Transfer-Encoding") && !Http2Connection.wantsUpgrade(requestVars);
+    }
+
+    // Takes the safe requests pipelined behind the current one - as long as their heads
+    // are all here already, so this never waits on the client - and starts building
+    // their responses on the pool while this thread builds the current one.
+    private void readAhead(int requestsServed) {
+        while (pipelineWorkers != null && ahead.size() < config.getMaxPipelineDepth()
+                && inputStream.peekHead(headParser) && isSafe(headParser.requestVars())) {
+            inputStream.skipHead(headParser);
+            RequestHandler handler = new RequestHandler(null, null, headParser.requestVars());
+            int served = requestsServed + ahead.size() + 1;
+            boolean keepAlive = handler.wantsKeepAlive(served);
+            Ahead next = new Ahead(handler, served, keepAlive);
+            ahead.add(next);
+            try {
+                pipelineWorkers.execute(next.response);
+            } catch (RejectedExecutionException e) {
+                // Pool's full - it'll be built here when its turn comes.
+            }
+            if (!keepAlive) {
+                break; // Nothing after this one gets answered.
+            }
+        }
+    }
+
+    // Tells the client whether we'll keep the connection open after this response.
+    // The keep-alive lines only differ in the "max" count, so the rest is prebuilt.
+    static void addConnectionHeaders(HttpMessage response, boolean keepAlive, int requestsServed) {
+        if (keepAlive) {
+            response.addHeader(HeaderBytes.numberLine(keepAlivePrefix(),
+                    config.getMaxKeepAliveRequests() - requestsServed));
+        } else {
+            response.addHeader(HeaderBytes.CONNECTION_CLOSE);
+        }
+    }
+
+    private static byte[] keepAlivePrefix;
+    private static int keepAlivePrefixTimeout = -1;
+
+    // "connection: keep-alive\r\nkeep-alive: timeout=N, max=" - rebuilt only if the timeout changes.
+    private static byte[] keepAlivePrefix() {
+        int timeout = config.getKeepAliveTimeout();
+        byte[] prefix = keepAlivePrefix;
+        if (prefix == null || keepAlivePrefixTimeout != timeout) {
+            prefix = HeaderBytes.ascii("connection: keep-alive" + RequestParser.CRLF
+                    + "keep-alive: timeout=" + timeout / 1000 + ", max=");
+            keepAlivePrefix = prefix;
+            keepAlivePrefixTimeout = timeout;
+        }
+        return prefix;
+    }
+
+    // Builds the response for the request currently held in requestVars.
+    HttpMessage respond() throws IOException {
+        // The admin endpoint isn't a file, so it's answered before any path handling.
+        String method = requestVars.get("Request-Type");
+        if ((method.equals("GET") || method.equals("HEAD"))
+                && Metrics.isMetricsPath(requestVars.get("Requested-Index"))) {
+            HttpMessage metrics = Metrics.response(requestVars);
+            metrics.sendContent = method.equals("GET");
+            return metrics;
+        }
+
+        HttpMessage response = handleRequest(requestVars);
+        if ("chunked".equalsIgnoreCase(requestVars.get("Transfer-Encoding"))
+                && "yes".equalsIgnoreCase(requestVars.get("chunked"))) {
+            // The client asked for the response body in chunks too.
+            response.streamContent();
+        }
+        return response;
+    }
+
+    // Streamed bodies are sent chunked, which HTTP/1.0 clients don't understand -
+    // they get the body as-is instead, ended by closing the connection.
+    static boolean streamingKeepAlive(HttpMessage response, HashMap<String, String> requestVars,
+            boolean keepAlive) {
+        if (response.isStreamed() && !"HTTP/1.1".equals(requestVars.get("HTTP-Version"))) {
+            response.chunked = false;
+            return false;
+        }
+        return keepAlive;
+    }
+
+    // Decides whether the connection stays open after the current request.
+    // HTTP/1.1 defaults to keep-alive, HTTP/1.0 has to ask for it.
+    boolean wantsKeepAlive(int requestsServed) {
+        if (requestsServed >= config.getMaxKeepAliveRequests()) {
+            return false;
+        }
+        String connection = requestVars.get("Connection");
+        if (connection != null) {
+            if (connection.equalsIgnoreCase("close")) {
+                return false;
+            }
+            if (connection.equalsIgnoreCase("keep-alive")) {
+                return true;
+            }
         }
+        return "HTTP/1.1".equals(requestVars.get("HTTP-Version"));
     }
 
     private HttpMessage handleRequest(HashMap<String, String> requestVars) throws IOException {
         // Implementing missing methods based on the type of request
         switch (requestVars.get("Request-Type")) {
             case "GET":
-                System.err.println("CASE GET ENTERED, ind = " + requestVars.get("Requested-Index") + ".");
+                Log.debug("CASE GET ENTERED, ind = {}.", requestVars.get("Requested-Index"));
                 // if the given index exists return 200, else, 404.
                 return handleGet(requestVars);
             case "POST":
-                // Utilize the "RequestBody" from requestVars
+                // params_info.html reads the body, see createResponse
                 return handlePost(requestVars);
             case "HEAD":
-                System.err.println("CASE HEAD ENTERED, ind = " + requestVars.get("Requested-Index") + ".");
+                Log.debug("CASE HEAD ENTERED, ind = {}.", requestVars.get("Requested-Index"));
                 return handleHead(requestVars);
             case "TRACE":
-                // Utilize the "RawRequest" from requestVars
+                // Echoes the head and body back
                 return handleTrace(requestVars);
             default:
                 return RequestParser.NotImplementedResponseCode();
         }
     }
 
-    private void readRequest() throws IOException {
-        InputStream rawInputStream = clientSocket.getInputStream();
-        // Wrap the InputStream in a BufferedInputStream
-        BufferedInputStream inputStream = new BufferedInputStream(rawInputStream);
-        inputStream.mark(1); // Initial arbitrary mark to support reset later
-        ByteArrayOutputStream headersBuffer = new ByteArrayOutputStream();
-        int lastByte = -1;
-        int newByte;
-        // Simple state machine to detect the double CRLF (\r\n\r\n) ending the headers
-        // section
-        boolean inHeaders = true;
-        while (inHeaders && (newByte = inputStream.read()) != -1) {
-            if (lastByte == '\r' && newByte == '\n') { // Detect \r\n
-                inputStream.mark(2); // Mark the current position to allow reset
-                if (inputStream.read() == '\r' && inputStream.read() == '\n') {
-                    // Detected end of headers (\r\n\r\n)
-                    inHeaders = false;
-                } else {
-                    // Not the end, reset back to the mark
-                    inputStream.reset();
-                }
-            }
-            headersBuffer.write(newByte);
-            lastByte = newByte;
+    // Reads the next request off the connection. Returns false if the client
+    // closed the connection cleanly before sending anything. If the request was
+    // malformed, headError holds the response to send back instead.
+    private boolean readRequest() throws IOException {
+        closeBody();
+        headers = null;
+        headError = null;
+        requestVars = null;
+
+        if (!inputStream.hasBuffered()) {
+            deadline.enter(ConnectionDeadline.Phase.IDLE); // Becomes HEADER once bytes arrive.
+        }
+        RequestHeadParser.Result result = inputStream.readHead(headParser);
+        if (result == null) {
+            return false;
+        }
+        if (result == RequestHeadParser.Result.BAD_REQUEST) {
+            headError = RequestParser.BadRequestResponseCode();
+            return true;
+        }
+        if (result == RequestHeadParser.Result.TOO_LARGE) {
+            headError = RequestParser.HeaderTooLargeResponse();
+            return true;
+        }
+        requestVars = headParser.requestVars();
+        if ("TRACE".equals(requestVars.get("Request-Type"))) {
+            headers = headParser.headString(inputStream.buffer(),
+                    inputStream.position() - headParser.headLength());
         }
 
-        // Convert headers to a string
-        headers = headersBuffer.toString(StandardCharsets.UTF_8.name());
-
-        if (headers.isBlank()) {
-            throw new IOException("Empty request received.");
+        try {
+            readBody();
+        } catch (NumberFormatException e) {
+            // Garbage Content-Length or chunk size.
+            headError = RequestParser.BadRequestResponseCode();
+        } catch (RequestBody.TooLargeException e) {
+            // The rest of the body is still on its way, so this connection is done too.
+            headError = RequestParser.PayloadTooLargeResponse();
+        } catch (ConnectionInput.LineTooLongException e) {
+            // A chunk-size line or the trailers never ended - same answer as a head that doesn't.
+            headError = RequestParser.HeaderTooLargeResponse();
         }
+        return true;
+    }
 
-        // Parse the headers.
-        requestVars = RequestParser.readRequest(headers);
+    private void readBody() throws IOException {
+        // The stream now sits right at the first byte of the body (or of the next
+        // request), so there's nothing to reset here.
+        if (requestVars.get("Transfer-Encoding") != null
+                && requestVars.get("Transfer-Encoding").equalsIgnoreCase("chunked")) {
+            Log.debug("Chunked encoding detected.");
+            deadline.enter(ConnectionDeadline.Phase.BODY);
+            body = readChunkedBody(inputStream);
+            Log.debug("READ BODY: {}", body);
+        } else if (requestVars.containsKey("Content-Length")) {
+            Log.debug("Not chunked encoding.");
 
-        // Now - is there anything else to the request?
-        // We're assuming that if there's no "content-length" that
-        // they didn't send anything. Otherwise - they have a malformatted request.
-        if (requestVars.get("Content-Length") == null) {
-            System.err.println("NO BODY, EXITING readRequest");
+            // We were given the size of the body by the headers, so let's just read that -
+            // unless it's more than we're willing to take, in which case we don't read any of it.
+            long contentLength = Long.parseLong(requestVars.get("Content-Length").trim());
+            if (contentLength < 0) {
+                throw new NumberFormatException("Negative Content-Length");
+            }
+            if (contentLength > config.getMaxBodySize()) {
+                throw new RequestBody.TooLargeException(config.getMaxBodySize());
+            }
+            deadline.enter(ConnectionDeadline.Phase.BODY);
+            RequestBody.Sink sink = newBodySink(contentLength);
+            try {
+                inputStream.transferTo(sink, contentLength);
+            } catch (IOException e) {
+                sink.abort();
+                throw e;
+            }
+            body = sink.finish();
+
+            // The body is only turned into text if debug logging actually wants it.
+            Log.debug("READ BODY: {}", body);
+        } else {
+            // We're assuming that if there's no "content-length" that
+            // they didn't send anything.
+            Log.debug("NO BODY, EXITING readRequest");
             return;
         }
-        // int contLengthINT =
-        // Integer.parseInt(requestVars.get("Content-Length").trim());
-        // String contLength = String.valueOf(contLengthINT);
-        // if (contLength == null) {
-        // System.err.println("NO BODY, EXITING readRequest");
-        // return;
-        // }
-
-        // Making sure to reset the inputStream when we read from the beginning of the
-        // body
-        inputStream.reset();
-
-        if (requestVars.get("Transfer-Encoding") != null && requestVars.get("Transfer-Encoding").equals("chunked")) {
-            System.err.println("Chunked encoding detected.");
-            String chunkedBody = readChunkedBody(inputStream);
-            System.err.println("READ BODY " + chunkedBody);
-        } else if (requestVars.containsKey("Content-Length")) {
-            System.err.println("Not chunked encoding.");
-
-            // We were given the size of the body by the headers, so let's just read that.
-            // Read content as bytes for non-textual data like images
-            int contentLength = Integer.parseInt(requestVars.get("Content-Length").trim());
-            body = new byte[contentLength];
-            int bytesRead = 0;
-            while (bytesRead < contentLength) {
-                int read = inputStream.read(body, bytesRead, contentLength - bytesRead);
-                if (read == -1) {
-                    break; // End of stream
-                }
-                bytesRead += read;
-            }
 
-            // Assign the byte array directly as the body
-            String bodyAsString = new String(body);
-            // Base64.getEncoder().encodeToString(body);
+        Log.debug("EXITING readRequest");
+    }
 
-            System.err.println("READ BODY: " + bodyAsString);
+    // Reads a chunked body straight off the connection. Chunk data goes from the
+    // connection's buffer into the sink, and nothing past the final chunk is swallowed.
+    private RequestBody readChunkedBody(ConnectionInput inputStream) throws IOException {
+        RequestBody.Sink sink = newBodySink(-1);
+        try {
+            readChunks(inputStream, sink);
+        } catch (IOException e) {
+            sink.abort();
+            throw e;
         }
-
-        System.err.println("EXITING readRequest");
+        return sink.finish();
     }
 
-    private String readChunkedBody(InputStream inputStream) throws IOException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+    // Each line (chunk size or trailer) may be up to maxHeaderSize, and so may all the
+    // trailers together - none of it counts against maxBodySize, so it's capped here.
+    private static void readChunks(ConnectionInput inputStream, RequestBody.Sink sink) throws IOException {
+        int maxLine = config.getMaxHeaderSize();
         String sizeLine;
-        while (!(sizeLine = reader.readLine()).isEmpty()) {
-            int chunkSize = Integer.parseInt(sizeLine.trim(), 16); // Convert hex size to decimal
+        while ((sizeLine = inputStream.readLine(maxLine)) != null && !sizeLine.isEmpty()) {
+            // Chunk extensions (";name=value") are allowed after the size, ignore them.
+            int extension = sizeLine.indexOf(';');
+            if (extension != -1) {
+                sizeLine = sizeLine.substring(0, extension);
+            }
+            long chunkSize = Long.parseLong(sizeLine.trim(), 16); // Convert hex size to decimal
+            if (chunkSize < 0) {
+                throw new NumberFormatException("Negative chunk size");
+            }
             if (chunkSize == 0) {
-                break; // End of chunks
+                // End of chunks - skip any trailers up to the closing empty line.
+                int trailers = 0;
+                while ((sizeLine = inputStream.readLine(maxLine)) != null && !sizeLine.isEmpty()) {
+                    trailers += sizeLine.length() + 2;
+                    if (trailers > maxLine) {
+                        throw new ConnectionInput.LineTooLongException("Chunked body trailers over " + maxLine
+                                + " bytes.");
+                    }
+                }
+                break;
             }
 
-            byte[] chunk = new byte[chunkSize];
-            int bytesRead = 0;
-            while (bytesRead < chunkSize) {
-                int result = inputStream.read(chunk, bytesRead, chunkSize - bytesRead);
-                if (result == -1)
-                    break; // End of stream
-                bytesRead += result;
-            }
-            buffer.write(chunk, 0, bytesRead);
-            reader.readLine(); // Consume the trailing \r\n after the chunk
+            // Copied through in pieces - the chunk size is the client's word, not a buffer size.
+            inputStream.transferTo(sink, chunkSize);
+            inputStream.readLine(maxLine); // Consume the trailing \r\n after the chunk
         }
-        // Convert the binary data in the buffer to a Base64-encoded string
-        return Base64.getEncoder().encodeToString(buffer.toByteArray());
     }
 
-    private void sendChunkedBody(OutputStream out, byte[] content) throws IOException {
-        if (content != null && content.length > 0) {
-            int offset = 0;
-            int chunkSize = 1024; // Chunk size (adjust as needed)
-
-            while (offset < content.length) {
-                int remaining = content.length - offset;
-                chunkSize = Math.min(chunkSize, remaining);
-                out.write(Integer.toHexString(chunkSize).getBytes());
-                out.write(RequestParser.CRLF.getBytes());
-                out.write(content, offset, chunkSize);
-                out.write(RequestParser.CRLF.getBytes());
-                offset += chunkSize;
+    private static RequestBody.Sink newBodySink(long contentLength) {
+        return new RequestBody.Sink(config.getMaxBodySize(), config.getBodySpillThreshold(), contentLength);
+    }
+
+    // The body as handlers have always seen it - text for text-ish content types,
+    // Base64 for anything else - written out piece by piece instead of built in memory.
+    private void writeBodyText(OutputStream out) throws IOException {
+        if (body == null) {
+            return;
+        }
+        try (InputStream in = body.openStream()) {
+            if (isTextBody()) {
+                in.transferTo(out);
+                return;
+            }
+            // Whole groups of 3 bytes encode on their own, so the pieces just line up.
+            Base64.Encoder encoder = Base64.getEncoder();
+            byte[] piece = new byte[3 * 4096];
+            int read;
+            while ((read = in.readNBytes(piece, 0, piece.length)) > 0) {
+                out.write(encoder.encode(read == piece.length ? piece : Arrays.copyOf(piece, read)));
             }
         }
+    }
 
-        // Send zero-sized chunk to indicate end of chunks
-        out.write("0\r\n".getBytes());
-        out.write(RequestParser.CRLF.getBytes());
+    private boolean isTextBody() {
+        String contentType = requestVars.get("Content-Type");
+        return contentType != null && (contentType.startsWith("text") || contentType.startsWith("application"));
     }
 
-    private HttpMessage createResponse(String HTTPMethod, HashMap<String, String> requestVars) throws IOException {
-        String filePath = "";
-        try {
-            URI uri = new URI(URLEncoder.encode(requestVars.get("Requested-Index"), "UTF-8"));
-            filePath = uri.getPath();
-        } catch (URISyntaxException e) {
-            e.printStackTrace();
+    // Deletes a spilled body's temp file (and any files a form upload left) - call
+    // once the response no longer needs them.
+    void closeBody() {
+        if (body != null) {
+            body.close();
+            body = null;
         }
+        if (form != null) {
+            form.close();
+            form = null;
+        }
+    }
 
-        Path reqPath = Paths.get(config.getRootPathString(), filePath);
+    private HttpMessage createResponse(String HTTPMethod, HashMap<String, String> requestVars) throws IOException {
+        String requestedIndex = requestVars.get("Requested-Index");
 
-        System.err.println(Files.exists(reqPath));
         // NOTE - This technically would allow for "POST sdadasdasd/params_info.html" to
         // work, but that's not something that would break the server, or security, and
         // requires a very
         // specific and intentional setup. So, I'm allowing this to occur.
-        if (reqPath.toString().endsWith("params_info.html") && HTTPMethod.equals("POST")) {
-            return RequestParser.ParamsInfoResponse(requestVars);
+        if (requestedIndex.endsWith("params_info.html") && HTTPMethod.equals("POST")) {
+            try {
+                form = FormParser.parse(body, requestVars.get("Content-Type"), config);
+            } catch (FormParser.FormException e) {
+                Log.debug("Rejected form: {}", e.getMessage());
+                return e.tooLarge ? RequestParser.PayloadTooLargeResponse() : RequestParser.BadRequestResponseCode();
+            } catch (RequestBody.TooLargeException e) {
+                return RequestParser.PayloadTooLargeResponse(); // A file part alone was over maxBodySize.
+            }
+            return RequestParser.ParamsInfoResponse(form);
         } else if (HTTPMethod.equals("POST")) {
             return RequestParser.BadRequestResponseCode();
-        } else if (Files.exists(reqPath) && !Files.isDirectory(reqPath)) {
-            System.err.println("REQUESTED INDEX EXISTS! ind: " + reqPath);
-            // Now let's see which type of file we're returning.
-            if (filePath.endsWith(".ico")) {
-                // Icon
-                return RequestParser.OKIcon(reqPath);
-            }
-            if (filePath.endsWith(".bmp") || filePath.endsWith(".gif") ||
-                    filePath.endsWith(".png") || filePath.endsWith(".jpg")) {
-                // Image
-                return RequestParser.OKImage(reqPath);
-            } else if (filePath.endsWith(".html")) {
-                // HTML
-                return RequestParser.OKResponseCode(reqPath);
-            } else {
-                // Octet-Stream
-                return RequestParser.OKOther(reqPath);
-            }
+        }
+
+        // The index resolves the path (refusing anything outside the root) and knows
+        // whether there's a file there, without touching the disk in the usual case.
+        FileIndex.Entry file = RequestParser.INDEX.lookup(requestedIndex);
+        if (file != null) {
+            Log.debug("REQUESTED INDEX EXISTS! ind: {}", file.path);
+            return RequestParser.OKFileResponse(file, requestVars);
         } else {
-            System.err.println("REQUESTED INDEX DOES NOT EXIST! ind: " + reqPath);
+            Log.debug("REQUESTED INDEX DOES NOT EXIST! ind: {}", requestedIndex);
             return RequestParser.NotFoundResponseCode();
         }
     }
@@ -287,7 +560,7 @@ public class RequestHandler implements Runnable {
     }
 
     private HttpMessage handleTrace(HashMap<String, String> requestVars) throws IOException {
-        return RequestParser.TRACEResponse(requestVars.get("RawRequest"));
+        return RequestParser.TRACEResponse(headers + RequestParser.CRLF, this::writeBodyText);
     }
 
     private HttpMessage handleHead(HashMap<String, String> requestVars) throws IOException {
@@ -300,8 +573,20 @@ public class RequestHandler implements Runnable {
         try { // Let's shut down the socket. This is in try/catch because of IOException.
             clientSocket.close();
         } catch (Exception e) {
-            System.out.println("RARE ERROR - Socket closed before we could close it.");
+            Log.debug("RARE ERROR - Socket closed before we could close it.");
+        }
+    }
+
+    // A deadline passed. Shutting the socket down (not just closing it) is what wakes a
+    // thread blocked in sendfile - close() alone leaves the transfer running.
+    private void abortConnection() {
+        try {
+            clientSocket.shutdownInput();
+            clientSocket.shutdownOutput();
+        } catch (IOException e) {
+            // Already half gone - closing is all that's left.
         }
+        shutConnection();
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,266 @@
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+// Parses a request line and headers straight out of a byte buffer, in one pass.
+// It's incremental: call parse() again after more bytes arrive and it carries on
+// from the last complete line rather than starting over. Header names are stored
+// in their canonical form ("content-length" -> "Content-Length"), so lookups in
+// requestVars don't care how the client spelled them.
+public class RequestHeadParser {
+
+    enum Result {
+        NEED_MORE, // Head isn't complete yet.
+        DONE, // Head parsed, requestVars is filled in.
+        BAD_REQUEST, // Malformed request line or header.
+        TOO_LARGE, // Head is bigger than maxHeadSize.
+    }
+
+    // Names we see all the time - matched byte-wise so we don't build new Strings for them.
+    // "chunked" is our own lowercase request header (see RequestHandler), so it stays as-is.
+    private static final String[] KNOWN_HEADERS = { "Host", "Connection", "Content-Length", "Content-Type",
+            "Transfer-Encoding", "Accept", "Accept-Encoding", "Accept-Language", "User-Agent", "Referer",
+            "Cookie", "Cache-Control", "If-None-Match", "If-Modified-Since", "Range", "If-Range", "Origin",
+            "Upgrade", "Keep-Alive", "chunked" };
+    private static final String[] KNOWN_METHODS = { "GET", "POST", "HEAD", "TRACE", "PUT", "DELETE", "OPTIONS" };
+
+    private final int maxHeadSize;
+    private HashMap<String, String> requestVars;
+    private Result result;
+    private boolean sawRequestLine;
+    // All positions are relative to the start of the head, so the caller may move
+    // the bytes around (compact or grow its buffer) between calls.
+    private int lineStart;
+    private int scanPos;
+    private int requestLineStart; // After any stray CRLFs that came first.
+    private int headLength; // Bytes up to and including the blank line, once DONE.
+    private int headersLength; // Bytes before the blank line, once DONE.
+    private long parseNanos; // Time spent in parse() for this head, over all calls.
+
+    public RequestHeadParser(int maxHeadSize) {
+        this.maxHeadSize = maxHeadSize;
+        reset();
+    }
+
+    // Gets ready for the next request.
+    public void reset() {
+        requestVars = new HashMap<>();
+        result = Result.NEED_MORE;
+        sawRequestLine = false;
+        lineStart = 0;
+        scanPos = 0;
+        requestLineStart = 0;
+        headLength = 0;
+        headersLength = 0;
+        parseNanos = 0;
+    }
+
+    // Parses data[headStart, end). Safe to call again with the same bytes plus more.
+    public Result parse(byte[] data, int headStart, int end) {
+        if (result != Result.NEED_MORE) {
+            return result;
+        }
+        long started = System.nanoTime();
+        Result parsed = parseMore(data, headStart, end);
+        parseNanos += System.nanoTime() - started;
+        if (parsed != Result.NEED_MORE) {
+            Metrics.PARSE.record(parseNanos); // Only our own time - not the time spent waiting for bytes.
+        }
+        return parsed;
+    }
+
+    private Result parseMore(byte[] data, int headStart, int end) {
+        int available = end - headStart;
+        while (scanPos < available) {
+            if (data[headStart + scanPos] != '\n') {
+                scanPos++;
+                continue;
+            }
+
+            // Got a full line: [lineStart, lineEnd), without its CRLF (or bare LF).
+            int lineEnd = scanPos;
+            if (lineEnd > lineStart && data[headStart + lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            scanPos++;
+
+            if (!sawRequestLine) {
+                if (lineEnd == lineStart) {
+                    // Stray CRLF between requests (RFC 7230 says to ignore it).
+                    lineStart = scanPos;
+                    requestLineStart = scanPos;
+                    continue;
+                }
+                if (!parseRequestLine(data, headStart + lineStart, headStart + lineEnd)) {
+                    return result = Result.BAD_REQUEST;
+                }
+                sawRequestLine = true;
+            } else if (lineEnd == lineStart) {
+                // Blank line - end of the head.
+                headersLength = lineStart;
+                headLength = scanPos;
+                return result = headLength > maxHeadSize ? Result.TOO_LARGE : Result.DONE;
+            } else if (!parseHeaderLine(data, headStart + lineStart, headStart + lineEnd)) {
+                return result = Result.BAD_REQUEST;
+            }
+            lineStart = scanPos;
+        }
+        if (available > maxHeadSize) {
+            return result = Result.TOO_LARGE;
+        }
+        return Result.NEED_MORE;
+    }
+
+    public HashMap<String, String> requestVars() {
+        return requestVars;
+    }
+
+    // Length of the whole head including the blank line - the body starts right after.
+    public int headLength() {
+        return headLength;
+    }
+
+    // The head as text, without the blank line. Only TRACE needs this, so it's built on demand.
+    public String headString(byte[] data, int headStart) {
+        return new String(data, headStart + requestLineStart, headersLength - requestLineStart,
+                StandardCharsets.ISO_8859_1);
+    }
+
+    // The name a header goes by in requestVars, for one that didn't come from a head
+    // we parsed - HTTP/2 sends them all lowercase ("accept-encoding" -> "Accept-Encoding").
+    static String headerName(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.ISO_8859_1);
+        return known(KNOWN_HEADERS, bytes, 0, bytes.length, true);
+    }
+
+    // The request line's parts share requestVars with the headers. A header by one
+    // of these names would replace (or add to) them, so the request is refused instead.
+    static boolean isRequestLineKey(String name) {
+        return name.equalsIgnoreCase("Request-Type") || name.equalsIgnoreCase("Requested-Index")
+                || name.equalsIgnoreCase("HTTP-Version");
+    }
+
+    // METHOD SP request-target [SP HTTP-version]
+    private boolean parseRequestLine(byte[] data, int start, int end) {
+        int firstSpace = indexOf(data, start, end, (byte) ' ');
+        if (firstSpace <= start) {
+            return false;
+        }
+        for (int i = start; i < firstSpace; i++) {
+            if (!isTokenChar(data[i])) {
+                return false;
+            }
+        }
+        int targetStart = firstSpace + 1;
+        int secondSpace = indexOf(data, targetStart, end, (byte) ' ');
+        int targetEnd = secondSpace == -1 ? end : secondSpace;
+        if (targetEnd <= targetStart) {
+            return false;
+        }
+
+        String version = "HTTP/1.0"; // No version at all is treated as the oldest we speak.
+        if (secondSpace != -1) {
+            if (end - secondSpace - 1 < 5 || data[secondSpace + 1] != 'H' || data[secondSpace + 2] != 'T'
+                    || data[secondSpace + 3] != 'T' || data[secondSpace + 4] != 'P' || data[secondSpace + 5] != '/') {
+                return false;
+            }
+            version = (end - secondSpace - 1 == 8 && data[secondSpace + 6] == '1' && data[secondSpace + 7] == '.'
+                    && data[secondSpace + 8] == '1')
+                    ? "HTTP/1.1"
+                    : new String(data, secondSpace + 1, end - secondSpace - 1, StandardCharsets.ISO_8859_1);
+        }
+
+        requestVars.put("Request-Type", known(KNOWN_METHODS, data, start, firstSpace, false));
+        requestVars.put("Requested-Index", new String(data, targetStart, targetEnd - targetStart,
+                StandardCharsets.UTF_8));
+        requestVars.put("HTTP-Version", version);
+        return true;
+    }
+
+    // name ":" OWS value OWS
+    private boolean parseHeaderLine(byte[] data, int start, int end) {
+        int colon = indexOf(data, start, end, (byte) ':');
+        if (colon <= start) {
+            return false; // No name, or folded/garbage line.
+        }
+        for (int i = start; i < colon; i++) {
+            if (!isTokenChar(data[i])) {
+                return false; // Includes whitespace before the colon, which the spec forbids.
+            }
+        }
+
+        int valueStart = colon + 1;
+        int valueEnd = end;
+        while (valueStart < valueEnd && (data[valueStart] == ' ' || data[valueStart] == '\t')) {
+            valueStart++;
+        }
+        while (valueEnd > valueStart && (data[valueEnd - 1] == ' ' || data[valueEnd - 1] == '\t')) {
+            valueEnd--;
+        }
+
+        String name = known(KNOWN_HEADERS, data, start, colon, true);
+        if (isRequestLineKey(name)) {
+            return false;
+        }
+        String value = new String(data, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1);
+        String previous = requestVars.get(name);
+        // Repeated headers are the same as one comma-separated header.
+        requestVars.put(name, previous == null ? value : previous + ", " + value);
+        return true;
+    }
+
+    // Returns the matching constant from known (case-insensitively if asked),
+    // or a new String - canonicalized for header names.
+    private static String known(String[] known, byte[] data, int start, int end, boolean headerName) {
+        int length = end - start;
+        for (String candidate : known) {
+            if (candidate.length() != length) {
+                continue;
+            }
+            boolean match = true;
+            for (int i = 0; i < length && match; i++) {
+                int b = data[start + i];
+                int c = candidate.charAt(i);
+                match = b == c || (headerName && toLower(b) == toLower(c));
+            }
+            if (match) {
+                return candidate;
+            }
+        }
+        if (!headerName) {
+            return new String(data, start, length, StandardCharsets.ISO_8859_1);
+        }
+        char[] name = new char[length];
+        boolean upper = true;
+        for (int i = 0; i < length; i++) {
+            int b = data[start + i];
+            name[i] = (char) (upper ? toUpper(b) : toLower(b));
+            upper = b == '-';
+        }
+        return new String(name);
+    }
+
+    private static int indexOf(byte[] data, int start, int end, byte target) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == target) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // RFC 7230 "tchar".
+    private static boolean isTokenChar(byte b) {
+        if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')) {
+            return true;
+        }
+        return "!#$%&'*+-.^_`|~".indexOf(b) != -1;
+    }
+
+    private static int toLower(int b) {
+        return (b >= 'A' && b <= 'Z') ? b + ('a' - 'A') : b;
+    }
+
+    private static int toUpper(int b) {
+        return (b >= 'a' && b <= 'z') ? b - ('a' - 'A') : b;
+    }
+}
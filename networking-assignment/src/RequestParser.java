@@ -1,29 +1,85 @@
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Locale;
 
 // Parses and generates appropriately-typed requests.
 public class RequestParser {
 
     static final String CRLF = "\r\n";
-    static ConfigValues CONFIG;
+    // HTTP dates, e.g. "Sun, 06 Nov 1994 08:49:37 GMT".
+    static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    // Volatile - a reloaded config.ini swaps them while requests are being served.
+    static volatile ConfigValues CONFIG;
+    static ContentCache CACHE;
+    static volatile Path ROOT; // The web root, absolute and normalized.
+    static volatile FileIndex INDEX;
 
     public static void setConfigValues(ConfigValues val) { // Run once on startup.
         CONFIG = val;
+        CACHE = new ContentCache(val.getCacheSize());
+        ROOT = Paths.get(val.getRootPathString()).toAbsolutePath().normalize();
+        if (INDEX != null) {
+            INDEX.close(); // Stop watching the old root.
+        }
+        INDEX = new FileIndex(ROOT, val.getFileIndexSize());
+        buildOverloadedHead(val);
+    }
+
+    // config.ini was reloaded (see WebServer.reloadConfig). Cached responses and the
+    // heads the file index keeps carry cache-control and vary, so they're thrown away
+    // if what goes into those changed. A new root (or index size) gets a new index.
+    static void reconfigure(ConfigValues old, ConfigValues fresh) {
+        CONFIG = fresh;
+        buildOverloadedHead(fresh);
+        CACHE.resize(fresh.getCacheSize());
+        Path root = Paths.get(fresh.getRootPathString()).toAbsolutePath().normalize();
+        if (!root.equals(ROOT) || fresh.getFileIndexSize() != old.getFileIndexSize()) {
+            FileIndex previous = INDEX;
+            ROOT = root;
+            INDEX = new FileIndex(root, fresh.getFileIndexSize());
+            previous.close();
+            CACHE.clear();
+        } else if (fresh.getCacheMaxAge() != old.getCacheMaxAge()
+                || fresh.getCompressionMinSize() != old.getCompressionMinSize()) {
+            INDEX.refreshHeads();
+            CACHE.clear();
+        }
+    }
+
+    private static void buildOverloadedHead(ConfigValues val) {
+        String overloaded = basicHeaderFormat(ResponseType.ServiceUnavailable, null, 0)
+                + "retry-after: " + val.getRetryAfter() + CRLF + "connection: close" + CRLF;
+        SERVICE_UNAVAILABLE_HEAD = HeaderBytes.ascii(overloaded);
+        SERVICE_UNAVAILABLE_BYTES = HeaderBytes.ascii(overloaded + CRLF);
     }
 
     enum ContentType {
-        Text("text/html"),
-        Image("image"),
-        Icon("icon"),
-        Stream("application/octet-stream");
+        Text("text/html", true),
+        Image("image", false), // Already compressed formats, gzip won't help.
+        Icon("icon", true),
+        Stream("application/octet-stream", false);
 
         String value;
+        boolean compressible;
+        final byte[] headerLine; // "content-type: ...\r\n", ready to copy.
 
-        private ContentType(String val) {
+        private ContentType(String val, boolean compress) {
             value = val;
+            compressible = compress;
+            headerLine = ("content-type: " + val + CRLF).getBytes(StandardCharsets.ISO_8859_1);
         }
 
         public String toString() {
@@ -34,15 +90,23 @@ public class RequestParser {
     // The types of responses we're sending back.
     enum ResponseType {
         OK("200 OK"), // 200 - OK
+        PartialContent("206 Partial Content"), // 206 - Byte range(s) of a file
+        NotModified("304 Not Modified"), // 304 - Client's cached copy is still good
         NotFound("404 Not Found"), // 404 - Not Found
         NotImplemented("501 Not Implemented"), // 501 - Not Implemented
         BadRequest("400 Bad Request"), // 400 - Invalid Request Format
-        InternalError("500 Internal Error"); // 500 - Internal Server Error
+        PayloadTooLarge("413 Payload Too Large"), // 413 - Body over maxBodySize
+        RangeNotSatisfiable("416 Range Not Satisfiable"), // 416 - Range is outside the file
+        HeaderTooLarge("431 Request Header Fields Too Large"), // 431 - Head over maxHeaderSize
+        InternalError("500 Internal Error"), // 500 - Internal Server Error
+        ServiceUnavailable("503 Service Unavailable"); // 503 - Overloaded, shed before doing any work
 
         String value;
+        final byte[] statusLine; // "HTTP/1.1 ...\r\n", ready to copy.
 
         private ResponseType(String val) {
             value = val;
+            statusLine = ("HTTP/1.1 " + val + CRLF).getBytes(StandardCharsets.ISO_8859_1);
         }
 
         public String toString() {
@@ -50,31 +114,6 @@ public class RequestParser {
         }
     }
 
-    public static HashMap<String, String> readRequest(String request) {
-        HashMap<String, String> organizedContents = new HashMap<>();
-
-        // First let's take our request and break it down into manageable sections.
-        String[] requestArray = request.split("\n"); // NOTE - Might be CRLF and not \n? Switch if bugs found.
-
-        // In line one we have the request type, the requested index, and the HTTP type.
-        // Let's get the first two.
-        String[] firstVars = requestArray[0].split(" ");
-        organizedContents.put("Request-Type", firstVars[0]);
-        organizedContents.put("Requested-Index", firstVars[1]);
-
-        for (int i = 1; i < requestArray.length; i++) {
-            // Now, for each line, figure out what info they're supplying and format it.
-            // Outside of line 1, which we handled, every line is [variable]: [contents].
-            int separator = requestArray[i].indexOf(": ");
-            if (separator != -1) {
-                organizedContents.put(requestArray[i].substring(0, separator), // variable
-                        requestArray[i].substring(separator + 2)); // contents
-            }
-        }
-
-        return organizedContents;
-    }
-
     static String sanitizePath(String requestedPath) {
         // Handle the special case of a request for the root ("/"), replacing it with
         // the default page
@@ -91,7 +130,7 @@ public class RequestParser {
         }
 
         // Resolve the requested path against the server's root directory and normalize
-        Path rootPath = Paths.get(CONFIG.getRootPathString()).toAbsolutePath().normalize();
+        Path rootPath = ROOT;
         Path resolvedPath = rootPath.resolve(requestedPath.replaceFirst("^/+", "")).normalize(); // Remove leading
                                                                                                  // slashes before
                                                                                                  // resolving
@@ -111,146 +150,360 @@ public class RequestParser {
     // Fundamental function everything else uses;
     // Given the parameters, constructs and returns the
     // message that should be sent.
-    public static String basicHeaderFormat(ResponseType response,
-            ContentType contentType, int contentLength) {
-
-        String message = ""; // We'll construct this message.
+    public static byte[] basicHeaderBytes(ResponseType response,
+            ContentType contentType, long contentLength) {
 
-        // Let's fill in depending on the response type.
-        message += "HTTP/1.1 " + response + CRLF;
+        // Always sent, even when 0 - on a kept-alive connection the client needs it
+        // to know where this response ends and the next one begins.
+        // 304s are the exception: they never have a body, whatever the length says.
+        // A negative length means the body is streamed and the length isn't known up front.
+        boolean sendLength = response != ResponseType.NotModified && contentLength >= 0;
 
-        // Insert if contentType is not empty.
+        int size = response.statusLine.length;
         if (contentType != null) {
-            message += "content-type: " + contentType + CRLF;
+            size += contentType.headerLine.length;
+        }
+        if (sendLength) {
+            size += HeaderBytes.CONTENT_LENGTH.length + HeaderBytes.decimalLength(contentLength)
+                    + HeaderBytes.CRLF.length;
         }
 
-        if (contentLength != 0) {
-            message += "content-length: " + Integer.toString(contentLength) + CRLF;
+        // One exact-size array, filled from the precomputed pieces.
+        byte[] head = new byte[size];
+        int pos = HeaderBytes.put(head, 0, response.statusLine);
+        if (contentType != null) {
+            pos = HeaderBytes.put(head, pos, contentType.headerLine);
         }
+        if (sendLength) {
+            pos = HeaderBytes.put(head, pos, HeaderBytes.CONTENT_LENGTH);
+            pos = HeaderBytes.putDecimal(head, pos, contentLength);
+            HeaderBytes.put(head, pos, HeaderBytes.CRLF);
+        }
+        return head;
+    }
 
-        return message;
+    // Same as basicHeaderBytes, for callers that append more header lines as text.
+    public static String basicHeaderFormat(ResponseType response,
+            ContentType contentType, long contentLength) {
+        return new String(basicHeaderBytes(response, contentType, contentLength), StandardCharsets.ISO_8859_1);
     }
 
-    public static HttpMessage sendGivenHTMLFile(ResponseType response, Path path) throws IOException {
-        String fileContents = Files.readString(path);
-        System.err.println("RequestParser successfuly read html file " + path);
+    // Builds the response for a file on disk, going through the content cache.
+    // The disk is only read when we have no copy of the file as it is right now -
+    // what it looks like comes from the FileIndex, not from a stat per request.
+    // requestVars may be null (error pages), in which case nothing is negotiated.
+    static HttpMessage fileResponse(ResponseType response, FileIndex.Entry file,
+            HashMap<String, String> requestVars) throws IOException {
+        Path path = file.path;
+        ContentType contentType = file.contentType;
+        BasicFileAttributes attributes = file.attributes;
+
+        // Only worth compressing text-like files of a decent size.
+        boolean negotiable = requestVars != null && contentType.compressible
+                && attributes.size() >= CONFIG.getCompressionMinSize();
+        String encoding = negotiable ? ContentEncoding.choose(requestVars.get("Accept-Encoding")) : null;
+        String range = (requestVars != null && response == ResponseType.OK) ? requestVars.get("Range") : null;
+        if (range != null) {
+            encoding = null; // Ranges are always served from the plain file.
+        }
+        FileIndex.Entry precompressed = ContentEncoding.GZIP.equals(encoding) ? INDEX.precompressed(file) : null;
+        boolean large = attributes.size() >= CONFIG.getZeroCopyThreshold();
+        if (large && precompressed == null) {
+            encoding = null; // Large files are only sent compressed if a .gz exists.
+        }
+        // A .gz sibling is a file of its own - its size and mtime say whether a copy of
+        // the gzipped bytes (ours or the client's) is current, not the plain file's.
+        BasicFileAttributes served = precompressed != null ? precompressed.attributes : attributes;
+
+        // Validators come from the stat we already did, so a revalidation never reads the file.
+        // Their header text is only built when we need it - a cache hit already has it.
+        String etag = null;
+        long lastModified = served.lastModifiedTime().toMillis();
+        if (response == ResponseType.OK) {
+            etag = encoding == null ? file.etag : etagFor(served, encoding);
+            if (requestVars != null && isNotModified(requestVars, etag, lastModified)) {
+                HttpMessage message = new HttpMessage();
+                if (encoding == null) {
+                    message.setHeaders(file.notModifiedHead());
+                } else {
+                    message.setHeaders(encodingHeaders(basicHeaderFormat(ResponseType.NotModified, null, 0)
+                            + validatorHeaders(etag, lastModified), null, negotiable));
+                }
+                return message;
+            }
+
+            // If-Range: only send the range if the client's copy is this exact version,
+            // otherwise they need the whole (new) file.
+            String ifRange = requestVars == null ? null : requestVars.get("If-Range");
+            if (range != null && (ifRange == null || ifRange.equals(etag) || ifRange.equals(file.lastModifiedDate))) {
+                ArrayList<long[]> ranges = ByteRanges.parse(range, attributes.size());
+                if (ranges != null) {
+                    return ByteRanges.response(contentType, path, attributes.size(), ranges,
+                            validatorHeaders(etag, lastModified));
+                }
+            }
+        }
+
+        if (large) {
+            // Too big to hold on the heap (or in the cache) - stream it from disk on send.
+            // We only send it compressed if someone already did the compressing for us.
+            FileIndex.Entry source = precompressed != null ? precompressed : file;
+            long length = source.attributes.size();
+            HttpMessage message = new HttpMessage();
+            if (source == file && response == ResponseType.OK && requestVars != null) {
+                message.setHeaders(file.okHead()); // The common case, built once per version of the file.
+            } else {
+                message.setHeaders(encodingHeaders(basicHeaderFormat(response, contentType, length)
+                        + validatorHeaders(etag, lastModified), encoding, negotiable));
+            }
+            message.setContentFile(source.path, length);
+            return message;
+        }
+
+        String key = ContentCache.keyFor(response, precompressed != null ? precompressed.path : path, encoding);
+        ContentCache.Entry entry = CACHE.get(key, served);
+        if (entry == null) {
+            long readStarted = System.nanoTime();
+            byte[] content;
+            if (precompressed != null) {
+                content = Files.readAllBytes(precompressed.path);
+            } else {
+                content = Files.readAllBytes(path);
+                if (encoding != null) {
+                    content = ContentEncoding.compress(content, encoding);
+                }
+            }
+            Metrics.FILE_READ.record(System.nanoTime() - readStarted); // Cache hits don't count as reads.
+            Log.debug("RequestParser successfuly read {} file {}", contentType, path);
+            byte[] headers;
+            if (encoding == null && response == ResponseType.OK && requestVars != null
+                    && content.length == attributes.size()) {
+                headers = file.okHead();
+            } else {
+                headers = HeaderBytes.ascii(encodingHeaders(basicHeaderFormat(response, contentType, content.length)
+                        + validatorHeaders(etag, lastModified), encoding, negotiable));
+            }
+            entry = new ContentCache.Entry(headers, content, lastModified, served.size());
+            CACHE.put(key, entry);
+        }
 
+        // The cached arrays are shared, never modified - addHeader() keeps its lines separately.
         HttpMessage message = new HttpMessage();
-        message.setHeaders(basicHeaderFormat(response, ContentType.Text, fileContents.length()));
-        message.setContent(fileContents);
+        message.setHeaders(entry.headers);
+        message.setContent(entry.content);
         return message;
     }
 
-    public static HttpMessage OKResponseCode(Path path) throws IOException {
-        return sendGivenHTMLFile(ResponseType.OK, path);
+    // etag / last-modified / cache-control / accept-ranges lines for a 200-ish response,
+    // or nothing if etag is null (error pages don't get validators).
+    static String validatorHeaders(String etag, long lastModified) {
+        if (etag == null) {
+            return "";
+        }
+        return "etag: " + etag + CRLF
+                + "last-modified: " + HTTP_DATE.format(Instant.ofEpochMilli(lastModified)) + CRLF
+                + "cache-control: public, max-age=" + CONFIG.getCacheMaxAge() + CRLF
+                + "accept-ranges: bytes" + CRLF;
     }
 
-    public static HttpMessage OKImage(Path path) throws IOException {
-        byte[] image = Files.readAllBytes(path);
-        System.err.println("RequestParser successfuly read image file " + path);
+    // Cheap validator: size and mtime, plus the encoding since a gzipped body
+    // is a different set of bytes than the plain one.
+    static String etagFor(BasicFileAttributes attributes, String encoding) {
+        String tag = Long.toHexString(attributes.size()) + "-" + Long.toHexString(attributes.lastModifiedTime().toMillis());
+        if (encoding != null) {
+            tag += "-" + encoding;
+        }
+        return "\"" + tag + "\"";
+    }
 
-        HttpMessage message = new HttpMessage();
-        message.setHeaders(basicHeaderFormat(ResponseType.OK, ContentType.Image, image.length));
-        System.out.println(message.headers);
-        message.setContent(image);
-        return message;
+    // True if the client's cached copy (If-None-Match / If-Modified-Since) is current.
+    // If-None-Match wins when both are sent, as the spec says.
+    static boolean isNotModified(HashMap<String, String> requestVars, String etag, long lastModified) {
+        String ifNoneMatch = requestVars.get("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2); // Weak comparison is fine for GET.
+                }
+                if (candidate.equals("*") || candidate.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        String ifModifiedSince = requestVars.get("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME)
+                        .toInstant().toEpochMilli();
+                // HTTP dates only have whole seconds.
+                return lastModified / 1000 <= since / 1000;
+            } catch (DateTimeParseException e) {
+                return false; // Invalid dates are ignored.
+            }
+        }
+        return false;
+    }
+
+    // Adds content-encoding when we compressed, and vary whenever the answer
+    // depended on Accept-Encoding - so shared caches don't mix the two up.
+    static String encodingHeaders(String headers, String encoding, boolean negotiable) {
+        if (encoding != null) {
+            headers += "content-encoding: " + encoding + CRLF;
+        }
+        if (negotiable) {
+            headers += "vary: accept-encoding" + CRLF;
+        }
+        return headers;
+    }
+
+    // Error pages live in the web root like everything else, e.g. "/_404.html".
+    public static HttpMessage sendGivenHTMLFile(ResponseType response, String page) throws IOException {
+        FileIndex.Entry file = INDEX.lookup(page);
+        if (file == null) {
+            throw new NoSuchFileException(ROOT + page);
+        }
+        return fileResponse(response, file, null);
     }
 
-    public static HttpMessage OKIcon(Path path) throws IOException {
-        byte[] image = Files.readAllBytes(path);
-        System.err.println("RequestParser successfuly read icon file " + path);
+    // The content type comes with the file - see FileIndex.contentTypeOf.
+    public static HttpMessage OKFileResponse(FileIndex.Entry file, HashMap<String, String> requestVars)
+            throws IOException {
+        return fileResponse(ResponseType.OK, file, requestVars);
+    }
 
+    // Echoes the request head, then the body as body writes it - streamed, so a big
+    // request body is never held in memory just to send it back.
+    public static HttpMessage TRACEResponse(String requestHead, HttpMessage.BodyWriter body) {
+        byte[] head = requestHead.getBytes();
         HttpMessage message = new HttpMessage();
-        message.setHeaders(basicHeaderFormat(ResponseType.OK, ContentType.Icon, image.length));
-        message.setContent(image);
+        message.setHeaders(basicHeaderBytes(ResponseType.OK, ContentType.Text, -1));
+        message.setStreamingBody(out -> {
+            out.write(head);
+            body.writeTo(out);
+        });
         return message;
     }
 
-    public static HttpMessage OKOther(Path path) throws IOException {
-        byte[] file = Files.readAllBytes(path);
-        System.err.println("RequestParser successfuly read file " + path);
+    // Bodiless error heads never change, so they're built once. HttpMessage never
+    // writes into its headers array, so sharing them is safe.
+    private static final byte[] SERVER_ERROR_HEAD = basicHeaderBytes(ResponseType.InternalError, null, 0);
+    private static final byte[] HEADER_TOO_LARGE_HEAD = basicHeaderBytes(ResponseType.HeaderTooLarge, null, 0);
+    private static final byte[] PAYLOAD_TOO_LARGE_HEAD = basicHeaderBytes(ResponseType.PayloadTooLarge, null, 0);
+    // The overload answer depends on retryAfter, so it's built in setConfigValues. It
+    // always closes the connection - a shed client shouldn't keep holding one.
+    private static volatile byte[] SERVICE_UNAVAILABLE_HEAD;
+    private static volatile byte[] SERVICE_UNAVAILABLE_BYTES;
 
+    public static HttpMessage ServerErrorResponse() {
         HttpMessage message = new HttpMessage();
-        message.setHeaders(basicHeaderFormat(ResponseType.OK, ContentType.Stream, file.length));
-        message.setContent(file);
+        message.setHeaders(SERVER_ERROR_HEAD);
+        message.setSendContent(false);
         return message;
     }
 
-    public static HttpMessage TRACEResponse(String request) {
+    public static HttpMessage ServiceUnavailableResponse() {
         HttpMessage message = new HttpMessage();
-        message.setHeaders(basicHeaderFormat(ResponseType.OK, ContentType.Text, request.length()));
-        System.out.println(message.headers);
-        message.setContent(request);
+        message.setHeaders(SERVICE_UNAVAILABLE_HEAD);
         return message;
     }
 
-    public static HttpMessage ServerErrorResponse() {
+    // The whole 503, blank line included - for shedding a connection before we've
+    // even read its request.
+    static byte[] serviceUnavailableBytes() {
+        return SERVICE_UNAVAILABLE_BYTES;
+    }
+
+    public static HttpMessage HeaderTooLargeResponse() {
         HttpMessage message = new HttpMessage();
-        message.setHeaders(basicHeaderFormat(ResponseType.InternalError, null, 0));
-        message.setSendContent(false);
+        message.setHeaders(HEADER_TOO_LARGE_HEAD);
         return message;
     }
 
-    private static HashMap<String, String> parseFormData(String body) {
-        HashMap<String, String> formData = new HashMap<>();
-        String[] params = body.replace("\r\n", "").trim().split("&"); // Remove CRLF and trim whitespace
-        for (String param : params) {
-            String[] keyValue = param.split("=");
-            if (keyValue.length == 2) {
-                String key = keyValue[0];
-                String value = keyValue[1];
-                formData.put(key, value);
-            } else if (keyValue.length == 1) {
-                String key = keyValue[0];
-                formData.put(key, "");
-            }
-        }
-        return formData;
+    public static HttpMessage PayloadTooLargeResponse() {
+        HttpMessage message = new HttpMessage();
+        message.setHeaders(PAYLOAD_TOO_LARGE_HEAD);
+        return message;
     }
 
-    public static String generateHTML(HashMap<String, String> formData) {
-        StringBuilder writer = new StringBuilder();
-        writer.append("<!DOCTYPE html>\n<html>\n<head>\n<title>Form Data</title>\n</head>\n<body>\n");
+    // Fields in the order they were sent. Files show their name, size and type -
+    // their contents stay where FormParser put them.
+    public static void generateHTML(FormParser.Form form, Writer writer) throws IOException {
+        writer.append("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"utf-8\">\n<title>Form Data</title>\n</head>\n<body>\n");
         writer.append("<h1>Form Data</h1>\n<ul>\n");
-        for (String key : formData.keySet()) {
-            String value = formData.get(key);
-            writer.append("<li>" + key + ": " + value + "</li>\n");
+        for (FormParser.Field field : form.fields) {
+            writer.append("<li>");
+            escapeHtml(field.name, writer);
+            writer.append(": ");
+            if (field.file != null) {
+                escapeHtml(field.filename, writer);
+                writer.append(" (").append(Long.toString(field.file.length())).append(" bytes, ");
+                escapeHtml(field.contentType, writer);
+                writer.append(')');
+            } else {
+                escapeHtml(field.value, writer);
+            }
+            writer.append("</li>\n");
         }
         writer.append("</ul>\n</body>\n</html>");
-
-        return writer.toString();
     }
 
-    public static HttpMessage ParamsInfoResponse(HashMap<String, String> requestVars) throws IOException {
-        String body = requestVars.get("RequestBody");
-        HashMap<String, String> formData = parseFormData(body);
-        String html = generateHTML(formData);
+    // Form input is the client's own text - it mustn't turn into markup on the page.
+    private static void escapeHtml(String text, Writer writer) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<':
+                    writer.write("&lt;");
+                    break;
+                case '>':
+                    writer.write("&gt;");
+                    break;
+                case '&':
+                    writer.write("&amp;");
+                    break;
+                case '"':
+                    writer.write("&quot;");
+                    break;
+                default:
+                    writer.write(c);
+            }
+        }
+    }
 
+    // The page is written straight to the connection as it's generated. The form
+    // is already parsed (see RequestHandler.createResponse), so a bad one gets its
+    // 400 or 413 before anything is sent.
+    public static HttpMessage ParamsInfoResponse(FormParser.Form form) throws IOException {
         HttpMessage message = new HttpMessage();
-        message.setContent(html);
-        message.setHeaders(basicHeaderFormat(ResponseType.OK, ContentType.Text, html.length()));
+        message.setHeaders(basicHeaderBytes(ResponseType.OK, ContentType.Text, -1));
+        message.setStreamingBody(out -> {
+            // FormParser decodes fields as UTF-8, so the page goes out the same way.
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            generateHTML(form, writer);
+            writer.flush();
+        });
         return message;
     }
 
     public static HttpMessage NotFoundResponseCode() throws IOException {
-        Path path = CONFIG.getRootPath().resolve("_404.html");
-        return sendGivenHTMLFile(ResponseType.NotFound, path);
+        return sendGivenHTMLFile(ResponseType.NotFound, "/_404.html");
     }
 
     public static HttpMessage NotImplementedResponseCode() throws IOException {
-        Path path = CONFIG.getRootPath().resolve("_501.html");
-        return sendGivenHTMLFile(ResponseType.NotImplemented, path);
+        return sendGivenHTMLFile(ResponseType.NotImplemented, "/_501.html");
     }
 
     public static HttpMessage BadRequestResponseCode() throws IOException {
-        Path path = CONFIG.getRootPath().resolve("_400.html");
-        return sendGivenHTMLFile(ResponseType.BadRequest, path);
+        return sendGivenHTMLFile(ResponseType.BadRequest, "/_400.html");
     }
 
     public static void main(String[] args) {
         System.out.println("TESTING REQUESTPARSER\nSetting up config");
         try {
-            CONFIG = new ConfigValues("config.ini");
+            setConfigValues(new ConfigValues("config.ini"));
             System.out.println("NotFoundResponseCode: " + NotFoundResponseCode());
             System.out.println("NotImplementedResponseCode: " + NotImplementedResponseCode());
         } catch (Exception e) {
@@ -0,0 +1,170 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// A hashed timer wheel: a ring of buckets, one per tick, and a single thread that
+// empties one bucket per tick. A timeout goes into the bucket its deadline falls
+// in (with a count of whole turns still to wait if it's further away than one
+// turn), so scheduling and cancelling cost the same whether there are ten
+// deadlines pending or a hundred thousand, and none of them needs a thread or a
+// ScheduledFuture of its own. The price is precision - a timeout fires up to one
+// tick late, which doesn't matter for connection deadlines.
+//
+// Other threads never touch the buckets: new and cancelled timeouts are handed
+// over through queues and dealt with at the start of the next tick.
+public final class TimerWheel {
+    // Shared by every connection of whichever server is running.
+    static final TimerWheel SHARED = new TimerWheel("deadlines", 100, 512);
+
+    private static final int WAITING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    // A pending task. cancel() from any thread; it's dropped from its bucket on the next tick.
+    final class Timeout {
+        private final long deadlineTick;
+        private final Runnable task;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        // Only the wheel thread uses these.
+        private long rounds; // Turns of the wheel left before it's due.
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(long deadlineTick, Runnable task) {
+            this.deadlineTick = deadlineTick;
+            this.task = task;
+        }
+
+        void cancel() {
+            if (state.compareAndSet(WAITING, CANCELLED)) {
+                cancelled.add(this);
+            }
+        }
+    }
+
+    // Doubly linked so a cancelled timeout can be unlinked without a search.
+    private static final class Bucket {
+        Timeout head;
+        Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.prev = tail;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.bucket = null;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+
+    private final long tickNanos;
+    private final Bucket[] buckets;
+    private final int mask;
+    private final long startTime = System.nanoTime();
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private long tick; // Next tick to be processed - only the wheel thread touches it.
+
+    // size is rounded up to a power of two. A turn of the wheel (tickMillis * size)
+    // should cover the usual deadlines, though longer ones work too.
+    TimerWheel(String name, long tickMillis, int size) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int slots = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        this.buckets = new Bucket[slots];
+        for (int i = 0; i < slots; i++) {
+            buckets[i] = new Bucket();
+        }
+        this.mask = slots - 1;
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Runs task on the wheel's thread once delayMillis have passed, unless cancelled
+    // first. The task must be quick (close a socket, queue something for another
+    // thread) - every other deadline waits for it.
+    Timeout schedule(long delayMillis, Runnable task) {
+        long delay = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        // Rounded up, so it never fires early.
+        Timeout timeout = new Timeout((delay + tickNanos - 1) / tickNanos, task);
+        added.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (true) {
+            long wakeAt = startTime + (tick + 1) * tickNanos;
+            long sleep;
+            while ((sleep = wakeAt - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(sleep);
+            }
+            removeCancelled();
+            addNew();
+            expire(buckets[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void addNew() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.state.get() != WAITING) {
+                continue; // Cancelled before it got here.
+            }
+            // Anything already due goes in the bucket we're about to empty.
+            long due = Math.max(timeout.deadlineTick, tick);
+            timeout.rounds = (due - tick) / buckets.length;
+            buckets[(int) (due & mask)].add(timeout);
+        }
+    }
+
+    private void expire(Bucket bucket) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                bucket.remove(timeout);
+                if (timeout.state.compareAndSet(WAITING, EXPIRED)) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        Log.warn("Timer task failed: {}", e);
+                    }
+                }
+            }
+            timeout = next;
+        }
+    }
+}
@@ -1,60 +1,189 @@
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // The main file you run to get the server going.
 public class WebServer {
-    // Filled in by readConfig.
-    public static ConfigValues VALUES;
+    // Filled in by readConfig, and replaced whenever config.ini is reloaded.
+    public static volatile ConfigValues VALUES;
     public final ExecutorService threadPool;
+    // Admission control: connections open at once (maxConnections, read on every accept
+    // so a reload applies right away). The pool's queue is bounded too (maxQueueSize) -
+    // either way, past the limit we answer 503.
+    private final AtomicInteger connections = new AtomicInteger();
     private AtomicBoolean running = new AtomicBoolean(true);
 
     public WebServer() {
-        this.threadPool = Executors.newFixedThreadPool(VALUES.getMaxThreads());
+        if (VALUES.getServerMode().equals("virtual")) {
+            this.threadPool = newVirtualThreadExecutor();
+        } else {
+            this.threadPool = new WorkerPool("worker", VALUES);
+        }
+        RequestHandler.setPipelineWorkers(threadPool);
+        if (threadPool instanceof WorkerPool) {
+            WorkerPool pool = (WorkerPool) threadPool;
+            Metrics.setQueueDepth(() -> pool.getQueue().size());
+            Metrics.setWorkerThreads(pool::threads);
+        }
+    }
+
+    // True if work queued at queuedAt (System.nanoTime) has waited longer than maxQueueTime.
+    // By then the client has likely given up, so we'd rather not start on it.
+    static boolean waitedTooLong(long queuedAt) {
+        int limit = VALUES.getMaxQueueTime();
+        return limit > 0 && System.nanoTime() - queuedAt > TimeUnit.MILLISECONDS.toNanos(limit);
+    }
+
+    // Overloaded - answer with the precomputed 503 and hang up, without reading the request.
+    static void shed(Socket socket) {
+        Metrics.SHED.increment();
+        try (socket) {
+            socket.getOutputStream().write(RequestParser.serviceUnavailableBytes());
+            socket.shutdownOutput();
+            // Closing with unread input makes the OS reset the connection, which can
+            // lose the 503 on the client's side - so drop whatever it already sent.
+            InputStream in = socket.getInputStream();
+            while (in.available() > 0 && in.skip(in.available()) > 0) {
+                // Keep skipping.
+            }
+        } catch (IOException e) {
+            // Client's gone already.
+        }
+    }
+
+    // One virtual thread per RequestHandler, so blocking on the socket or disk is cheap.
+    // Executors.newVirtualThreadPerTaskExecutor() only exists from Java 21, so it's looked
+    // up at runtime to keep compile.sh working on older JDKs. Without it we run as
+    // threaded mode does - an unbounded pool of platform threads would fall over under load.
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            Log.error("serverMode=virtual needs Java 21 or later, this is {} - running in threaded mode "
+                    + "(maxThreads, maxQueueSize) instead.", Runtime.version());
+            return new WorkerPool("worker", VALUES);
+        }
+    }
+
+    // The listening sockets for wanted accept threads: one each, all bound to the port
+    // with SO_REUSEPORT so the kernel spreads new connections between them - when
+    // reusePort is on and the OS supports it. Otherwise just the one socket.
+    static List<ServerSocketChannel> openListeners(int wanted) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(VALUES.getPort());
+        List<ServerSocketChannel> listeners = new ArrayList<>();
+        try {
+            ServerSocketChannel first = ServerSocketChannel.open();
+            listeners.add(first);
+            boolean share = wanted > 1 && VALUES.getReusePort()
+                    && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            if (share) {
+                first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            first.bind(address);
+            while (share && listeners.size() < wanted) {
+                ServerSocketChannel next = ServerSocketChannel.open();
+                listeners.add(next);
+                next.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                next.bind(address);
+            }
+        } catch (IOException e) {
+            for (ServerSocketChannel listener : listeners) {
+                listener.close();
+            }
+            throw e;
+        }
+        return listeners;
     }
 
     // server socket listens to incoming requests and passes them off to
     // RequestHandler to
     // deal with - for multithreading purposes.
     public void run() {
-        ServerSocket serverSocket = null; // Declare serverSocket here
-        System.out.println("Server started on port " + VALUES.getPort());
+        List<ServerSocketChannel> listeners = new ArrayList<>();
+        Log.info("Server started on port {}", VALUES.getPort());
         try {
-            serverSocket = new ServerSocket(VALUES.getPort());
-            // atomic boolean used to ensure that updates to the variable are atomic and
-            // thread-safe.
-            while (running.get()) {
-                // Accept a connection and handle it using a thread pool
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    System.err.println("Received new request!");
-                    RequestHandler handler = new RequestHandler(clientSocket);
-                    threadPool.submit(handler); // Directly submit the Runnable task to the thread pool.
-                    System.err.println("Threadpool handled request.");
-                } catch (IOException e) {
-                    if (running.get()) {
-                        System.out.println("Error accepting connection: " + e.getMessage());
-                    } else {
-                        System.out.println("Server is shutting down.");
-                    }
-                }
+            // Opened through a channel so accepted sockets have one too -
+            // HttpMessage needs it to sendfile() large bodies.
+            listeners = openListeners(VALUES.getIoThreads());
+            // One accept thread per listening socket - this one takes the first.
+            for (int i = 1; i < listeners.size(); i++) {
+                ServerSocket serverSocket = listeners.get(i).socket();
+                Thread acceptor = new Thread(() -> accept(serverSocket), "acceptor-" + i);
+                acceptor.setDaemon(true);
+                acceptor.start();
             }
+            Log.info("Accepting on {} listening socket(s).", listeners.size());
+            accept(listeners.get(0).socket());
         } catch (Exception e) {
-            System.out.println("FATAL ERROR: Server stopped unexpectedly: " + e.toString());
+            Log.error("FATAL ERROR: Server stopped unexpectedly: {}", e);
         } finally {
             threadPool.shutdown();
             try {
-                if (serverSocket != null && !serverSocket.isClosed()) {
-                    serverSocket.close();
+                for (ServerSocketChannel listener : listeners) {
+                    listener.close(); // Also gets the other accept threads out of accept().
+                }
+            } catch (IOException e) {
+                Log.warn("Error closing server socket: {}", e.getMessage());
+            }
+        }
+        Log.info("Shutting down server!");
+    }
+
+    // The accept loop - one per listening socket, each on its own thread.
+    private void accept(ServerSocket serverSocket) {
+        // atomic boolean used to ensure that updates to the variable are atomic and
+        // thread-safe.
+        while (running.get() && !serverSocket.isClosed()) {
+            // Accept a connection and handle it using a thread pool
+            try {
+                Socket clientSocket = serverSocket.accept();
+                Metrics.CONNECTIONS_ACCEPTED.increment();
+                Log.debug("Received new request!");
+                if (connections.incrementAndGet() > VALUES.getMaxConnections()) {
+                    connections.decrementAndGet();
+                    shed(clientSocket);
+                    continue;
                 }
+                long acceptedAt = System.nanoTime();
+                RequestHandler handler = new RequestHandler(clientSocket);
+                try {
+                    threadPool.execute(() -> {
+                        try {
+                            if (waitedTooLong(acceptedAt)) {
+                                shed(clientSocket);
+                            } else {
+                                handler.run();
+                            }
+                        } finally {
+                            connections.decrementAndGet();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // Every thread is busy and the queue is full.
+                    connections.decrementAndGet();
+                    shed(clientSocket);
+                }
+                Log.debug("Threadpool handled request.");
             } catch (IOException e) {
-                System.out.println("Error closing server socket: " + e.getMessage());
+                if (running.get() && !serverSocket.isClosed()) {
+                    Log.warn("Error accepting connection: {}", e.getMessage());
+                } else {
+                    Log.info("Server is shutting down.");
+                }
             }
         }
-        System.out.println("Shutting down server!");
     }
 
     // Call this method to stop the server
@@ -66,15 +195,51 @@ public class WebServer {
     // of the appropriate static variables.
     public static void readConfig() {
         VALUES = new ConfigValues("config.ini");
+        Log.setLevel(VALUES.getLogLevel());
         RequestParser.setConfigValues(VALUES);
         RequestHandler.setConfig(VALUES);
+        BufferPool.configure(VALUES);
+    }
+
+    // config.ini changed while we're running (see ConfigWatcher). Whatever is read per
+    // request or per connection - limits, timeouts, cache settings, the log level - applies
+    // from the next one on, and the worker pools take the new bounds; connections that are
+    // already open are left alone. The port, serverMode, ioThreads and reusePort are only
+    // read at startup.
+    static void reloadConfig(String path) {
+        ConfigValues fresh;
+        try {
+            fresh = new ConfigValues(path);
+            Log.setLevel(fresh.getLogLevel());
+        } catch (RuntimeException e) {
+            // Most likely caught halfway through being saved - the next change will do.
+            Log.warn("Couldn't reload config.ini, keeping the current settings: {}", e);
+            return;
+        }
+        ConfigValues old = VALUES;
+        VALUES = fresh;
+        RequestParser.reconfigure(old, fresh);
+        RequestHandler.setConfig(fresh);
+        WorkerPool.reconfigureAll(fresh);
+        BufferPool.configure(fresh);
+        if (fresh.getPort() != old.getPort() || !fresh.getServerMode().equals(old.getServerMode())
+                || fresh.getIoThreads() != old.getIoThreads() || fresh.getReusePort() != old.getReusePort()) {
+            Log.warn("The port, serverMode, ioThreads and reusePort in config.ini only change on a restart.");
+        }
+        Log.info("Reloaded config.ini.");
     }
 
     public static void main(String[] args) {
         try {
             readConfig();
-            WebServer server = new WebServer();
-            server.run();
+            ConfigWatcher.start("config.ini");
+            if (VALUES.getServerMode().equals("nio")) {
+                NioServer server = new NioServer();
+                server.run();
+            } else {
+                WebServer server = new WebServer();
+                server.run();
+            }
         } catch (Exception e) {
             e.printStackTrace(); // Print the exception to the console.
         }
@@ -0,0 +1,155 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// A worker pool that sizes itself between minThreads and maxThreads. It grows as
+// soon as work has to queue with every thread busy, and again whenever the time
+// tasks spent queued goes up. It shrinks back, a step at a time, once most of its
+// threads have been sitting idle for a while. Past maxQueueSize queued tasks,
+// execute() throws RejectedExecutionException, same as a full fixed pool would.
+//
+// The bounds and the queue limit are read from config.ini again whenever it's
+// reloaded (see reconfigureAll), so every pool the server made follows along.
+public class WorkerPool extends ThreadPoolExecutor {
+    private static final int TICK = 500; // Milliseconds between sizing decisions.
+    // Average time in the queue that means we're short of threads.
+    private static final long GROW_WAIT = TimeUnit.MILLISECONDS.toNanos(5);
+    // Busy threads below this share of the pool, for SHRINK_AFTER ticks in a row, and we shrink.
+    private static final double SHRINK_UTILIZATION = 0.5;
+    private static final int SHRINK_AFTER = 10;
+    private static final long IDLE_THREAD_TIMEOUT = 5; // Seconds a thread over the core size is kept idle.
+
+    private static final List<WorkerPool> POOLS = new CopyOnWriteArrayList<>();
+
+    private final String name;
+    private final AtomicInteger running = new AtomicInteger(); // Tasks running right now.
+    private final LongAdder waitedNanos = new LongAdder(); // Queue time of tasks started since the last tick.
+    private final LongAdder started = new LongAdder();
+    private volatile int queueLimit;
+    // Only the timer thread touches these.
+    private int quietTicks;
+    private int peakRunning;
+
+    // A task and when it was handed to us, so its wait in the queue can be measured.
+    private final class Queued implements Runnable {
+        private final Runnable task;
+        private final long queuedAt = System.nanoTime();
+
+        Queued(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            waitedNanos.add(System.nanoTime() - queuedAt);
+            started.increment();
+            running.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    WorkerPool(String name, ConfigValues values) {
+        super(values.getMinThreads(), values.getMaxThreads(), IDLE_THREAD_TIMEOUT, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>());
+        this.name = name;
+        this.queueLimit = values.getMaxQueueSize();
+        AtomicInteger threads = new AtomicInteger();
+        setThreadFactory(task -> new Thread(task, name + "-" + threads.incrementAndGet()));
+        POOLS.add(this);
+        TimerWheel.SHARED.schedule(TICK, this::tick);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        // The queue itself is unbounded so its limit can change at runtime - this is the bound.
+        if (getQueue().size() >= queueLimit) {
+            throw new RejectedExecutionException(name + " queue is full");
+        }
+        super.execute(new Queued(task));
+        // Every thread is taken and this task had to queue - start another one right away
+        // rather than waiting for the next tick to notice.
+        int core = getCorePoolSize();
+        if (running.get() + getQueue().size() > core && core < getMaximumPoolSize()) {
+            resize(core + 1);
+        }
+    }
+
+    // Threads there are right now, busy or not.
+    int threads() {
+        return getPoolSize();
+    }
+
+    // Runs on the timer wheel every TICK.
+    private void tick() {
+        if (isShutdown()) {
+            POOLS.remove(this);
+            return;
+        }
+        long count = started.sumThenReset();
+        long waited = waitedNanos.sumThenReset();
+        int core = getCorePoolSize();
+        int busy = running.get();
+        peakRunning = Math.max(peakRunning, busy);
+        if (count > 0 && waited / count > GROW_WAIT && core < getMaximumPoolSize()) {
+            // Tasks are waiting on threads - grow by a quarter (at least one).
+            resize(core + Math.max(1, core / 4));
+            quietTicks = 0;
+            peakRunning = busy;
+        } else if (busy < core * SHRINK_UTILIZATION && getQueue().isEmpty()) {
+            if (++quietTicks >= SHRINK_AFTER) {
+                // Give back half of what went unused at the busiest point of the quiet spell.
+                resize(core - Math.max(1, (core - peakRunning) / 2));
+                quietTicks = 0;
+                peakRunning = busy;
+            }
+        } else {
+            quietTicks = 0;
+            peakRunning = busy;
+        }
+        TimerWheel.SHARED.schedule(TICK, this::tick);
+    }
+
+    // Clamped to the current bounds. Synchronized so growing from execute() and the
+    // timer don't lose each other's updates.
+    private synchronized void resize(int size) {
+        int bounded = Math.max(getMinThreads(), Math.min(size, getMaximumPoolSize()));
+        if (bounded != getCorePoolSize()) {
+            setCorePoolSize(bounded);
+            Log.debug("{} now has up to {} threads.", name, bounded);
+        }
+    }
+
+    private int getMinThreads() {
+        return Math.min(WebServer.VALUES.getMinThreads(), getMaximumPoolSize());
+    }
+
+    // New bounds from a reloaded config.ini.
+    private synchronized void reconfigure(ConfigValues values) {
+        queueLimit = values.getMaxQueueSize();
+        int max = values.getMaxThreads();
+        int core = Math.max(values.getMinThreads(), Math.min(getCorePoolSize(), max));
+        // The core size can never be above the maximum, so the order depends on which way they move.
+        if (max >= getMaximumPoolSize()) {
+            setMaximumPoolSize(max);
+            setCorePoolSize(core);
+        } else {
+            setCorePoolSize(core);
+            setMaximumPoolSize(max);
+        }
+    }
+
+    static void reconfigureAll(ConfigValues values) {
+        for (WorkerPool pool : POOLS) {
+            pool.reconfigure(values);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import org.junit.jupiter.api.Test;
+
+class ByteRangesTest {
+    @Test
+    void parsesSingleRange() {
+        ArrayList<long[]> ranges = ByteRanges.parse("bytes=100-199", 1000);
+        assertEquals(1, ranges.size());
+        assertArrayEquals(new long[] { 100, 199 }, ranges.get(0));
+    }
+
+    @Test
+    void openRangeRunsToTheEnd() {
+        assertArrayEquals(new long[] { 900, 999 }, ByteRanges.parse("bytes=900-", 1000).get(0));
+        assertArrayEquals(new long[] { 900, 999 }, ByteRanges.parse("bytes=900-5000", 1000).get(0));
+    }
+
+    @Test
+    void suffixRangeIsTheLastBytes() {
+        assertArrayEquals(new long[] { 500, 999 }, ByteRanges.parse("bytes=-500", 1000).get(0));
+        // A suffix longer than the file is the whole file.
+        assertArrayEquals(new long[] { 0, 999 }, ByteRanges.parse("bytes=-5000", 1000).get(0));
+    }
+
+    // Overlapping ranges aren't merged - each is sent as asked for.
+    @Test
+    void keepsOverlappingRanges() {
+        ArrayList<long[]> ranges = ByteRanges.parse("bytes=0-499, 400-999, -100", 1000);
+        assertEquals(3, ranges.size());
+        assertArrayEquals(new long[] { 0, 499 }, ranges.get(0));
+        assertArrayEquals(new long[] { 400, 999 }, ranges.get(1));
+        assertArrayEquals(new long[] { 900, 999 }, ranges.get(2));
+    }
+
+    @Test
+    void dropsUnsatisfiableRangesButKeepsTheRest() {
+        ArrayList<long[]> ranges = ByteRanges.parse("bytes=2000-3000,0-9", 1000);
+        assertEquals(1, ranges.size());
+        assertArrayEquals(new long[] { 0, 9 }, ranges.get(0));
+    }
+
+    @Test
+    void nothingSatisfiableGets416() {
+        ArrayList<long[]> ranges = ByteRanges.parse("bytes=1000-", 1000);
+        assertTrue(ranges.isEmpty());
+        assertTrue(ByteRanges.parse("bytes=-0", 1000).isEmpty());
+        assertTrue(ByteRanges.parse("bytes=-10", 0).isEmpty());
+
+        HttpMessage response = ByteRanges.response(null, null, 1000, ranges, "");
+        String head = new String(response.headers, StandardCharsets.ISO_8859_1);
+        assertTrue(head.startsWith("HTTP/1.1 416 "), head);
+        assertTrue(head.contains("content-range: bytes */1000"), head);
+    }
+
+    // These mean "ignore the Range header" - a plain 200.
+    @Test
+    void ignoresInvalidHeaders() {
+        assertNull(ByteRanges.parse("items=0-10", 1000));
+        assertNull(ByteRanges.parse("bytes=10", 1000));
+        assertNull(ByteRanges.parse("bytes=20-10", 1000));
+        assertNull(ByteRanges.parse("bytes=a-b", 1000));
+        assertNull(ByteRanges.parse("bytes=" + "0-1,".repeat(ByteRanges.MAX_RANGES) + "0-1", 1000));
+    }
+}
@@ -0,0 +1,95 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class ChunkedOutputStreamTest {
+    @Test
+    void splitsIntoChunksOfTheGivenSize() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedOutputStream chunks = new ChunkedOutputStream(out, 4);
+        chunks.write(bytes("hello world"));
+        chunks.close();
+        assertEquals("4\r\nhell\r\n4\r\no wo\r\n3\r\nrld\r\n0\r\n\r\n", text(out));
+    }
+
+    @Test
+    void sizeLineIsHex() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedOutputStream chunks = new ChunkedOutputStream(out, 1024);
+        chunks.write(new byte[300]);
+        chunks.close();
+        assertEquals("12c\r\n", text(out).substring(0, 5));
+        assertEquals(5 + 300 + 2 + 5, out.size());
+    }
+
+    @Test
+    void singleByteWritesFillChunks() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedOutputStream chunks = new ChunkedOutputStream(out, 2);
+        for (byte b : bytes("abc")) {
+            chunks.write(b);
+        }
+        chunks.close();
+        assertEquals("2\r\nab\r\n1\r\nc\r\n0\r\n\r\n", text(out));
+    }
+
+    // The head goes out in the same write as the first chunk.
+    @Test
+    void preambleGoesWithFirstChunk() throws IOException {
+        WriteCounter out = new WriteCounter();
+        ChunkedOutputStream chunks = new ChunkedOutputStream(out, 64, bytes("HEAD\r\n\r\n"));
+        chunks.write(bytes("hi"));
+        chunks.close();
+        assertEquals("HEAD\r\n\r\n2\r\nhi\r\n0\r\n\r\n", text(out));
+        assertEquals(1, out.writes);
+    }
+
+    @Test
+    void emptyBodyIsJustTheLastChunk() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedOutputStream chunks = new ChunkedOutputStream(out, 64, bytes("HEAD\r\n\r\n"));
+        chunks.flush(); // Nothing buffered - no empty chunk, which would end the body early.
+        chunks.close();
+        chunks.close();
+        assertEquals("HEAD\r\n\r\n0\r\n\r\n", text(out));
+    }
+
+    @Test
+    void flushSendsShortChunk() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedOutputStream chunks = new ChunkedOutputStream(out, 64);
+        chunks.write(bytes("abc"));
+        chunks.flush();
+        assertEquals("3\r\nabc\r\n", text(out));
+    }
+
+    @Test
+    void writeAfterCloseFails() throws IOException {
+        ChunkedOutputStream chunks = new ChunkedOutputStream(new ByteArrayOutputStream(), 64);
+        chunks.close();
+        assertThrows(IOException.class, () -> chunks.write(bytes("late")));
+    }
+
+    private static final class WriteCounter extends ByteArrayOutputStream {
+        int writes;
+
+        @Override
+        public synchronized void write(byte[] data, int offset, int length) {
+            writes++;
+            super.write(data, offset, length);
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String text(ByteArrayOutputStream out) {
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+}
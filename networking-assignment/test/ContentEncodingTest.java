@@ -0,0 +1,50 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+class ContentEncodingTest {
+    @Test
+    void noHeaderOrNothingKnownMeansNoEncoding() {
+        assertNull(ContentEncoding.choose(null));
+        assertNull(ContentEncoding.choose(""));
+        assertNull(ContentEncoding.choose("identity, br"));
+    }
+
+    @Test
+    void prefersGzipOnATie() {
+        assertEquals(ContentEncoding.GZIP, ContentEncoding.choose("gzip, deflate"));
+        assertEquals(ContentEncoding.GZIP, ContentEncoding.choose("deflate, gzip"));
+        assertEquals(ContentEncoding.GZIP, ContentEncoding.choose("*"));
+    }
+
+    @Test
+    void higherQualityWins() {
+        assertEquals(ContentEncoding.DEFLATE, ContentEncoding.choose("gzip;q=0.5, deflate"));
+        assertEquals(ContentEncoding.DEFLATE, ContentEncoding.choose("deflate;q=0.9, gzip;q=0.8"));
+        assertEquals(ContentEncoding.GZIP, ContentEncoding.choose("deflate;q=0.1, x-gzip;q=0.2"));
+    }
+
+    @Test
+    void zeroQualityRulesACodingOut() {
+        assertNull(ContentEncoding.choose("gzip;q=0"));
+        assertEquals(ContentEncoding.DEFLATE, ContentEncoding.choose("gzip;q=0, deflate"));
+        assertNull(ContentEncoding.choose("*;q=0"));
+        assertEquals(ContentEncoding.GZIP, ContentEncoding.choose("gzip;q=abc, gzip"));
+    }
+
+    // "*" only stands in for codings the header doesn't name.
+    @Test
+    void wildcardCoversOnlyUnnamedCodings() {
+        assertEquals(ContentEncoding.DEFLATE, ContentEncoding.choose("gzip;q=0, *"));
+        assertEquals(ContentEncoding.GZIP, ContentEncoding.choose("deflate;q=0, *;q=0.3"));
+        assertEquals(ContentEncoding.DEFLATE, ContentEncoding.choose("*;q=0, deflate"));
+        assertEquals(ContentEncoding.GZIP, ContentEncoding.choose("deflate;q=0.2, *;q=0.5"));
+    }
+
+    @Test
+    void namesAreCaseInsensitive() {
+        assertEquals(ContentEncoding.GZIP, ContentEncoding.choose("GZIP"));
+        assertEquals(ContentEncoding.DEFLATE, ContentEncoding.choose("Deflate"));
+    }
+}
@@ -0,0 +1,148 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FormParserTest {
+    private static final String MULTIPART = "multipart/form-data; boundary=XyZ";
+
+    @TempDir
+    Path dir;
+    private ConfigValues config;
+
+    @BeforeEach
+    void writeConfig() throws IOException {
+        Path ini = dir.resolve("config.ini");
+        Files.writeString(ini, "root=" + dir + "\nmaxFormFields=4\nmaxFormFieldSize=100\nbodySpillThreshold=1024");
+        config = new ConfigValues(ini.toString());
+    }
+
+    @Test
+    void parsesUrlencoded() throws IOException {
+        try (FormParser.Form form = parse("b=hello+world&&c=%41%42&flag&d=%e2%82%ac", null)) {
+            assertEquals(4, form.fields.size());
+            assertField(form.fields.get(0), "b", "hello world");
+            assertField(form.fields.get(1), "c", "AB");
+            assertField(form.fields.get(2), "flag", "");
+            assertField(form.fields.get(3), "d", "€");
+        }
+    }
+
+    @Test
+    void noBodyIsAnEmptyForm() throws IOException {
+        try (FormParser.Form form = FormParser.parse(null, null, config)) {
+            assertTrue(form.fields.isEmpty());
+        }
+    }
+
+    @Test
+    void parsesMultipart() throws IOException {
+        String body = "preamble\r\n"
+                + "--XyZ\r\n"
+                + "Content-Disposition: form-data; name=\"title\"\r\n\r\n"
+                + "Hi there\r\n"
+                + "--XyZ\r\n"
+                + "Content-Disposition: form-data; name=\"upload\"; filename=\"a.txt\"\r\n"
+                + "Content-Type: text/csv\r\n\r\n"
+                + "1,2\r\n3,4\r\n"
+                + "--XyZ--\r\n";
+        try (FormParser.Form form = parse(body, MULTIPART)) {
+            assertEquals(2, form.fields.size());
+            assertField(form.fields.get(0), "title", "Hi there");
+            assertNull(form.fields.get(0).filename);
+            FormParser.Field upload = form.fields.get(1);
+            assertEquals("upload", upload.name);
+            assertEquals("a.txt", upload.filename);
+            assertEquals("text/csv", upload.contentType);
+            assertEquals("1,2\r\n3,4", upload.file.text(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    // The parser reads 8 KB at a time. Moving the file's end a byte at a time puts the
+    // delimiter after it across a read boundary at some point - it still has to be found,
+    // and nothing of it may end up in the file.
+    @Test
+    void findsBoundarySplitAcrossReads() throws IOException {
+        String head = "--XyZ\r\nContent-Disposition: form-data; name=\"f\"; filename=\"f.bin\"\r\n\r\n";
+        for (int size = 8100; size < 8200; size++) {
+            byte[] contents = new byte[size];
+            for (int i = 0; i < size; i++) {
+                contents[i] = (byte) ('a' + i % 26);
+            }
+            String body = head + new String(contents, StandardCharsets.ISO_8859_1) + "\r\n--XyZ--\r\n";
+            try (FormParser.Form form = parse(body, MULTIPART)) {
+                assertEquals(1, form.fields.size());
+                assertArrayEquals(contents, form.fields.get(0).file.bytes(), "file of " + size + " bytes");
+            }
+        }
+    }
+
+    @Test
+    void tooManyFieldsIs413() {
+        FormParser.FormException e = assertThrows(FormParser.FormException.class,
+                () -> parse("a=1&b=2&c=3&d=4&e=5", null));
+        assertTrue(e.tooLarge);
+    }
+
+    @Test
+    void fieldLimitIsOnTheDecodedSize() throws IOException {
+        try (FormParser.Form form = parse("v=" + "%41".repeat(100), null)) {
+            assertEquals(100, form.fields.get(0).value.length());
+        }
+        FormParser.FormException e = assertThrows(FormParser.FormException.class,
+                () -> parse("v=" + "a".repeat(101), null));
+        assertTrue(e.tooLarge);
+    }
+
+    // File parts only count against maxBodySize - this one is past bodySpillThreshold too.
+    @Test
+    void fieldLimitDoesNotApplyToFiles() throws IOException {
+        String contents = "x".repeat(5000);
+        String body = "--XyZ\r\nContent-Disposition: form-data; name=\"f\"; filename=\"big.txt\"\r\n\r\n"
+                + contents + "\r\n--XyZ--";
+        try (FormParser.Form form = parse(body, MULTIPART)) {
+            assertEquals(contents, form.fields.get(0).file.text(StandardCharsets.ISO_8859_1));
+        }
+        String text = "--XyZ\r\nContent-Disposition: form-data; name=\"t\"\r\n\r\n" + contents + "\r\n--XyZ--";
+        assertTrue(assertThrows(FormParser.FormException.class, () -> parse(text, MULTIPART)).tooLarge);
+    }
+
+    @Test
+    void malformedMultipartIs400() {
+        String[] bodies = {
+                "--XyZ\r\nContent-Disposition: form-data\r\n\r\nno name\r\n--XyZ--", // No name.
+                "--XyZ\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\nnever ends", // No closing boundary.
+                "--XyZ", // Nothing after the first boundary.
+        };
+        for (String body : bodies) {
+            FormParser.FormException e = assertThrows(FormParser.FormException.class, () -> parse(body, MULTIPART));
+            assertFalse(e.tooLarge, body);
+        }
+    }
+
+    private FormParser.Form parse(String body, String contentType) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.ISO_8859_1);
+        RequestBody.Sink sink = new RequestBody.Sink(config.getMaxBodySize(), config.getBodySpillThreshold(),
+                bytes.length);
+        sink.write(bytes, 0, bytes.length);
+        try (RequestBody requestBody = sink.finish()) {
+            return FormParser.parse(requestBody, contentType, config);
+        }
+    }
+
+    private static void assertField(FormParser.Field field, String name, String value) {
+        assertEquals(name, field.name);
+        assertEquals(value, field.value);
+    }
+}
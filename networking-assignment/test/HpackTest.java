@@ -0,0 +1,104 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+// The request examples from RFC 7541 Appendix C. Each block of an example is
+// decoded with the same Decoder, since later blocks refer to table entries the
+// earlier ones added.
+class HpackTest {
+    // C.3: requests without Huffman coding.
+    private static final String[] PLAIN_REQUESTS = {
+            "828684410f7777772e6578616d706c652e636f6d",
+            "828684be58086e6f2d6361636865",
+            "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565",
+    };
+    // C.4: the same requests, Huffman coded.
+    private static final String[] HUFFMAN_REQUESTS = {
+            "828684418cf1e3c2e5f23a6ba0ab90f4ff",
+            "828684be5886a8eb10649cbf",
+            "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf",
+    };
+    private static final String[][][] DECODED = {
+            { { ":method", "GET" }, { ":scheme", "http" }, { ":path", "/" },
+                    { ":authority", "www.example.com" } },
+            { { ":method", "GET" }, { ":scheme", "http" }, { ":path", "/" },
+                    { ":authority", "www.example.com" }, { "cache-control", "no-cache" } },
+            { { ":method", "GET" }, { ":scheme", "https" }, { ":path", "/index.html" },
+                    { ":authority", "www.example.com" }, { "custom-key", "custom-value" } },
+    };
+
+    @Test
+    void decodesRequestsWithoutHuffman() throws IOException {
+        assertDecodes(PLAIN_REQUESTS);
+    }
+
+    @Test
+    void decodesRequestsWithHuffman() throws IOException {
+        assertDecodes(HUFFMAN_REQUESTS);
+    }
+
+    // Our encoder doesn't Huffman code, and indexes the same fields the example does.
+    @Test
+    void encodesRequestsLikeTheRfc() {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        for (int i = 0; i < DECODED.length; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            encoder.startBlock(out);
+            for (String[] field : DECODED[i]) {
+                encoder.field(out, field[0], field[1], true);
+            }
+            assertArrayEquals(hex(PLAIN_REQUESTS[i]), out.toByteArray(), "block " + (i + 1));
+        }
+    }
+
+    @Test
+    void rejectsUnknownIndex() {
+        byte[] block = { (byte) 0xff, 0x00 }; // Indexed field 127 - the table is empty.
+        assertThrows(Hpack.DecodingException.class, () -> decode(new Hpack.Decoder(), block));
+    }
+
+    @Test
+    void rejectsBadHuffmanPadding() {
+        // :authority, Huffman-coded "w" followed by a padding byte of zeros.
+        byte[] block = hex("4182f000");
+        assertThrows(Hpack.DecodingException.class, () -> decode(new Hpack.Decoder(), block));
+    }
+
+    @Test
+    void rejectsStringPastEndOfBlock() {
+        byte[] block = hex("410f7777"); // Says 15 bytes, has 2.
+        assertThrows(Hpack.DecodingException.class, () -> decode(new Hpack.Decoder(), block));
+    }
+
+    private static void assertDecodes(String[] blocks) throws IOException {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        for (int i = 0; i < blocks.length; i++) {
+            List<String[]> fields = decode(decoder, hex(blocks[i]));
+            assertEquals(DECODED[i].length, fields.size(), "block " + (i + 1));
+            for (int j = 0; j < fields.size(); j++) {
+                assertArrayEquals(DECODED[i][j], fields.get(j), "block " + (i + 1) + ", field " + (j + 1));
+            }
+        }
+    }
+
+    private static List<String[]> decode(Hpack.Decoder decoder, byte[] block) throws IOException {
+        List<String[]> fields = new ArrayList<>();
+        decoder.decode(block, 0, block.length, (name, value) -> fields.add(new String[] { name, value }));
+        return fields;
+    }
+
+    private static byte[] hex(String text) {
+        byte[] bytes = new byte[text.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(text.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,175 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// A real connection to a RequestHandler, with several requests written in one go -
+// the responses have to come back complete and in request order, whether the
+// pipelined GETs and HEADs were built by the pool or by the connection's thread -
+// and every pooled buffer the responses went out through has to be given back.
+class RequestHandlerPipelineTest {
+    @TempDir
+    Path dir;
+    private ServerSocketChannel listener;
+    private ExecutorService workers;
+
+    @BeforeEach
+    void start() throws IOException {
+        Files.writeString(dir.resolve("a.html"), "alpha");
+        Files.writeString(dir.resolve("b.html"), "bravo");
+        Files.writeString(dir.resolve("c.html"), "charlie");
+        Files.writeString(dir.resolve("_404.html"), "missing");
+        Files.writeString(dir.resolve("_400.html"), "bad");
+        Path ini = dir.resolve("config.ini");
+        Files.writeString(ini, "root=" + dir + "\nmaxPipelineDepth=2\nlogLevel=error\nbufferLeakDetection=true");
+        // What WebServer.readConfig() does, with our config.ini instead of the one in the cwd.
+        WebServer.VALUES = new ConfigValues(ini.toString());
+        Log.setLevel(WebServer.VALUES.getLogLevel());
+        RequestParser.setConfigValues(WebServer.VALUES);
+        RequestHandler.setConfig(WebServer.VALUES);
+        BufferPool.configure(WebServer.VALUES);
+
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        workers = Executors.newFixedThreadPool(2);
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        RequestHandler.setPipelineWorkers(null);
+        workers.shutdownNow();
+        listener.close();
+    }
+
+    @Test
+    void answersPipelinedRequestsInOrder() throws Exception {
+        RequestHandler.setPipelineWorkers(workers);
+        assertInOrder();
+    }
+
+    // Nothing read ahead gets built on the pool - the connection's thread builds all of it.
+    @Test
+    void answersInOrderWhenThePoolRejectsEverything() throws Exception {
+        RequestHandler.setPipelineWorkers(task -> {
+            throw new RejectedExecutionException("full");
+        });
+        assertInOrder();
+    }
+
+    // A POST in the middle isn't safe to build early - the ones behind it still wait their turn.
+    @Test
+    void answersInOrderAroundAnUnsafeRequest() throws Exception {
+        RequestHandler.setPipelineWorkers(workers);
+        List<String> responses = exchange("GET /a.html HTTP/1.1\r\nHost: x\r\n\r\n"
+                + "POST /b.html HTTP/1.1\r\nHost: x\r\nContent-Length: 3\r\n\r\nabc"
+                + "GET /c.html HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n", false, false, false);
+        assertEquals(3, responses.size());
+        assertResponse(responses.get(0), "200", "alpha");
+        assertResponse(responses.get(1), "400", "bad"); // Only params_info.html takes a POST.
+        assertResponse(responses.get(2), "200", "charlie");
+    }
+
+    // Once the connection is closed, what it took from BufferPool is all back - none still
+    // out, and none that the garbage collector found without it being given back.
+    @Test
+    void givesBackEveryPooledBuffer() throws Exception {
+        RequestHandler.setPipelineWorkers(workers);
+        assertInOrder();
+        List<String> responses = exchange("GET /a.html HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n", false);
+        assertResponse(responses.get(0), "200", "alpha");
+        System.gc();
+        BufferPool.give(BufferPool.take()); // Collected leases are only looked at on a take or give.
+        assertEquals(0, BufferPool.inUse());
+        assertEquals(0, BufferPool.leaks());
+    }
+
+    // More requests than maxPipelineDepth, with a HEAD and a 404 among them.
+    private void assertInOrder() throws Exception {
+        String requests = "GET /a.html HTTP/1.1\r\nHost: x\r\n\r\n"
+                + "GET /missing.html HTTP/1.1\r\nHost: x\r\n\r\n"
+                + "HEAD /b.html HTTP/1.1\r\nHost: x\r\n\r\n"
+                + "GET /c.html HTTP/1.1\r\nHost: x\r\n\r\n"
+                + "GET /b.html HTTP/1.1\r\nHost: x\r\n\r\n"
+                + "GET /a.html HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n";
+        List<String> responses = exchange(requests, false, false, true, false, false, false);
+        assertEquals(6, responses.size());
+        assertResponse(responses.get(0), "200", "alpha");
+        assertResponse(responses.get(1), "404", "missing");
+        assertResponse(responses.get(2), "200", "");
+        assertResponse(responses.get(3), "200", "charlie");
+        assertResponse(responses.get(4), "200", "bravo");
+        assertResponse(responses.get(5), "200", "alpha");
+        assertTrue(responses.get(5).contains("connection: close"), responses.get(5));
+    }
+
+    // Sends all the requests at once to a fresh handler, and splits what comes back
+    // (until the server hangs up) into responses. isHead says which ones have no body.
+    private List<String> exchange(String requests, boolean... isHead) throws Exception {
+        try (Socket client = new Socket(InetAddress.getLoopbackAddress(), listener.socket().getLocalPort())) {
+            client.setSoTimeout(10000);
+            Thread handler = new Thread(acceptOne());
+            handler.start();
+            client.getOutputStream().write(requests.getBytes(StandardCharsets.ISO_8859_1));
+            byte[] data = readAll(client.getInputStream());
+            handler.join(10000);
+            return split(data, isHead);
+        }
+    }
+
+    private Runnable acceptOne() throws IOException {
+        Socket socket = listener.accept().socket();
+        return new RequestHandler(socket);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        in.transferTo(out);
+        return out.toByteArray();
+    }
+
+    private static List<String> split(byte[] data, boolean[] isHead) {
+        String text = new String(data, StandardCharsets.ISO_8859_1);
+        List<String> responses = new ArrayList<>();
+        int pos = 0;
+        while (pos < text.length()) {
+            int headEnd = text.indexOf("\r\n\r\n", pos) + 4;
+            String head = text.substring(pos, headEnd);
+            int length = 0;
+            for (String line : head.split("\r\n")) {
+                if (line.toLowerCase().startsWith("content-length:")) {
+                    length = Integer.parseInt(line.substring(15).trim());
+                }
+            }
+            if (isHead[responses.size()]) {
+                length = 0;
+            }
+            responses.add(text.substring(pos, headEnd + length));
+            pos = headEnd + length;
+        }
+        return responses;
+    }
+
+    private static void assertResponse(String response, String status, String body) {
+        assertTrue(response.startsWith("HTTP/1.1 " + status + " "), response);
+        assertTrue(response.endsWith("\r\n\r\n" + body), response);
+    }
+}
@@ -0,0 +1,116 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class RequestHeadParserTest {
+    private static final String HEAD = "GET /index.html HTTP/1.1\r\n"
+            + "host: example.com\r\n"
+            + "ACCEPT-ENCODING:  gzip \r\n"
+            + "X-Custom: a\r\n"
+            + "X-Custom: b\r\n"
+            + "\r\n";
+
+    @Test
+    void parsesWholeHead() {
+        RequestHeadParser parser = new RequestHeadParser(16384);
+        byte[] data = bytes(HEAD + "body");
+        assertEquals(RequestHeadParser.Result.DONE, parser.parse(data, 0, data.length));
+        assertEquals(HEAD.length(), parser.headLength());
+        assertParsed(parser);
+    }
+
+    // Bytes arriving one at a time - every prefix of the head needs more.
+    @Test
+    void parsesHeadSplitAcrossReads() {
+        RequestHeadParser parser = new RequestHeadParser(16384);
+        byte[] data = bytes(HEAD);
+        for (int end = 0; end < data.length; end++) {
+            assertEquals(RequestHeadParser.Result.NEED_MORE, parser.parse(data, 0, end), "after " + end + " bytes");
+        }
+        assertEquals(RequestHeadParser.Result.DONE, parser.parse(data, 0, data.length));
+        assertParsed(parser);
+    }
+
+    // The caller may move the head within its buffer between calls.
+    @Test
+    void parsesHeadThatMovesBetweenReads() {
+        RequestHeadParser parser = new RequestHeadParser(16384);
+        byte[] first = bytes("xxxx" + HEAD.substring(0, 30));
+        assertEquals(RequestHeadParser.Result.NEED_MORE, parser.parse(first, 4, first.length));
+        byte[] moved = bytes(HEAD);
+        assertEquals(RequestHeadParser.Result.DONE, parser.parse(moved, 0, moved.length));
+        assertParsed(parser);
+    }
+
+    @Test
+    void skipsStrayLineBreaksBeforeRequestLine() {
+        RequestHeadParser parser = new RequestHeadParser(16384);
+        byte[] data = bytes("\r\n\r\n" + HEAD);
+        assertEquals(RequestHeadParser.Result.DONE, parser.parse(data, 0, data.length));
+        assertEquals("GET", parser.requestVars().get("Request-Type"));
+        assertEquals(HEAD.length() - 2, parser.headString(data, 0).length());
+    }
+
+    @Test
+    void completeHeadOverLimitIsTooLarge() {
+        RequestHeadParser parser = new RequestHeadParser(HEAD.length() - 1);
+        byte[] data = bytes(HEAD);
+        assertEquals(RequestHeadParser.Result.TOO_LARGE, parser.parse(data, 0, data.length));
+    }
+
+    // A head that never ends is given up on as soon as it passes the limit.
+    @Test
+    void unfinishedHeadOverLimitIsTooLarge() {
+        RequestHeadParser parser = new RequestHeadParser(64);
+        byte[] data = bytes("GET / HTTP/1.1\r\nX-Long: " + "a".repeat(100));
+        assertEquals(RequestHeadParser.Result.NEED_MORE, parser.parse(data, 0, 60));
+        assertEquals(RequestHeadParser.Result.TOO_LARGE, parser.parse(data, 0, data.length));
+        // And it sticks until reset.
+        assertEquals(RequestHeadParser.Result.TOO_LARGE, parser.parse(data, 0, data.length));
+        parser.reset();
+        byte[] small = bytes("GET / HTTP/1.1\r\n\r\n");
+        assertEquals(RequestHeadParser.Result.DONE, parser.parse(small, 0, small.length));
+    }
+
+    @Test
+    void rejectsMalformedLines() {
+        String[] heads = {
+                "GET\r\n\r\n", // No target.
+                "GET / FTP/1.0\r\n\r\n",
+                "G(T / HTTP/1.1\r\n\r\n",
+                "GET / HTTP/1.1\r\nNo colon\r\n\r\n",
+                "GET / HTTP/1.1\r\nHost : x\r\n\r\n", // Space before the colon.
+                "GET / HTTP/1.1\r\nrequest-type: DELETE\r\n\r\n", // Names the request line's parts go by.
+                "GET / HTTP/1.1\r\nRequested-Index: /secret\r\n\r\n",
+                "GET / HTTP/1.1\r\nHTTP-VERSION: HTTP/1.0\r\n\r\n",
+        };
+        for (String head : heads) {
+            RequestHeadParser parser = new RequestHeadParser(16384);
+            byte[] data = bytes(head);
+            assertEquals(RequestHeadParser.Result.BAD_REQUEST, parser.parse(data, 0, data.length), head);
+        }
+    }
+
+    @Test
+    void missingVersionMeansHttp10() {
+        RequestHeadParser parser = new RequestHeadParser(16384);
+        byte[] data = bytes("GET /\r\n\r\n");
+        assertEquals(RequestHeadParser.Result.DONE, parser.parse(data, 0, data.length));
+        assertEquals("HTTP/1.0", parser.requestVars().get("HTTP-Version"));
+    }
+
+    private static void assertParsed(RequestHeadParser parser) {
+        assertEquals("GET", parser.requestVars().get("Request-Type"));
+        assertEquals("/index.html", parser.requestVars().get("Requested-Index"));
+        assertEquals("HTTP/1.1", parser.requestVars().get("HTTP-Version"));
+        assertEquals("example.com", parser.requestVars().get("Host"));
+        assertEquals("gzip", parser.requestVars().get("Accept-Encoding"));
+        assertEquals("a, b", parser.requestVars().get("X-Custom"));
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
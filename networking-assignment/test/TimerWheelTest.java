@@ -0,0 +1,71 @@
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class TimerWheelTest {
+    // 10ms ticks, 8 buckets - one turn of the wheel is 80ms.
+    private final TimerWheel wheel = new TimerWheel("test-wheel", 10, 8);
+
+    @Test
+    void firesAfterTheDelayAndNotBefore() throws InterruptedException {
+        assertFiresAfter(50);
+    }
+
+    // Longer than a turn of the wheel - it has to go round a couple of times first.
+    @Test
+    void firesAfterSeveralTurns() throws InterruptedException {
+        assertFiresAfter(250);
+    }
+
+    @Test
+    void zeroDelayFiresOnTheNextTick() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        wheel.schedule(0, fired::countDown);
+        assertTrue(fired.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void cancelledTimeoutNeverFires() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        TimerWheel.Timeout timeout = wheel.schedule(50, fired::countDown);
+        timeout.cancel();
+        assertFalse(fired.await(200, TimeUnit.MILLISECONDS));
+    }
+
+    // Cancelling after it was already sorted into a bucket.
+    @Test
+    void cancelledLateNeverFires() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        TimerWheel.Timeout timeout = wheel.schedule(150, fired::countDown);
+        Thread.sleep(50);
+        timeout.cancel();
+        assertFalse(fired.await(300, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void failingTaskDoesNotStopTheWheel() throws InterruptedException {
+        wheel.schedule(10, () -> {
+            throw new IllegalStateException("test");
+        });
+        CountDownLatch fired = new CountDownLatch(1);
+        wheel.schedule(30, fired::countDown);
+        assertTrue(fired.await(1, TimeUnit.SECONDS));
+    }
+
+    private void assertFiresAfter(long delayMillis) throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        long[] firedAt = new long[1];
+        long scheduledAt = System.nanoTime();
+        wheel.schedule(delayMillis, () -> {
+            firedAt[0] = System.nanoTime();
+            fired.countDown();
+        });
+        assertTrue(fired.await(delayMillis + 1000, TimeUnit.MILLISECONDS));
+        long waited = TimeUnit.NANOSECONDS.toMillis(firedAt[0] - scheduledAt);
+        assertTrue(waited >= delayMillis, "fired after " + waited + "ms");
+    }
+}